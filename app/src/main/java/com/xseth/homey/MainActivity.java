@@ -11,6 +11,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.fragment.app.FragmentActivity;
+import androidx.wear.ambient.AmbientModeSupport;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.PagerSnapHelper;
@@ -20,6 +21,8 @@ import androidx.wear.widget.drawer.WearableDrawerLayout;
 
 import com.xseth.homey.adapters.DeviceViewModel;
 import com.xseth.homey.adapters.OnOffAdapter;
+import com.xseth.homey.diagnostics.DiagnosticsActivity;
+import com.xseth.homey.homey.CommandJournal;
 import com.xseth.homey.homey.DeviceRepository;
 import com.xseth.homey.utils.ColorRunner;
 import com.xseth.homey.homey.HomeyAPI;
@@ -27,11 +30,12 @@ import com.xseth.homey.utils.OAuth;
 import com.xseth.homey.utils.utils;
 
 import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
 
 import timber.log.Timber;
 
 public class MainActivity extends FragmentActivity implements MenuItem.OnMenuItemClickListener,
-        View.OnClickListener{
+        View.OnClickListener, AmbientModeSupport.AmbientCallbackProvider{
 
     // deviceViewModel for holding device data
     private DeviceViewModel deviceViewModel;
@@ -45,6 +49,8 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
     public WearableRecyclerView vOnOffList;
     // Adapter for showing onoff devices
     private OnOffAdapter onOffAdapter;
+    // Runner changing background color
+    private ColorRunner colorRunner;
     // Path to app directory on system
     public static String appPath;
     // ApplicationContext
@@ -63,9 +69,13 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
         context = this.getApplicationContext();
         appPath = context.getFilesDir().getAbsolutePath();
 
+        // Replay writes which could not reach the Homey, once reachable
+        CommandJournal.getInstance(getApplication());
+
         // View used for rainbow background
         WearableDrawerLayout vOnOffBack = findViewById(R.id.onoff_back);
-        ColorRunner.startColorRunner(this, vOnOffBack);
+        colorRunner = ColorRunner.attach(this, vOnOffBack);
+        AmbientModeSupport.attach(this);
 
         // View used for notifications
         notifications = findViewById(R.id.notification);
@@ -79,8 +89,10 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
             try {
                 // Start the HomeyAPI
                 HomeyAPI api = HomeyAPI.getAPI();
+                api.warmUp();
 
-                if (api.isLoggedIn()) {
+                // A saved Homey session skips verifying the Athom session
+                if (api.isHomeyAuthenticated() || api.isLoggedIn()) {
                     Timber.i("G");
                     api.authenticateHomey();
 
@@ -122,6 +134,7 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
         // Top Navigation Drawer
         drawer = findViewById(R.id.action_drawer);
         drawer.setOnMenuItemClickListener(this);
+        DiagnosticsActivity.addMenuItem(drawer.getMenu());
 
         Timber.d("Finish onCreate");
     }
@@ -130,32 +143,44 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
     protected void onStart() {
         super.onStart();
 
-        // Restart background thread
-        ColorRunner.resumeColorRunner();
         onOffAdapter.setLoading(true);
 
-        // Sync statuses of devices.
-        new Thread(() -> {
-            DeviceRepository.getInstance().refreshDeviceStatuses();
+        // Sync statuses of devices, not needed if kept up to date by realtime connection
+        DeviceRepository repository = DeviceRepository.getInstance();
+        CompletableFuture<Void> refreshed = repository.isRealtimeConnected() ?
+                CompletableFuture.completedFuture(null) : repository.refreshDeviceStatuses();
+
+        refreshed.whenComplete((v, e) -> {
+            if (e != null)
+                Timber.e(e, "Failed to sync device statuses");
 
-            // Device statusses updated, remove loading
+            // Device statusses written to room, remove loading
             runOnUiThread(() -> onOffAdapter.setLoading(false));
-        }).start();
+        });
+
+        refreshed.thenCompose(v -> repository.startRealtime()).exceptionally(e -> {
+            Timber.e(e, "Failed to start realtime connection");
+            return null;
+        });
     }
 
     @Override
     protected void onStop() {
         super.onStop();
 
-        // Pause background thread
-        ColorRunner.pauseColorRunner();
+        // Stop receiving device updates
+        DeviceRepository.getInstance().stopRealtime();
+    }
+
+    @Override
+    public AmbientModeSupport.AmbientCallback getAmbientCallback() {
+        return colorRunner.getAmbientCallback();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         OAuth.stopOAuth();
-        ColorRunner.stopColorRunner();
     }
 
     @Override
@@ -186,6 +211,8 @@ public class MainActivity extends FragmentActivity implements MenuItem.OnMenuIte
             // Launch voice activity
             Intent intent = new Intent(this, com.xseth.homey.voice.VoiceActivity.class);
             startActivity(intent);
+        } else if (itemId == R.id.diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
         }
 
         drawer.getController().closeDrawer();
@@ -0,0 +1,42 @@
+package com.xseth.homey.adapters;
+
+import androidx.recyclerview.widget.DiffUtil;
+
+import com.xseth.homey.homey.models.Device;
+
+import java.util.Objects;
+
+/**
+ * Compares devices shown in a list, so only changed devices are rebound
+ */
+class DeviceDiff extends DiffUtil.ItemCallback<Device> {
+
+    // Payload rebinding only the on/off state
+    static final Object PAYLOAD_STATE = new Object();
+    // Payload rebinding only the loading indicator
+    static final Object PAYLOAD_LOADING = new Object();
+
+    @Override
+    public boolean areItemsTheSame(Device oldItem, Device newItem) {
+        return oldItem.getId().equals(newItem.getId());
+    }
+
+    @Override
+    public boolean areContentsTheSame(Device oldItem, Device newItem) {
+        return sameView(oldItem, newItem) && Objects.equals(oldItem.isOn(), newItem.isOn());
+    }
+
+    @Override
+    public Object getChangePayload(Device oldItem, Device newItem) {
+        // Only on/off changed, name and icon do not need to be rebound
+        return sameView(oldItem, newItem) ? PAYLOAD_STATE : null;
+    }
+
+    /**
+     * Whether devices are shown with the same name and icon
+     */
+    private static boolean sameView(Device oldItem, Device newItem) {
+        return oldItem.getName().equals(newItem.getName()) &&
+                Objects.equals(oldItem.getIconId(), newItem.getIconId());
+    }
+}
@@ -1,10 +1,7 @@
 package com.xseth.homey.adapters;
 
-import android.annotation.SuppressLint;
-import android.graphics.Color;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffColorFilter;
 import android.graphics.drawable.GradientDrawable;
+import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,39 +12,44 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.xseth.homey.R;
 import com.xseth.homey.homey.models.Device;
-import com.xseth.homey.homey.DeviceRepository;
+import com.xseth.homey.homey.ToggleController;
+import com.xseth.homey.storage.IconCache;
+import com.xseth.homey.utils.StableIds;
 import com.xseth.homey.utils.utils;
 
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
 import timber.log.Timber;
 
 interface RecyclerViewClickListener {
     void onClick(View view, int position);
+
+    boolean onLongClick(View view, int position);
 }
 
-public class OnOffAdapter extends RecyclerView.Adapter<OnOffAdapter.viewHolder>
+public class OnOffAdapter extends ListAdapter<Device, OnOffAdapter.viewHolder>
         implements RecyclerViewClickListener{
 
-    // Array of data objects related to adapter
-    private List<Device> devices;
-    // Boolean indicating if items in list are loading
+    // Boolean indicating if all items in list are loading
     private boolean loading = false;
-    // Boolean indicating if specific item should show progressBar
-    private int loadingIndex = -1;
+    // IDs of devices which should show progressBar
+    private final Set<String> loadingIds = new HashSet<>();
+    // Stable item IDs of devices
+    private final StableIds stableIds = new StableIds();
 
     /**
      * Class used to contain view for displaying devices
      */
-    public static class viewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+    public static class viewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
         // Device fragment
         public FrameLayout onOffFragment;
         // View for showing device name
@@ -56,6 +58,9 @@ public class OnOffAdapter extends RecyclerView.Adapter<OnOffAdapter.viewHolder>
         public ImageView onOffIcon;
         // View progressbar
         public ProgressBar progressBar;
+        // Background colors of devices which are on and off
+        private final int colorOn;
+        private final int colorOff;
         // Click listener for recycle view
         private RecyclerViewClickListener mListener;
 
@@ -70,27 +75,69 @@ public class OnOffAdapter extends RecyclerView.Adapter<OnOffAdapter.viewHolder>
             onOffTitle = view.findViewById(R.id.message);
             onOffIcon = view.findViewById(R.id.icon);
             progressBar = view.findViewById(R.id.progressBar);
+            colorOn = view.getContext().getColor(R.color.device_on);
+            colorOff = view.getContext().getColor(R.color.device_off);
             mListener = listener;
 
             utils.randomiseProgressBar(progressBar);
             onOffFragment.setOnClickListener(this);
+            onOffFragment.setOnLongClickListener(this);
         }
 
         @Override
         public void onClick(View view) {
-            mListener.onClick(view, getAdapterPosition());
+            mListener.onClick(view, getBindingAdapterPosition());
+        }
+
+        @Override
+        public boolean onLongClick(View view) {
+            return mListener.onLongClick(view, getBindingAdapterPosition());
+        }
+
+        /**
+         * Show on/off state of device as background color
+         * @param device device to show
+         */
+        void bindState(Device device) {
+            GradientDrawable bgShape = (GradientDrawable)onOffFragment.getBackground();
+            bgShape.setColor(device.isOn() ? colorOn : colorOff);
         }
+
+        /**
+         * Show or hide progressBar
+         * @param loading whether device is loading
+         */
+        void bindLoading(boolean loading) {
+            progressBar.setVisibility(loading ? View.VISIBLE : View.INVISIBLE);
+        }
+    }
+
+    /**
+     * OnOffAdapter constructor, lists are compared on a background thread
+     */
+    public OnOffAdapter() {
+        super(new DeviceDiff());
+        setHasStableIds(true);
     }
 
     /**
      * Indicate whether a specific item, indicated by index, should show progressbar loading.
+     * Hiding the progressbar hides it for all items.
      * @param loading if items in list should show progressBar loading
-     * @param index index of item in list for which to show/not show progressbar
+     * @param index index of item in list for which to show/not show progressbar, -1 for all
      */
     public void setLoading(boolean loading, int index) {
+        if (index >= 0 && index < getItemCount()) {
+            setLoading(loading, getItem(index).getId());
+            return;
+        }
+
         this.loading = loading;
-        this.loadingIndex = index;
-        this.notifyDataSetChanged();
+        if (!loading)
+            loadingIds.clear();
+
+        // Only rebind the progressBar
+        notifyItemRangeChanged(0, getItemCount(), DeviceDiff.PAYLOAD_LOADING);
     }
 
     /**
@@ -101,6 +148,38 @@ public class OnOffAdapter extends RecyclerView.Adapter<OnOffAdapter.viewHolder>
         this.setLoading(loading, -1);
     }
 
+    /**
+     * Indicate whether a device should show progressbar loading, rebinding only that device
+     * @param loading if device should show progressBar loading
+     * @param deviceId ID of device
+     */
+    private void setLoading(boolean loading, String deviceId) {
+        boolean changed = loading ? loadingIds.add(deviceId) : loadingIds.remove(deviceId);
+        if (!changed)
+            return;
+
+        // Device may have moved while loading, find its current position
+        List<Device> devices = getCurrentList();
+        for (int i = 0; i < devices.size(); i++) {
+            if (devices.get(i).getId().equals(deviceId)) {
+                notifyItemChanged(i, DeviceDiff.PAYLOAD_LOADING);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Whether device should show progressBar loading
+     */
+    private boolean isLoading(Device device) {
+        return loading || loadingIds.contains(device.getId());
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return stableIds.get(getItem(position).getId());
+    }
+
     @Override
     public OnOffAdapter.viewHolder onCreateViewHolder(ViewGroup parent,
                                                      int viewType) {
@@ -114,84 +193,87 @@ public class OnOffAdapter extends RecyclerView.Adapter<OnOffAdapter.viewHolder>
     @Override
     // Replace the contents of a view (invoked by the layout manager)
     public void onBindViewHolder(viewHolder holder, int position) {
-        Device device = devices.get(position);
+        Device device = getItem(position);
 
-        holder.onOffIcon.setImageBitmap(device.getIconImage());
+        IconCache.getInstance(holder.onOffIcon.getContext()).into(device.getIconId(), holder.onOffIcon);
         holder.onOffTitle.setText(device.getName());
+        holder.bindLoading(isLoading(device));
+        holder.bindState(device);
+    }
 
-        // Indicate whether progressBar should be shown
-        if(loading && (loadingIndex == position || loadingIndex == -1))
-            holder.progressBar.setVisibility(View.VISIBLE);
-        else
-            holder.progressBar.setVisibility(View.INVISIBLE);
+    @Override
+    // Rebind only the changed parts of a view, name and icon are kept
+    public void onBindViewHolder(@NonNull viewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
 
-        // define background color
-        int color_id = device.isOn() ? R.color.device_on : R.color.device_off;
+        Device device = getItem(position);
+        for (Object payload : payloads) {
+            if (payload == DeviceDiff.PAYLOAD_STATE)
+                holder.bindState(device);
+            else if (payload == DeviceDiff.PAYLOAD_LOADING)
+                holder.bindLoading(isLoading(device));
+        }
+    }
 
-        GradientDrawable bgShape = (GradientDrawable)holder.onOffFragment.getBackground();
-        String color = holder.onOffFragment.getContext().getResources().getString(0+color_id);
-        bgShape.setColor(Color.parseColor(color));
+    @Override
+    public void onViewRecycled(@NonNull viewHolder holder) {
+        RotaryDimmer.stop(holder.onOffFragment);
     }
 
     @Override
     public void onClick(View view, int position) {
-        Device device = this.devices.get(position);
-        setLoading(true, position);
+        // Tap ends dimming mode instead of toggling
+        if (RotaryDimmer.stop(view) || position < 0 || position >= getItemCount())
+            return;
 
-        device.turnOnOff().enqueue(new Callback<Map<String, Object>>() {
+        // New state is shown right away, the stored update is diffed into the list
+        ToggleController.getInstance().toggle(getItem(position), new ToggleController.ToggleListener() {
             @Override
-            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
-                boolean status = true;
-
-                // get status from call and update device, if button no value is returned
-                if(response.body().containsKey("value"))
-                    status = (boolean) response.body().get("value");
-
-                device.setOn(status);
-                DeviceRepository.getInstance().update(device);
-
-                int color_id = device.isOn() ? R.color.device_on : R.color.device_off;
-                GradientDrawable bgShape = (GradientDrawable)view.getBackground();
-                String color = view.getContext().getResources().getString(0+color_id);
-                bgShape.setColor(Color.parseColor(color));
-
+            public void onToggled(Device device, boolean on) {
                 // If device is button, background never changes so notify via Toast message
                 if(device.isButton()) {
                     String text = view.getResources().getString(R.string.button_press, device.getName());
                     Toast.makeText(view.getContext(), text, Toast.LENGTH_LONG).show();
                 }
-
-                setLoading(false, position);
             }
 
             @Override
-            public void onFailure(Call call, Throwable t) {
-                setLoading(false, position);
-                Timber.e(t, "Failed to turn onoff");
-                // Show popup if fail to turn on or off
+            public void onFailed(Device device, Throwable error) {
+                // Show popup if fail to turn on or off, the previous state is already restored
+                view.performHapticFeedback(HapticFeedbackConstants.REJECT);
                 Toast.makeText(view.getContext(), R.string.fail_turnonoff, Toast.LENGTH_LONG).show();
             }
+
+            @Override
+            public void onQueued(Device device, boolean on) {
+                // New state is kept and sent once the Homey is reachable
+                Toast.makeText(view.getContext(), R.string.command_queued, Toast.LENGTH_LONG).show();
+            }
         });
     }
 
+    @Override
+    public boolean onLongClick(View view, int position) {
+        if (position < 0 || position >= getItemCount())
+            return false;
+
+        // Dim device with the rotary crown, if dimmable
+        return RotaryDimmer.start(view, view.findViewById(R.id.message), getItem(position));
+    }
+
     /**
-     * Set new list of devices then update view
+     * Set new list of devices, changes are computed in the background then only changed items
+     * are updated
      * @param devices devices list to set
      */
     public void setDevices(List<Device> devices){
         Timber.d("on setDevices");
 
-        if(devices.size() > 0) {
-            this.devices = devices;
-            this.notifyDataSetChanged();
-        }
+        if(devices.size() > 0)
+            submitList(devices);
     }
-
-    @Override
-    public int getItemCount() {
-        if(devices == null)
-            return 0;
-
-        return devices.size();
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,186 @@
+package com.xseth.homey.adapters;
+
+import android.content.Context;
+import android.view.HapticFeedbackConstants;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewParent;
+import android.widget.TextView;
+
+import androidx.core.view.InputDeviceCompat;
+import androidx.core.view.ViewConfigurationCompat;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.xseth.homey.R;
+import com.xseth.homey.homey.CommandCoalescer;
+import com.xseth.homey.homey.CommandJournal;
+import com.xseth.homey.homey.HomeStateStore;
+import com.xseth.homey.homey.models.Device;
+
+import java.util.Map;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import timber.log.Timber;
+
+/**
+ * Dims a device with the rotary crown while its tile is in dimming mode.
+ *
+ * Dimming mode is started by a long press on the tile and ends with a tap or once the tile loses
+ * focus. While dimming the tile takes the rotary input instead of the list, shows the brightness
+ * and streams it to the Homey via the CommandCoalescer, so only the latest brightness is sent at
+ * a bounded rate. Only one tile dims at a time.
+ */
+class RotaryDimmer implements View.OnGenericMotionListener, View.OnFocusChangeListener {
+
+    // Capability dimming devices
+    private static final String CAPABILITY = "dim";
+    // Part of the brightness range changed per scrolled tile height
+    private static final double SPEED = 0.5;
+
+    // Dimmer of the tile in dimming mode, null if none
+    private static RotaryDimmer active;
+
+    // Tile of the dimmed device
+    private final View tile;
+    // Label of the tile, shows the brightness while dimming
+    private final TextView label;
+    // Dimmed device
+    private final Device device;
+    // Pixels scrolled per rotary scroll unit
+    private final float scrollFactor;
+    // Brightness between 0 and 1 as scrolled, small scrolls add up
+    private double level;
+    // Shown brightness, level rounded to whole percentages
+    private double dim;
+    // Callback of written brightness, notifies failures while dimming
+    private final Callback<Map<String, Object>> written = new Callback<Map<String, Object>>() {
+        @Override
+        public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+            if (!response.isSuccessful())
+                onFailure(call, null);
+        }
+
+        @Override
+        public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+            // Unreachable Homey is not rejecting, the brightness is replayed later
+            if (active == RotaryDimmer.this && !CommandJournal.isOffline(t))
+                tile.performHapticFeedback(HapticFeedbackConstants.REJECT);
+        }
+    };
+
+    /**
+     * Start dimming mode of a tile
+     * @param tile tile of device, receives the rotary input
+     * @param label label of tile showing the brightness
+     * @param device device of tile
+     * @return if dimming mode started, false if device cannot be dimmed
+     */
+    static boolean start(View tile, TextView label, Device device) {
+        stop();
+
+        // Brightness is not stored, the device in the store has the latest value
+        Device current = HomeStateStore.getInstance().getSnapshot().getDevice(device.getId());
+        Double dim = current == null ? null : current.getDim();
+        if (dim == null)
+            return false;
+
+        active = new RotaryDimmer(tile, label, current, dim);
+        tile.setOnGenericMotionListener(active);
+        tile.setFocusableInTouchMode(true);
+        tile.requestFocus();
+        tile.setOnFocusChangeListener(active);
+        tile.performHapticFeedback(HapticFeedbackConstants.LONG_PRESS);
+        active.show();
+
+        Timber.d("Start dimming %s at %.2f", device.getName(), dim);
+        return true;
+    }
+
+    /**
+     * Stop dimming mode of a tile
+     * @param tile tile of device
+     * @return if the tile was in dimming mode
+     */
+    static boolean stop(View tile) {
+        if (active == null || active.tile != tile)
+            return false;
+
+        stop();
+        return true;
+    }
+
+    /**
+     * Stop dimming mode of the tile in dimming mode, if any
+     */
+    private static void stop() {
+        RotaryDimmer dimmer = active;
+        if (dimmer == null)
+            return;
+
+        active = null;
+        dimmer.tile.setOnGenericMotionListener(null);
+        dimmer.tile.setOnFocusChangeListener(null);
+        dimmer.tile.setFocusableInTouchMode(false);
+        dimmer.label.setText(dimmer.device.getName());
+
+        // Return the rotary input to the list
+        ViewParent parent = dimmer.tile.getParent();
+        while (parent != null && !(parent instanceof RecyclerView))
+            parent = parent.getParent();
+        if (parent != null)
+            ((RecyclerView) parent).requestFocus();
+
+        Timber.d("Stop dimming %s at %.2f", dimmer.device.getName(), dimmer.dim);
+    }
+
+    private RotaryDimmer(View tile, TextView label, Device device, double dim) {
+        Context context = tile.getContext();
+
+        this.tile = tile;
+        this.label = label;
+        this.device = device;
+        this.level = dim;
+        this.dim = dim;
+        this.scrollFactor = ViewConfigurationCompat.getScaledVerticalScrollFactor(
+                ViewConfiguration.get(context), context);
+    }
+
+    /**
+     * Show brightness as percentage in the label
+     */
+    private void show() {
+        label.setText(label.getContext().getString(R.string.dim_level, Math.round(dim * 100)));
+    }
+
+    @Override
+    public boolean onGenericMotion(View v, MotionEvent event) {
+        if (event.getAction() != MotionEvent.ACTION_SCROLL ||
+                !event.isFromSource(InputDeviceCompat.SOURCE_ROTARY_ENCODER))
+            return false;
+
+        // Turning the crown clockwise scrolls down, which brightens
+        float pixels = -event.getAxisValue(MotionEvent.AXIS_SCROLL) * scrollFactor;
+        level = Math.max(0, Math.min(1, level + pixels / Math.max(tile.getHeight(), 1) * SPEED));
+
+        double next = Math.round(level * 100) / 100.0;
+        if (next == dim)
+            return true;
+
+        dim = next;
+        show();
+
+        HomeStateStore.getInstance().updateCapability(device.getId(), CAPABILITY, dim);
+        CommandCoalescer.getInstance().submit(device.getId(), CAPABILITY, dim, written);
+
+        return true;
+    }
+
+    @Override
+    public void onFocusChange(View v, boolean hasFocus) {
+        if (!hasFocus)
+            stop(tile);
+    }
+}
@@ -1,7 +1,6 @@
 package com.xseth.homey.adapters;
 
-import android.graphics.Color;
-import android.graphics.drawable.GradientDrawable;
+import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,29 +9,34 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.cardview.widget.CardView;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.xseth.homey.R;
-import com.xseth.homey.homey.DeviceRepository;
+import com.xseth.homey.homey.ToggleController;
 import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.storage.IconCache;
+import com.xseth.homey.utils.StableIds;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
-import timber.log.Timber;
 
 /**
  * Adapter for displaying devices in a grid layout
  */
-public class ZoneDeviceAdapter extends RecyclerView.Adapter<ZoneDeviceAdapter.DeviceViewHolder> {
+public class ZoneDeviceAdapter extends ListAdapter<Device, ZoneDeviceAdapter.DeviceViewHolder> {
+
+    // Stable item IDs of devices
+    private final StableIds stableIds = new StableIds();
 
-    private List<Device> devices = new ArrayList<>();
-    private int loadingIndex = -1;
+    /**
+     * ZoneDeviceAdapter constructor, lists are compared on a background thread
+     */
+    public ZoneDeviceAdapter() {
+        super(new DeviceDiff());
+        setHasStableIds(true);
+    }
 
     @Override
     public DeviceViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -43,27 +47,42 @@ public class ZoneDeviceAdapter extends RecyclerView.Adapter<ZoneDeviceAdapter.De
 
     @Override
     public void onBindViewHolder(DeviceViewHolder holder, int position) {
-        Device device = devices.get(position);
-        holder.bind(device, position == loadingIndex);
+        holder.bind(getItem(position));
     }
 
     @Override
-    public int getItemCount() {
-        return devices.size();
+    // Rebind only the changed parts of a view, name and icon are kept
+    public void onBindViewHolder(@NonNull DeviceViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        holder.currentDevice = getItem(position);
+        for (Object payload : payloads) {
+            if (payload == DeviceDiff.PAYLOAD_STATE)
+                holder.bindState();
+        }
     }
 
-    public void setDevices(List<Device> devices) {
-        this.devices = devices;
-        notifyDataSetChanged();
+    @Override
+    public void onViewRecycled(@NonNull DeviceViewHolder holder) {
+        RotaryDimmer.stop(holder.cardView);
     }
 
-    public void setLoading(int index) {
-        this.loadingIndex = index;
-        notifyDataSetChanged();
+    @Override
+    public long getItemId(int position) {
+        return stableIds.get(getItem(position).getId());
     }
 
-    public void refreshDeviceStates() {
-        notifyDataSetChanged();
+    /**
+     * Set new list of devices, changes are computed in the background then only changed items
+     * are updated
+     * @param devices devices list to set
+     */
+    public void setDevices(List<Device> devices) {
+        submitList(devices);
     }
 
     class DeviceViewHolder extends RecyclerView.ViewHolder {
@@ -72,6 +91,9 @@ public class ZoneDeviceAdapter extends RecyclerView.Adapter<ZoneDeviceAdapter.De
         private TextView deviceName;
         private ProgressBar progressBar;
         private Device currentDevice;
+        // Background colors of devices which are on and off
+        private final int colorOn;
+        private final int colorOff;
 
         public DeviceViewHolder(View itemView) {
             super(itemView);
@@ -79,72 +101,62 @@ public class ZoneDeviceAdapter extends RecyclerView.Adapter<ZoneDeviceAdapter.De
             deviceIcon = itemView.findViewById(R.id.device_icon);
             deviceName = itemView.findViewById(R.id.device_name);
             progressBar = itemView.findViewById(R.id.progress_bar);
+            colorOn = itemView.getContext().getColor(R.color.device_on);
+            colorOff = itemView.getContext().getColor(R.color.device_off);
 
             cardView.setOnClickListener(v -> {
-                if (currentDevice != null) {
+                // Tap ends dimming mode instead of toggling
+                if (currentDevice != null && !RotaryDimmer.stop(cardView)) {
                     toggleDevice();
                 }
             });
+
+            // Dim device with the rotary crown, if dimmable
+            cardView.setOnLongClickListener(v ->
+                    currentDevice != null && RotaryDimmer.start(cardView, deviceName, currentDevice));
         }
 
-        public void bind(Device device, boolean isLoading) {
+        public void bind(Device device) {
             this.currentDevice = device;
-            
+
             deviceName.setText(device.getName());
-            deviceIcon.setImageBitmap(device.getIconImage());
-            
-            // Show/hide progress bar
-            progressBar.setVisibility(isLoading ? View.VISIBLE : View.GONE);
-            
-            // Set background color based on device state
-            updateCardColor();
+            IconCache.getInstance(deviceIcon.getContext()).into(device.getIconId(), deviceIcon);
+
+            // Toggles are shown right away, no need to wait for the Homey
+            progressBar.setVisibility(View.GONE);
+            bindState();
         }
 
-        private void updateCardColor() {
-            int colorId = currentDevice.isOn() ? R.color.device_on : R.color.device_off;
-            String colorString = cardView.getContext().getResources().getString(colorId);
-            cardView.setCardBackgroundColor(Color.parseColor(colorString));
+        /**
+         * Set background color based on device state
+         */
+        private void bindState() {
+            cardView.setCardBackgroundColor(currentDevice.isOn() ? colorOn : colorOff);
         }
 
         private void toggleDevice() {
-            int position = getAdapterPosition();
-            if (position == RecyclerView.NO_POSITION) return;
-            
-            setLoading(position);
-
-            currentDevice.turnOnOff().enqueue(new Callback<Map<String, Object>>() {
+            // New state is shown right away, the stored update is diffed into the list
+            ToggleController.getInstance().toggle(currentDevice, new ToggleController.ToggleListener() {
                 @Override
-                public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
-                    boolean status = true;
-
-                    if (response.body() != null && response.body().containsKey("value")) {
-                        status = (boolean) response.body().get("value");
-                    }
-
-                    currentDevice.setOn(status);
-                    
-                    // Update device repository if available (used by favorites view)
-                    DeviceRepository repo = DeviceRepository.getInstance();
-                    if (repo != null) {
-                        repo.update(currentDevice);
-                    }
-                    
-                    updateCardColor();
-
-                    if (currentDevice.isButton()) {
-                        String text = cardView.getContext().getString(R.string.button_press, currentDevice.getName());
+                public void onToggled(Device device, boolean on) {
+                    if (device.isButton()) {
+                        String text = cardView.getContext().getString(R.string.button_press, device.getName());
                         Toast.makeText(cardView.getContext(), text, Toast.LENGTH_SHORT).show();
                     }
-
-                    setLoading(-1);
                 }
 
                 @Override
-                public void onFailure(Call<Map<String, Object>> call, Throwable t) {
-                    setLoading(-1);
-                    Timber.e(t, "Failed to toggle device");
+                public void onFailed(Device device, Throwable error) {
+                    // Previous state is already restored
+                    cardView.performHapticFeedback(HapticFeedbackConstants.REJECT);
                     Toast.makeText(cardView.getContext(), R.string.fail_turnonoff, Toast.LENGTH_SHORT).show();
                 }
+
+                @Override
+                public void onQueued(Device device, boolean on) {
+                    // New state is kept and sent once the Homey is reachable
+                    Toast.makeText(cardView.getContext(), R.string.command_queued, Toast.LENGTH_SHORT).show();
+                }
             });
         }
     }
@@ -0,0 +1,135 @@
+package com.xseth.homey.diagnostics;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Menu;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.fragment.app.FragmentActivity;
+
+import com.xseth.homey.BuildConfig;
+import com.xseth.homey.R;
+import com.xseth.homey.utils.Metrics;
+import com.xseth.homey.utils.RequestMetrics;
+import com.xseth.homey.voice.VoiceTrace;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Hidden page showing the measured phases and sizes of HTTP requests per endpoint, the
+ * timelines of recent voice commands and the app metrics. Measurements can be exported as JSON
+ * to the external files directory of the app, from where they are pulled via adb.
+ */
+public class DiagnosticsActivity extends FragmentActivity {
+
+    // Name of exported file
+    private static final String EXPORT_FILE = "diagnostics.json";
+
+    // View showing the measurements
+    private TextView text;
+
+    /**
+     * Add diagnostics page to an action drawer menu, only in debug builds
+     * @param menu menu of the action drawer
+     */
+    public static void addMenuItem(Menu menu) {
+        if (!BuildConfig.DEBUG)
+            return;
+
+        menu.add(Menu.NONE, R.id.diagnostics, Menu.NONE, R.string.diagnostics_title)
+                .setIcon(R.drawable.ic_diagnostics);
+    }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        text = findViewById(R.id.diagnostics_text);
+        findViewById(R.id.export_button).setOnClickListener(v -> export());
+        findViewById(R.id.diagnostics_scroll).requestFocus(); // Focus required for rotary scrolling
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        show();
+    }
+
+    /**
+     * Show measurements per endpoint, recent voice commands and the app metrics
+     */
+    private void show() {
+        StringBuilder builder = new StringBuilder();
+
+        Map<String, RequestMetrics.Stat> stats = RequestMetrics.getAll();
+        if (stats.isEmpty())
+            builder.append(getString(R.string.diagnostics_empty)).append("\n\n");
+
+        for (Map.Entry<String, RequestMetrics.Stat> entry : stats.entrySet()) {
+            builder.append(entry.getKey()).append('\n')
+                    .append(entry.getValue().summarize()).append("\n\n");
+        }
+
+        for (VoiceTrace trace : VoiceTrace.getRecent()) {
+            builder.append('"').append(trace.getCommand()).append("\"\n")
+                    .append(trace.summarize()).append("\n\n");
+        }
+
+        for (Map.Entry<String, Long> entry : Metrics.snapshot().entrySet())
+            builder.append(entry.getKey()).append(" = ").append(entry.getValue()).append('\n');
+
+        text.setText(builder);
+    }
+
+    /**
+     * Get all measurements as JSON
+     * @return measurements per endpoint, recent voice commands and app metrics
+     */
+    private static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("exported_at", System.currentTimeMillis());
+        json.put("endpoints", RequestMetrics.toJson());
+        json.put("voice", VoiceTrace.toJsonAll());
+        json.put("metrics", new JSONObject(Metrics.snapshot()));
+        return json;
+    }
+
+    /**
+     * Write measurements as JSON to the external files directory of the app
+     */
+    private void export() {
+        File file = new File(getExternalFilesDir(null), EXPORT_FILE);
+        Handler handler = new Handler(Looper.getMainLooper());
+
+        new Thread(() -> {
+            boolean success;
+
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(toJson().toString(2).getBytes(StandardCharsets.UTF_8));
+                Timber.i("Exported diagnostics to %s", file);
+                success = true;
+            } catch (IOException | JSONException e) {
+                Timber.e(e, "Failed to export diagnostics");
+                success = false;
+            }
+
+            String message = success ?
+                    getString(R.string.diagnostics_exported, file.getAbsolutePath()) :
+                    getString(R.string.diagnostics_export_failed);
+            handler.post(() -> Toast.makeText(this, message, Toast.LENGTH_LONG).show());
+        }).start();
+    }
+}
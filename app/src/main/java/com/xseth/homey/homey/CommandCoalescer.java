@@ -0,0 +1,203 @@
+package com.xseth.homey.homey;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import timber.log.Timber;
+
+/**
+ * Coalesces writes of capability values, the latest value wins.
+ *
+ * Per capability of a device at most one write is in flight and one value is pending. A value
+ * submitted while another is pending replaces it, so intermediate values of e.g. quick taps or
+ * crown scrolls are never sent. Writes of the same capability are at least MIN_INTERVAL apart.
+ * Writes failing because the Homey is unreachable are recorded in the CommandJournal for replay.
+ * Only used on the main thread.
+ */
+public class CommandCoalescer {
+
+    // Minimum time in milliseconds between writes of the same capability
+    private static final long MIN_INTERVAL = 250;
+
+    /**
+     * Writes of a capability of a device
+     */
+    private static class Slot {
+        // Device and capability written
+        private final String deviceId;
+        private final String capabilityId;
+        // Whether a write is in flight
+        private boolean inFlight = false;
+        // Whether the next write is scheduled
+        private boolean scheduled = false;
+        // Whether a value is waiting to be written
+        private boolean hasPending = false;
+        // Latest value waiting to be written
+        private Object pending;
+        // Callbacks waiting for the pending value, including those of replaced values
+        private List<Callback<Map<String, Object>>> callbacks = new ArrayList<>();
+        // Time of last write
+        private long sentAt = 0;
+        // Wall clock time of last write
+        private long writtenAt = 0;
+
+        private Slot(String deviceId, String capabilityId) {
+            this.deviceId = deviceId;
+            this.capabilityId = capabilityId;
+        }
+    }
+
+    // CommandCoalescer instance
+    private static CommandCoalescer INSTANCE;
+
+    // Writes by device and capability
+    private final Map<String, Slot> slots = new HashMap<>();
+    // Handler scheduling writes on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Get instance of CommandCoalescer
+     * @return instance of CommandCoalescer
+     */
+    public static CommandCoalescer getInstance() {
+        if (INSTANCE == null)
+            INSTANCE = new CommandCoalescer();
+        return INSTANCE;
+    }
+
+    private CommandCoalescer() {}
+
+    /**
+     * Write value of a capability, replacing a value of that capability not yet sent
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param value value to set
+     * @param callback callback receiving the response of the write carrying this value or a
+     *                 later value, on the main thread. Called once per write, may be null
+     */
+    public void submit(String deviceId, String capabilityId, Object value,
+                       Callback<Map<String, Object>> callback) {
+        String key = deviceId + "/" + capabilityId;
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            slot = new Slot(deviceId, capabilityId);
+            slots.put(key, slot);
+        }
+
+        if (slot.hasPending)
+            Timber.d("Replace %s of %s by %s", slot.pending, key, value);
+
+        slot.pending = value;
+        slot.hasPending = true;
+        if (callback != null && !slot.callbacks.contains(callback))
+            slot.callbacks.add(callback);
+
+        if (!slot.inFlight && !slot.scheduled)
+            schedule(key, slot);
+    }
+
+    /**
+     * Whether a value of a capability is written or waiting to be written since a time
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param time wall clock time
+     * @return if a newer value than one of that time is written
+     */
+    public boolean isWrittenSince(String deviceId, String capabilityId, long time) {
+        Slot slot = slots.get(deviceId + "/" + capabilityId);
+        return slot != null && (slot.hasPending || slot.writtenAt > time);
+    }
+
+    /**
+     * Write pending value once the previous write is MIN_INTERVAL ago
+     */
+    private void schedule(String key, Slot slot) {
+        long wait = slot.sentAt + MIN_INTERVAL - SystemClock.uptimeMillis();
+
+        if (wait <= 0) {
+            send(key, slot);
+            return;
+        }
+
+        slot.scheduled = true;
+        handler.postDelayed(() -> {
+            slot.scheduled = false;
+            send(key, slot);
+        }, wait);
+    }
+
+    /**
+     * Write pending value, once the HomeyAPI is authenticated
+     */
+    private void send(String key, Slot slot) {
+        Object value = slot.pending;
+        List<Callback<Map<String, Object>>> callbacks = slot.callbacks;
+
+        slot.pending = null;
+        slot.hasPending = false;
+        slot.callbacks = new ArrayList<>();
+        slot.inFlight = true;
+        slot.sentAt = SystemClock.uptimeMillis();
+        slot.writtenAt = System.currentTimeMillis();
+
+        long writtenAt = slot.writtenAt;
+        HomeyAPI api = HomeyAPI.getAPI();
+        Callback<Map<String, Object>> done = new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                // Keep the fetched device list in line with the Homey, rejected values are not
+                if (response.isSuccessful())
+                    api.patchDevice(slot.deviceId, slot.capabilityId, value);
+
+                // Homey is reached, older recorded values of this capability are superseded and
+                // other recorded values can be replayed
+                CommandJournal journal = CommandJournal.getInstance();
+                if (journal != null) {
+                    journal.discard(slot.deviceId, slot.capabilityId, writtenAt);
+                    journal.onReachable();
+                }
+
+                complete(key, slot);
+                for (Callback<Map<String, Object>> callback : callbacks)
+                    callback.onResponse(call, response);
+            }
+
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                Timber.e(t, "Failed to set %s to %s", key, value);
+
+                // Recorded before a pending value is written, so a success of that value drops it
+                CommandJournal journal = CommandJournal.getInstance();
+                if (journal != null && CommandJournal.isOffline(t))
+                    journal.record(slot.deviceId, slot.capabilityId, value);
+
+                complete(key, slot);
+                for (Callback<Map<String, Object>> callback : callbacks)
+                    callback.onFailure(call, t);
+            }
+        };
+
+        api.deferCall(() -> api.setCapabilityValue(slot.deviceId, slot.capabilityId, value))
+                .enqueue(done);
+    }
+
+    /**
+     * Finish write in flight, writing the value submitted meanwhile if any
+     */
+    private void complete(String key, Slot slot) {
+        slot.inFlight = false;
+
+        // Slot is kept, so the interval also holds for the next submitted value
+        if (slot.hasPending)
+            schedule(key, slot);
+    }
+}
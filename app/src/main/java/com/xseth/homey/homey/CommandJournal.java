@@ -0,0 +1,217 @@
+package com.xseth.homey.homey;
+
+import android.app.Application;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.xseth.homey.storage.CommandDAO;
+import com.xseth.homey.storage.HomeyRoomDatabase;
+import com.xseth.homey.storage.PendingCommand;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import timber.log.Timber;
+
+/**
+ * Journal of capability writes which could not reach the Homey, stored in room.
+ *
+ * Writes failing because the Homey is unreachable are recorded, only the latest value per
+ * capability of a device is kept. Once a network is available, or the Homey is reached again
+ * while the network stayed up, the recorded writes are replayed in order, one at a time, so
+ * reconnecting does not cause a burst of requests. Writes are dropped once answered by the
+ * Homey, once expired or once a newer value is written.
+ */
+public class CommandJournal {
+
+    // Time in milliseconds a write is kept, later the user no longer expects it to happen
+    private static final long TTL = 15 * 60 * 1000;
+
+    // CommandJournal instance
+    private static volatile CommandJournal instance;
+    // Command DAO for room access
+    private final CommandDAO commandDAO;
+    // Handler replaying on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Whether writes are being replayed, only accessed on the main thread
+    private boolean replaying = false;
+    // Whether writes may be recorded, writes of a previous run are unknown until replayed
+    private volatile boolean recorded = true;
+    // Lock ordering recording a write with finding no writes, so a new write is never missed
+    private final Object recordLock = new Object();
+
+    /**
+     * Get instance of CommandJournal
+     * @return instance of CommandJournal, null if not built
+     */
+    public static CommandJournal getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get instance of CommandJournal, built if needed
+     * @param application application used to create room and observe connectivity
+     * @return instance of CommandJournal
+     */
+    public static CommandJournal getInstance(Application application) {
+        if (instance == null) {
+            synchronized (CommandJournal.class) {
+                if (instance == null)
+                    instance = new CommandJournal(application);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * CommandJournal constructor
+     * @param application application used to create room and observe connectivity
+     */
+    private CommandJournal(Application application) {
+        commandDAO = HomeyRoomDatabase.getDatabase(application).commandDAO();
+
+        // Called right away if a network is available, replaying writes of a previous run
+        ConnectivityManager connectivity = application.getSystemService(ConnectivityManager.class);
+        connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                handler.post(CommandJournal.this::replay);
+            }
+        });
+    }
+
+    /**
+     * Whether a write failed because the Homey is unreachable, rather than being rejected
+     * @param error cause of the failure, may be null
+     * @return if the write may succeed once replayed
+     */
+    public static boolean isOffline(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException) &&
+                error.getCause() != null)
+            error = error.getCause();
+
+        return error instanceof IOException;
+    }
+
+    /**
+     * Record a write which could not reach the Homey, replacing a recorded value of the same
+     * capability
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param value value to set
+     */
+    public void record(String deviceId, String capabilityId, Object value) {
+        long now = System.currentTimeMillis();
+        PendingCommand command = PendingCommand.of(deviceId, capabilityId, value, now, now + TTL);
+
+        Timber.i("Record %s of %s for replay", capabilityId, deviceId);
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
+            synchronized (recordLock) {
+                commandDAO.putCommand(command);
+                recorded = true;
+            }
+        });
+    }
+
+    /**
+     * Drop a recorded write, as a newer value is written
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param before wall clock time at which the newer value is sent, writes recorded later
+     *               are kept
+     */
+    public void discard(String deviceId, String capabilityId, long before) {
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() ->
+                commandDAO.deleteCommand(deviceId, capabilityId, before));
+    }
+
+    /**
+     * Replay recorded writes, as the Homey is reached, e.g. a write succeeded or the realtime
+     * connection is established. Does nothing if no writes are recorded. May be called on any
+     * thread.
+     */
+    public void onReachable() {
+        if (recorded)
+            handler.post(this::replay);
+    }
+
+    /**
+     * Replay recorded writes in order, one at a time. Replaying stops at the first write which
+     * cannot reach the Homey, the remaining writes are replayed once a network is available or
+     * the Homey is reached again. Only called on the main thread.
+     */
+    public void replay() {
+        if (replaying)
+            return;
+
+        replaying = true;
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
+            int expired = commandDAO.deleteExpired(System.currentTimeMillis());
+            List<PendingCommand> commands;
+
+            synchronized (recordLock) {
+                commands = commandDAO.getCommands();
+                if (commands.isEmpty())
+                    recorded = false;
+            }
+
+            Timber.d("Replay %d writes, %d expired", commands.size(), expired);
+
+            handler.post(() -> replayNext(commands.iterator()));
+        });
+    }
+
+    /**
+     * Replay next recorded write
+     * @param commands writes left to replay
+     */
+    private void replayNext(Iterator<PendingCommand> commands) {
+        if (!commands.hasNext()) {
+            replaying = false;
+            return;
+        }
+
+        PendingCommand command = commands.next();
+        String deviceId = command.getDeviceId();
+        String capabilityId = command.getCapabilityId();
+        CommandCoalescer coalescer = CommandCoalescer.getInstance();
+
+        // A newer value is written meanwhile, which also drops this write
+        if (coalescer.isWrittenSince(deviceId, capabilityId, command.getCreatedAt())) {
+            replayNext(commands);
+            return;
+        }
+
+        Object value = command.getValue();
+        coalescer.submit(deviceId, capabilityId, value, new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                if (response.isSuccessful())
+                    HomeStateStore.getInstance().updateCapability(deviceId, capabilityId, value);
+
+                replayNext(commands);
+            }
+
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                if (isOffline(t)) {
+                    replaying = false;
+                    return;
+                }
+
+                // Homey may have applied the write, replaying it again would not help
+                discard(deviceId, capabilityId, command.getCreatedAt());
+                replayNext(commands);
+            }
+        });
+    }
+}
@@ -1,26 +1,46 @@
 package com.xseth.homey.homey;
 
 import android.app.Application;
+import android.os.Handler;
+import android.os.Looper;
 
 import androidx.lifecycle.LiveData;
 
 import com.xseth.homey.homey.models.Device;
 import com.xseth.homey.storage.DeviceDAO;
 import com.xseth.homey.storage.HomeyRoomDatabase;
+import com.xseth.homey.storage.IconCache;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import timber.log.Timber;
 
 public class DeviceRepository {
 
+    // Time in MS the realtime connection is kept open after the last screen stopped
+    private static final long REALTIME_LINGER = 60 * 1000;
+    // Source of snapshots holding fetched favorites, which are written to room separately
+    private static final Object FETCHED = new Object();
+
     // DeviceRepository instance
     private static DeviceRepository instance;
     // Device DAO for room access
     private DeviceDAO deviceDAO;
+    // Cache holding device icons
+    private IconCache iconCache;
     // LiveData of devices
     private LiveData<List<Device>> devices;
+    // Realtime connection pushing capability updates, null if not started
+    private HomeyRealtime realtime;
+    // Handler used to delay closing the realtime connection
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // Task closing the realtime connection
+    private final Runnable closeRealtime = this::closeRealtime;
 
     /**
      * Get instance of DeviceRepository
@@ -48,6 +68,10 @@ public class DeviceRepository {
         HomeyRoomDatabase db = HomeyRoomDatabase.getDatabase(application);
         deviceDAO = db.deviceDAO();
         devices = deviceDAO.getDevices();
+        iconCache = IconCache.getInstance(application);
+
+        // Keep stored favorites in sync with changes made anywhere in the app
+        HomeStateStore.getInstance().addListener(this::onStateChanged);
     }
 
     /**
@@ -61,14 +85,23 @@ public class DeviceRepository {
                 Timber.i("No saved devices, gathering");
                 HomeyAPI api = HomeyAPI.getAPI();
 
-                // Wait for HomeyAPI to be ready
-                api.waitForHomeyAPI();
+                // Gather once HomeyAPI is ready
+                api.runWhenReady(() -> {
+                    // Save the devices in DB
+                    Map<String, Device> newDevices = api.getDevices();
+                    for (Device dev : newDevices.values()) {
+                        // Load icon in background, so it is cached once the device is shown
+                        iconCache.get(dev.getIconId());
+                    }
+                    this.insertAll(new ArrayList<>(newDevices.values()));
+                    publish(api, newDevices);
 
-                // Save the devices in DB
-                for (Device dev : api.getDevices().values()) {
-                    dev.fetchIconImage();
-                    this.insert(dev);
-                }
+                    // Receive updates for the new devices as well
+                    setRealtimeDevices(newDevices.keySet());
+                }).exceptionally(e -> {
+                    Timber.e(e, "Failed to gather devices");
+                    return null;
+                });
             }
         }).start();
 
@@ -76,29 +109,163 @@ public class DeviceRepository {
     }
 
     /**
-     * Ensure saved devices object has the current onoff status
+     * Ensure saved devices object has the current onoff status, once the HomeyAPI is ready
+     * @return future completing once the statuses are written to room
      */
-    public void refreshDeviceStatuses(){
-        Timber.i("Refreshing device statuses");
-
+    public CompletableFuture<Void> refreshDeviceStatuses(){
         HomeyAPI api = HomeyAPI.getAPI();
 
-        // Wait for homey API is authenticated
-        api.waitForHomeyAPI();
+        return api.callWhenReady(() -> {
+            Timber.i("Refreshing device statuses");
+
+            HomeyAPI.Favorites favorites = api.getFavorites();
+
+            // Failed fetch returns no devices, keep stored devices instead of removing all
+            if(favorites.getDevices().isEmpty())
+                Timber.w("No devices retrieved, skip refreshing statuses");
+
+            return favorites;
+        }).thenCompose(favorites -> {
+            Map<String, Device> newDevices = favorites.getDevices();
+            if (newDevices.isEmpty())
+                return CompletableFuture.completedFuture(null);
+
+            publish(api, newDevices);
+            setRealtimeDevices(newDevices.keySet());
+
+            // Homey is reachable, replay writes recorded while it was not
+            CommandJournal journal = CommandJournal.getInstance();
+            if (journal != null)
+                journal.onReachable();
+
+            return CompletableFuture.runAsync(() -> {
+                // Favorites missing from a partial fetch are kept, only fetched ones are updated
+                int changes = deviceDAO.syncStatuses(newDevices, favorites.isComplete());
+                Timber.i("Refreshed device statuses, %d changes", changes);
+            }, HomeyRoomDatabase.databaseWriteExecutor);
+        });
+    }
+
+    /**
+     * Set favorites receiving updates via the realtime connection, removed favorites are
+     * unsubscribed. Nothing fetched is a failed fetch and ignored
+     * @param deviceIds IDs of favorite devices
+     */
+    private synchronized void setRealtimeDevices(Collection<String> deviceIds){
+        if (realtime != null && !deviceIds.isEmpty())
+            realtime.setDevices(deviceIds);
+    }
+
+    /**
+     * Publish fetched favorites to the HomeStateStore, without fetching all devices. The caller
+     * writes them to room, so the snapshot is not stored again
+     * @param api HomeyAPI which fetched the favorites
+     * @param favorites fetched favorites by ID
+     */
+    private static void publish(HomeyAPI api, Map<String, Device> favorites){
+        // Favorites may be taken from the shared device list, publish it if so
+        Map<String, Device> all = api.peekAllDevices();
+        if (all != null)
+            HomeStateStore.getInstance().setDevices(all, FETCHED);
+        else
+            HomeStateStore.getInstance().updateDevices(favorites, FETCHED);
+    }
 
-        Map<String, Device> newDevices = api.getDevices();
+    /**
+     * Start receiving capability updates from the Homey, patching the stored devices, once the
+     * HomeyAPI is ready
+     * @return future completing once the realtime connection is started
+     */
+    public CompletableFuture<Void> startRealtime(){
+        HomeyAPI api = HomeyAPI.getAPI();
+
+        return api.runWhenReady(() -> {
+            synchronized (this) {
+                handler.removeCallbacks(closeRealtime);
 
-        for(Device device : this.devices.getValue()){
-            Device tmpDevice = newDevices.get(device.getId());
+                if (realtime == null) {
+                    realtime = api.createRealtime(this::onCapabilityChanged);
+                    realtime.connect();
+                }
 
-            // If favorite Device is removed, tmpDevice will be None, so remove it
-            if(tmpDevice == null)
-                DeviceRepository.getInstance().deleteDevice(device);
-            else {
-                device.setOn(tmpDevice.getCapabilityValue(device.getCapability()));
-                this.update(device);
+                realtime.setDevices(deviceDAO.getDeviceIds());
             }
+        });
+    }
+
+    /**
+     * Stop receiving capability updates. The connection lingers for a while so quickly
+     * returning to a screen does not require a full refresh.
+     */
+    public void stopRealtime(){
+        handler.postDelayed(closeRealtime, REALTIME_LINGER);
+    }
+
+    /**
+     * Whether devices are kept up to date via the realtime connection
+     * @return if the realtime connection is established
+     */
+    public synchronized boolean isRealtimeConnected(){
+        return realtime != null && realtime.isConnected();
+    }
+
+    /**
+     * Close the realtime connection
+     */
+    private synchronized void closeRealtime(){
+        if (realtime == null)
+            return;
+
+        Timber.i("Closing realtime connection");
+        realtime.close();
+        realtime = null;
+    }
+
+    /**
+     * Patch a stored device with a capability value pushed by the Homey
+     * @param deviceId device which is changed
+     * @param capabilityId capability which is changed
+     * @param value new value of capability
+     */
+    private void onCapabilityChanged(String deviceId, String capabilityId, Object value){
+        // Keep the fetched device list in line with the Homey
+        HomeyAPI.getAPI().patchDevice(deviceId, capabilityId, value);
+
+        Timber.d("Push %s, %s --> %s", deviceId, capabilityId, value);
+        if (HomeStateStore.getInstance().updateCapability(deviceId, capabilityId, value))
+            return;
+
+        // Favorites shown from room before the first fetch are not in the store yet
+        if (value instanceof Boolean)
+            setOn(deviceId, capabilityId, (Boolean) value);
+    }
+
+    /**
+     * Store on values of changed devices in a single transaction, stored devices which are not
+     * changed are not written
+     * @param snapshot new state of the home
+     * @param changedDeviceIds devices which are changed
+     */
+    private void onStateChanged(HomeStateStore.Snapshot snapshot, Set<String> changedDeviceIds){
+        // Fetched favorites are already written by syncStatuses or insertAll
+        if (snapshot.getSource() == FETCHED)
+            return;
+
+        List<Device> changed = new ArrayList<>();
+        for (String id : changedDeviceIds) {
+            Device device = snapshot.getDevice(id);
+            if (device != null)
+                changed.add(device);
         }
+
+        if (changed.isEmpty())
+            return;
+
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
+            int changes = deviceDAO.setOnAll(changed);
+            if (changes > 0)
+                Timber.i("Synced %d of %d changed devices", changes, changed.size());
+        });
     }
 
     /**
@@ -120,17 +287,43 @@ public class DeviceRepository {
         });
     }
 
+    /**
+     * Add devices to DB in a single transaction
+     * @param devices devices to add
+     */
+    public void insertAll(final List<Device> devices) {
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
+            Timber.i("Insert %d devices", devices.size());
+            deviceDAO.insertAll(devices);
+        });
+    }
+
     /**
      * Update a device in room
      * @param device device to update
      */
     public void update(final Device device) {
+        HomeStateStore.getInstance().setOn(device.getId(), device.isOn());
+
         HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
             deviceDAO.updateDevices(device);
             Timber.i("Update %s --> %s", device.getName(), device.isOn());
         });
     }
 
+    /**
+     * Set on value of a device, without writing other fields of the stored device
+     * @param deviceId device to change
+     * @param capability capability used by the app
+     * @param on new on value
+     */
+    public void setOn(String deviceId, String capability, boolean on) {
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> {
+            if (deviceDAO.setOn(deviceId, capability, on) > 0)
+                Timber.i("Update %s --> %s", deviceId, on);
+        });
+    }
+
     /**
      * Delete device in room
      * @param device device to delete
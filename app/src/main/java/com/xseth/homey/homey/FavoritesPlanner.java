@@ -0,0 +1,120 @@
+package com.xseth.homey.homey;
+
+import com.xseth.homey.homey.services.HomeyService;
+import com.xseth.homey.utils.Metrics;
+import com.xseth.homey.utils.RequestMetrics;
+
+import timber.log.Timber;
+
+/**
+ * Chooses how the values of favorite devices are fetched.
+ *
+ * Favorites are fetched either one request per device, or with the list of all devices. Per
+ * device is chosen if it transfers fewer bytes without being much slower, as estimated from the
+ * measured size and latency of both requests. Per device is only tried without an estimate
+ * favoring it if the favorites take few rounds of requests, so trying it stays cheap. Every
+ * decision and its cost is kept in Metrics.
+ */
+public class FavoritesPlanner {
+
+    /**
+     * Way of fetching favorites
+     */
+    public enum Strategy {
+        // One request per favorite device
+        PER_DEVICE,
+        // List of all devices
+        BULK
+    }
+
+    // Endpoints of fetching a single device and all devices
+    private static final String DEVICE = RequestMetrics.endpoint(HomeyService.class, "getDevice");
+    private static final String DEVICES = RequestMetrics.endpoint(HomeyService.class, "getDevices");
+
+    // Number of requests the Homey is assumed to serve at once
+    private static final int CONCURRENCY = 4;
+    // Per device may be this much slower than bulk, as it transfers fewer bytes
+    private static final double LATENCY_SLACK = 1.5;
+    // Number of decisions after which the other strategy is tried, so its costs stay current
+    private static final int EXPLORE_EVERY = 20;
+    // Most favorites per device is tried for without an estimate favoring it, two rounds
+    private static final int EXPLORE_MAX_FAVORITES = 2 * CONCURRENCY;
+
+    // Number of decisions made
+    private int decisions = 0;
+
+    /**
+     * Choose how to fetch favorites
+     * @param favorites number of favorite devices
+     * @return strategy to fetch favorites with
+     */
+    public synchronized Strategy choose(int favorites) {
+        decisions++;
+
+        RequestMetrics.Stat single = RequestMetrics.get(DEVICE);
+        RequestMetrics.Stat bulk = RequestMetrics.get(DEVICES);
+        Strategy strategy;
+
+        if (single == null || bulk == null) {
+            // Try both once, starting with per device if that takes a single round of requests.
+            // Many favorites are not tried per device, the cost of a single device is then
+            // measured by other fetches of a device
+            strategy = single == null && (bulk != null ? favorites <= EXPLORE_MAX_FAVORITES :
+                    favorites <= CONCURRENCY) ? Strategy.PER_DEVICE : Strategy.BULK;
+        } else {
+            long perDeviceMillis = estimateMillis(single, favorites);
+            long perDeviceBytes = Math.round(single.getBytes() * favorites);
+
+            strategy = perDeviceBytes < bulk.getBytes() &&
+                    perDeviceMillis <= bulk.getMillis() * LATENCY_SLACK ?
+                    Strategy.PER_DEVICE : Strategy.BULK;
+
+            if (decisions % EXPLORE_EVERY == 0 &&
+                    (strategy == Strategy.PER_DEVICE || favorites <= EXPLORE_MAX_FAVORITES))
+                strategy = strategy == Strategy.BULK ? Strategy.PER_DEVICE : Strategy.BULK;
+
+            Metrics.set("favorites.estimate.per_device.ms", perDeviceMillis);
+            Metrics.set("favorites.estimate.per_device.bytes", perDeviceBytes);
+            Metrics.set("favorites.estimate.bulk.ms", Math.round(bulk.getMillis()));
+            Metrics.set("favorites.estimate.bulk.bytes", Math.round(bulk.getBytes()));
+        }
+
+        Timber.d("Fetch %d favorites %s", favorites, strategy);
+        Metrics.increment("favorites.strategy." + name(strategy));
+        Metrics.set("favorites.count", favorites);
+        return strategy;
+    }
+
+    /**
+     * Record favorites taken from the list of all devices fetched recently, which is no decision
+     * and costs nothing
+     */
+    public void recordCached() {
+        Metrics.increment("favorites.strategy.cached");
+    }
+
+    /**
+     * Record cost of fetching favorites
+     * @param strategy strategy used
+     * @param millis time in milliseconds fetching took
+     */
+    public void record(Strategy strategy, long millis) {
+        Metrics.set("favorites.last." + name(strategy) + ".ms", millis);
+        Metrics.add("favorites.total." + name(strategy) + ".ms", millis);
+    }
+
+    /**
+     * Estimate time to fetch devices one request per device
+     */
+    private static long estimateMillis(RequestMetrics.Stat single, int favorites) {
+        int rounds = (favorites + CONCURRENCY - 1) / CONCURRENCY;
+        return Math.round(single.getMillis() * rounds);
+    }
+
+    /**
+     * Get name of strategy used in metrics
+     */
+    private static String name(Strategy strategy) {
+        return strategy == Strategy.BULK ? "bulk" : "per_device";
+    }
+}
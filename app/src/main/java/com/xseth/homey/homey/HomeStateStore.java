@@ -0,0 +1,673 @@
+package com.xseth.homey.homey;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.homey.models.Flow;
+import com.xseth.homey.homey.models.Zone;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import timber.log.Timber;
+
+/**
+ * Process-wide state of the home: devices, zones and flows.
+ *
+ * State is held in immutable, versioned snapshots. Reads never lock, writes copy the changed
+ * parts into a new snapshot. Devices in a snapshot must not be modified, change them via the
+ * store so listeners are notified. Listeners are called on the main thread.
+ */
+public class HomeStateStore {
+
+    // Default time in milliseconds loaded state is used without refreshing
+    public static final long DEFAULT_MAX_AGE = 30 * 1000;
+
+    /**
+     * Listener notified once devices are changed
+     */
+    public interface SnapshotListener {
+        /**
+         * Called once a new snapshot is published
+         * @param snapshot new snapshot
+         * @param changedDeviceIds IDs of added, changed and removed devices
+         */
+        void onSnapshot(Snapshot snapshot, Set<String> changedDeviceIds);
+    }
+
+    /**
+     * Listener notified once a single device is changed
+     */
+    public interface DeviceListener {
+        /**
+         * Called once the device is changed
+         * @param device new state of device, null if removed
+         */
+        void onDeviceChanged(Device device);
+    }
+
+    /**
+     * Immutable state of the home at a point in time
+     */
+    public static class Snapshot {
+        private final long version;
+        private final long structureVersion;
+        private final Map<String, Device> devices;
+        private final Map<String, Zone> zones;
+        private final Map<String, Flow> flows;
+        // IDs of devices per zone ID, sets are never modified once published
+        private final Map<String, Set<String>> devicesByZone;
+        // Hierarchy of zones
+        private final ZoneTree zoneTree;
+        // Times at which devices, zones and flows are fetched, 0 if never
+        private final long devicesFetchedAt;
+        private final long zonesFetchedAt;
+        private final long flowsFetchedAt;
+        // Writer which published this snapshot, null if not given
+        private final Object source;
+
+        private Snapshot(long version, long structureVersion, Map<String, Device> devices,
+                         Map<String, Zone> zones, Map<String, Flow> flows,
+                         Map<String, Set<String>> devicesByZone, ZoneTree zoneTree,
+                         long devicesFetchedAt, long zonesFetchedAt, long flowsFetchedAt,
+                         Object source) {
+            this.version = version;
+            this.structureVersion = structureVersion;
+            this.devices = devices;
+            this.zones = zones;
+            this.flows = flows;
+            this.devicesByZone = devicesByZone;
+            this.zoneTree = zoneTree;
+            this.devicesFetchedAt = devicesFetchedAt;
+            this.zonesFetchedAt = zonesFetchedAt;
+            this.flowsFetchedAt = flowsFetchedAt;
+            this.source = source;
+        }
+
+        /**
+         * Get version, incremented on every change
+         * @return version of snapshot
+         */
+        public long getVersion() { return version; }
+
+        /**
+         * Get structure version, only incremented once devices are added or removed, or their
+         * names, zones or capabilities change
+         * @return structure version of snapshot
+         */
+        public long getStructureVersion() { return structureVersion; }
+
+        public Map<String, Device> getDevices() { return devices; }
+        public Map<String, Zone> getZones() { return zones; }
+        public Map<String, Flow> getFlows() { return flows; }
+        public ZoneTree getZoneTree() { return zoneTree; }
+
+        /**
+         * Get time at which all devices are last fetched
+         * @return elapsed realtime in milliseconds, 0 if never fetched
+         */
+        public long getDevicesFetchedAt() { return devicesFetchedAt; }
+
+        /**
+         * Get time at which zones are last fetched
+         * @return elapsed realtime in milliseconds, 0 if never fetched
+         */
+        public long getZonesFetchedAt() { return zonesFetchedAt; }
+
+        /**
+         * Get writer which published this snapshot, so listeners can skip their own changes
+         * @return source given when publishing, null if none
+         */
+        public Object getSource() { return source; }
+
+        /**
+         * Get device by ID
+         * @param id device ID
+         * @return device, null if unknown
+         */
+        public Device getDevice(String id) { return devices.get(id); }
+
+        /**
+         * Get IDs of devices directly in zone, without scanning all devices
+         * @param zoneId zone ID
+         * @return unmodifiable set of device IDs, empty if none
+         */
+        public Set<String> getZoneDeviceIds(String zoneId) {
+            Set<String> ids = devicesByZone.get(zoneId);
+            return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+        }
+
+        /**
+         * Get devices in zones and all zones inside them, e.g. a floor and its rooms
+         * @param zoneIds zone IDs
+         * @return devices in zones, each device once
+         */
+        public List<Device> getDevicesInside(Collection<String> zoneIds) {
+            List<Device> inside = new ArrayList<>();
+            for (String zoneId : zoneTree.getSubtreeIds(zoneIds))
+                inside.addAll(getZoneDevices(zoneId));
+            return inside;
+        }
+
+        /**
+         * Get devices directly in zone, without scanning all devices
+         * @param zoneId zone ID
+         * @return devices in zone, empty if none
+         */
+        public List<Device> getZoneDevices(String zoneId) {
+            Set<String> ids = getZoneDeviceIds(zoneId);
+            List<Device> zoneDevices = new ArrayList<>(ids.size());
+            for (String id : ids)
+                zoneDevices.add(devices.get(id));
+            return zoneDevices;
+        }
+    }
+
+    // HomeStateStore instance
+    private static volatile HomeStateStore INSTANCE;
+
+    // Current snapshot, replaced on every change
+    private volatile Snapshot snapshot = new Snapshot(0, 0, Collections.emptyMap(),
+            Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap(),
+            new ZoneTree(Collections.emptyList()), 0, 0, 0, null);
+    // Lock serializing writers, readers never lock
+    private final Object writeLock = new Object();
+    // Listeners notified of every snapshot
+    private final Set<SnapshotListener> listeners = new CopyOnWriteArraySet<>();
+    // Listeners notified of changes to a single device
+    private final Map<String, Set<DeviceListener>> deviceListeners = new ConcurrentHashMap<>();
+    // Handler used to notify listeners on the main thread
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Get instance of HomeStateStore
+     * @return instance of HomeStateStore
+     */
+    public static HomeStateStore getInstance() {
+        if (INSTANCE == null) {
+            synchronized (HomeStateStore.class) {
+                if (INSTANCE == null)
+                    INSTANCE = new HomeStateStore();
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get the current snapshot, without locking
+     * @return current snapshot
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Add listener notified of every snapshot
+     * @param listener listener to add
+     */
+    public void addListener(SnapshotListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove listener notified of every snapshot
+     * @param listener listener to remove
+     */
+    public void removeListener(SnapshotListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add listener notified of changes to a device
+     * @param deviceId device to listen to
+     * @param listener listener to add
+     */
+    public void addDeviceListener(String deviceId, DeviceListener listener) {
+        deviceListeners.computeIfAbsent(deviceId, id -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    /**
+     * Remove listener notified of changes to a device
+     * @param deviceId device listened to
+     * @param listener listener to remove
+     */
+    public void removeDeviceListener(String deviceId, DeviceListener listener) {
+        Set<DeviceListener> set = deviceListeners.get(deviceId);
+        if (set != null)
+            set.remove(listener);
+    }
+
+    /**
+     * Get a snapshot with devices no older than maxAge, fetching devices if needed
+     * @param maxAge maximum age in milliseconds of devices
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> ensureDevices(long maxAge) {
+        return ensureDevices(maxAge, null);
+    }
+
+    /**
+     * Get a snapshot with devices no older than maxAge, fetching devices if needed
+     * @param maxAge maximum age in milliseconds of devices
+     * @param source writer publishing fetched devices, available to listeners
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> ensureDevices(long maxAge, Object source) {
+        if (isFresh(snapshot.devicesFetchedAt, maxAge))
+            return CompletableFuture.completedFuture(snapshot);
+
+        return refreshDevices(source);
+    }
+
+    /**
+     * Get a snapshot with zones no older than maxAge, fetching zones if needed
+     * @param maxAge maximum age in milliseconds of zones
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> ensureZones(long maxAge) {
+        if (isFresh(snapshot.zonesFetchedAt, maxAge))
+            return CompletableFuture.completedFuture(snapshot);
+
+        HomeyAPI api = HomeyAPI.getAPI();
+        return api.callWhenReady(api::getZones).thenApply(this::setZones);
+    }
+
+    /**
+     * Get a snapshot with flows no older than maxAge, fetching flows if needed
+     * @param maxAge maximum age in milliseconds of flows
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> ensureFlows(long maxAge) {
+        if (isFresh(snapshot.flowsFetchedAt, maxAge))
+            return CompletableFuture.completedFuture(snapshot);
+
+        HomeyAPI api = HomeyAPI.getAPI();
+        return api.callWhenReady(api::getFlows).thenApply(this::setFlows);
+    }
+
+    /**
+     * Fetch all devices and publish them
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> refreshDevices() {
+        return refreshDevices(null);
+    }
+
+    /**
+     * Fetch all devices and publish them
+     * @param source writer publishing the devices, available to listeners
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> refreshDevices(Object source) {
+        HomeyAPI api = HomeyAPI.getAPI();
+        return api.callWhenReady(api::getAllDevices)
+                .thenApply(fetched -> setDevices(fetched, source));
+    }
+
+    /**
+     * Fetch the devices of a zone and publish them, other devices are not fetched. Devices moved
+     * into the zone are only found once all devices are fetched
+     * @param zoneId zone ID
+     * @return future completing with snapshot
+     */
+    public CompletableFuture<Snapshot> refreshZone(String zoneId) {
+        Snapshot current = snapshot;
+
+        // Zone index is only known once all devices are fetched
+        if (current.devicesFetchedAt == 0)
+            return refreshDevices();
+
+        Set<String> ids = current.getZoneDeviceIds(zoneId);
+        if (ids.isEmpty())
+            return CompletableFuture.completedFuture(current);
+
+        HomeyAPI api = HomeyAPI.getAPI();
+        return api.callWhenReady(() -> api.fetchDevices(ids)).thenApply(this::updateDevices);
+    }
+
+    /**
+     * Publish fetched devices, replacing all devices. An empty map is a failed fetch and ignored
+     * @param fetched all devices by ID
+     * @return new snapshot
+     */
+    public Snapshot setDevices(Map<String, Device> fetched) {
+        return setDevices(fetched, null);
+    }
+
+    /**
+     * Publish fetched devices, replacing all devices. An empty map is a failed fetch and ignored
+     * @param fetched all devices by ID
+     * @param source writer publishing the devices, available to listeners
+     * @return new snapshot
+     */
+    public Snapshot setDevices(Map<String, Device> fetched, Object source) {
+        return mergeDevices(fetched, true, source);
+    }
+
+    /**
+     * Publish fetched devices, devices which are not fetched are kept
+     * @param fetched some devices by ID
+     * @return new snapshot
+     */
+    public Snapshot updateDevices(Map<String, Device> fetched) {
+        return updateDevices(fetched, null);
+    }
+
+    /**
+     * Publish fetched devices, devices which are not fetched are kept
+     * @param fetched some devices by ID
+     * @param source writer publishing the devices, available to listeners
+     * @return new snapshot
+     */
+    public Snapshot updateDevices(Map<String, Device> fetched, Object source) {
+        return mergeDevices(fetched, false, source);
+    }
+
+    /**
+     * Publish fetched devices
+     * @param fetched fetched devices by ID
+     * @param complete whether fetched holds all devices, so devices not in it are removed
+     * @param source writer publishing the devices, null if not given
+     * @return new snapshot
+     */
+    private Snapshot mergeDevices(Map<String, Device> fetched, boolean complete, Object source) {
+        if (fetched.isEmpty())
+            return snapshot;
+
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            Map<String, Device> devices = new LinkedHashMap<>(complete ? Collections.emptyMap() :
+                    current.devices);
+            Set<String> changed = new HashSet<>();
+            boolean structureChanged = complete && fetched.size() != current.devices.size();
+
+            for (Map.Entry<String, Device> entry : fetched.entrySet()) {
+                Device old = current.devices.get(entry.getKey());
+                Device device = entry.getValue();
+
+                // Keep unchanged devices, so they are shared between snapshots
+                if (old != null && sameState(old, device)) {
+                    devices.put(entry.getKey(), old);
+                    continue;
+                }
+
+                // Copy, so fetched devices shared with other callers never leak into the store
+                devices.put(entry.getKey(), device.copy());
+                changed.add(entry.getKey());
+                structureChanged |= old == null || !sameStructure(old, device);
+            }
+
+            if (complete) {
+                for (String id : current.devices.keySet()) {
+                    if (!fetched.containsKey(id))
+                        changed.add(id);
+                }
+            }
+
+            if (changed.isEmpty() && !complete)
+                return current;
+
+            return publish(current, Collections.unmodifiableMap(devices), current.zones,
+                    current.flows, complete ? SystemClock.elapsedRealtime() : current.devicesFetchedAt,
+                    current.zonesFetchedAt, current.flowsFetchedAt, changed, structureChanged,
+                    source);
+        }
+    }
+
+    /**
+     * Publish fetched zones. An empty map is a failed fetch and ignored
+     * @param fetched all zones by ID
+     * @return new snapshot
+     */
+    public Snapshot setZones(Map<String, Zone> fetched) {
+        if (fetched.isEmpty())
+            return snapshot;
+
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+
+            // Keep unchanged zones, so the zone tree and indices built on them are reused
+            Map<String, Zone> zones = sameZones(current.zones, fetched) ? current.zones :
+                    Collections.unmodifiableMap(new LinkedHashMap<>(fetched));
+
+            return publish(current, current.devices, zones, current.flows,
+                    current.devicesFetchedAt, SystemClock.elapsedRealtime(),
+                    current.flowsFetchedAt, Collections.emptySet(),
+                    !sameZoneStructure(current.zones, fetched), null);
+        }
+    }
+
+    /**
+     * Whether two sets of zones are shown the same
+     */
+    private static boolean sameZones(Map<String, Zone> a, Map<String, Zone> b) {
+        if (a.size() != b.size())
+            return false;
+
+        for (Map.Entry<String, Zone> entry : b.entrySet()) {
+            if (!entry.getValue().isSame(a.get(entry.getKey())))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Whether two sets of zones have the same IDs, names and parents
+     */
+    private static boolean sameZoneStructure(Map<String, Zone> a, Map<String, Zone> b) {
+        if (a.size() != b.size())
+            return false;
+
+        for (Map.Entry<String, Zone> entry : b.entrySet()) {
+            Zone old = a.get(entry.getKey());
+            Zone zone = entry.getValue();
+
+            if (old == null || !Objects.equals(old.getName(), zone.getName()) ||
+                    !Objects.equals(old.getParentId(), zone.getParentId()))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Publish fetched flows. An empty map is a failed fetch and ignored
+     * @param fetched all flows by ID
+     * @return new snapshot
+     */
+    public Snapshot setFlows(Map<String, Flow> fetched) {
+        if (fetched.isEmpty())
+            return snapshot;
+
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            Map<String, Flow> flows = Collections.unmodifiableMap(new LinkedHashMap<>(fetched));
+
+            return publish(current, current.devices, current.zones, flows,
+                    current.devicesFetchedAt, current.zonesFetchedAt,
+                    SystemClock.elapsedRealtime(), Collections.emptySet(), false, null);
+        }
+    }
+
+    /**
+     * Set on value of the capability used by the app
+     * @param deviceId device to change
+     * @param on new on value
+     * @return whether the device is in the store, unknown devices are not changed
+     */
+    public boolean setOn(String deviceId, boolean on) {
+        Device device = snapshot.getDevice(deviceId);
+        return device != null && updateCapability(deviceId, device.getCapability(), on);
+    }
+
+    /**
+     * Set value of a capability, as pushed by the Homey or set by the app
+     * @param deviceId device to change
+     * @param capabilityId capability to change
+     * @param value new value of capability
+     * @return whether the device is in the store, unknown devices are not changed
+     */
+    public boolean updateCapability(String deviceId, String capabilityId, Object value) {
+        synchronized (writeLock) {
+            Snapshot current = snapshot;
+            Device old = current.getDevice(deviceId);
+
+            if (old == null || capabilityId == null)
+                return old != null;
+
+            Device device = old.withCapabilityValue(capabilityId, value);
+            if (sameState(old, device))
+                return true;
+
+            Map<String, Device> devices = new LinkedHashMap<>(current.devices);
+            devices.put(deviceId, device);
+
+            publish(current, Collections.unmodifiableMap(devices), current.zones, current.flows,
+                    current.devicesFetchedAt, current.zonesFetchedAt, current.flowsFetchedAt,
+                    Collections.singleton(deviceId), false, null);
+            return true;
+        }
+    }
+
+    /**
+     * Publish a new snapshot and notify listeners. Must hold the writeLock
+     * @return new snapshot
+     */
+    private Snapshot publish(Snapshot current, Map<String, Device> devices, Map<String, Zone> zones,
+                             Map<String, Flow> flows, long devicesFetchedAt, long zonesFetchedAt,
+                             long flowsFetchedAt, Set<String> changed, boolean structureChanged,
+                             Object source) {
+        // Zones of devices only change with the structure
+        Map<String, Set<String>> devicesByZone = structureChanged ?
+                indexZones(current.devicesByZone, current.devices, devices, changed) :
+                current.devicesByZone;
+
+        Snapshot next = new Snapshot(current.version + 1,
+                current.structureVersion + (structureChanged ? 1 : 0),
+                devices, zones, flows, devicesByZone,
+                zones == current.zones ? current.zoneTree : new ZoneTree(zones.values()),
+                devicesFetchedAt, zonesFetchedAt, flowsFetchedAt, source);
+        snapshot = next;
+
+        if (!changed.isEmpty())
+            Timber.d("Home state version %d, %d devices changed", next.version, changed.size());
+
+        handler.post(() -> {
+            for (SnapshotListener listener : listeners)
+                listener.onSnapshot(next, changed);
+
+            for (String id : changed) {
+                Set<DeviceListener> set = deviceListeners.get(id);
+                if (set == null)
+                    continue;
+
+                Device device = next.getDevice(id);
+                for (DeviceListener listener : set)
+                    listener.onDeviceChanged(device);
+            }
+        });
+
+        return next;
+    }
+
+    /**
+     * Update the zone index for changed devices. Only zones of moved, added or removed devices
+     * are copied, all other zones share their set with the previous index
+     * @param index previous index
+     * @param previous previous devices
+     * @param devices new devices
+     * @param changed IDs of changed devices
+     * @return new index, the previous index if no device moved
+     */
+    private static Map<String, Set<String>> indexZones(Map<String, Set<String>> index,
+                                                       Map<String, Device> previous,
+                                                       Map<String, Device> devices,
+                                                       Set<String> changed) {
+        Map<String, Set<String>> next = null;
+        Set<String> copied = new HashSet<>();
+
+        for (String id : changed) {
+            Device old = previous.get(id);
+            Device device = devices.get(id);
+            String oldZone = old == null ? null : old.getZoneId();
+            String zone = device == null ? null : device.getZoneId();
+
+            if (Objects.equals(oldZone, zone))
+                continue;
+
+            if (next == null)
+                next = new HashMap<>(index);
+
+            if (oldZone != null) {
+                Set<String> ids = copyZone(next, copied, oldZone);
+                ids.remove(id);
+                if (ids.isEmpty())
+                    next.remove(oldZone);
+            }
+
+            if (zone != null)
+                copyZone(next, copied, zone).add(id);
+        }
+
+        return next == null ? index : next;
+    }
+
+    /**
+     * Get set of zone in index being built, copying it once so the previous index is unchanged
+     */
+    private static Set<String> copyZone(Map<String, Set<String>> index, Set<String> copied,
+                                        String zoneId) {
+        Set<String> ids = index.get(zoneId);
+
+        if (copied.add(zoneId)) {
+            ids = ids == null ? new LinkedHashSet<>() : new LinkedHashSet<>(ids);
+            index.put(zoneId, ids);
+        }
+
+        return ids;
+    }
+
+    /**
+     * Whether state fetched at a time is still fresh
+     * @param fetchedAt time of fetch, 0 if never fetched
+     * @param maxAge maximum age in milliseconds
+     * @return if fetched within maxAge
+     */
+    private static boolean isFresh(long fetchedAt, long maxAge) {
+        return fetchedAt > 0 && SystemClock.elapsedRealtime() - fetchedAt < maxAge;
+    }
+
+    /**
+     * Whether two versions of a device have the same state
+     */
+    private static boolean sameState(Device a, Device b) {
+        return sameStructure(a, b) &&
+                Objects.equals(a.isOn(), b.isOn()) &&
+                Objects.equals(a.getIconId(), b.getIconId()) &&
+                Objects.equals(a.getCapabilityValues(), b.getCapabilityValues());
+    }
+
+    /**
+     * Whether two versions of a device have the same name, zone and capability
+     */
+    private static boolean sameStructure(Device a, Device b) {
+        return Objects.equals(a.getName(), b.getName()) &&
+                Objects.equals(a.getZoneId(), b.getZoneId()) &&
+                Objects.equals(a.getCapability(), b.getCapability());
+    }
+}
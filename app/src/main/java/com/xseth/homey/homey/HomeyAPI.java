@@ -1,26 +1,46 @@
 package com.xseth.homey.homey;
 
+import android.os.SystemClock;
+
 import com.xseth.homey.BuildConfig;
 import com.xseth.homey.homey.models.Device;
 import com.xseth.homey.homey.models.Flow;
 import com.xseth.homey.homey.models.Homey;
+import com.xseth.homey.homey.models.HomeySession;
 import com.xseth.homey.homey.models.Token;
 import com.xseth.homey.homey.models.User;
 import com.xseth.homey.homey.models.Zone;
 import com.xseth.homey.homey.services.CloudService;
 import com.xseth.homey.homey.services.HomeyService;
+import com.xseth.homey.utils.RequestMetrics;
+import com.xseth.homey.utils.SingleFlight;
+import com.xseth.homey.utils.StartupTimer;
 import com.xseth.homey.utils.TokenInterceptor;
 
 import java.io.IOException;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringJoiner;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.logging.HttpLoggingInterceptor;
 import retrofit2.Call;
@@ -33,12 +53,32 @@ import timber.log.Timber;
 
 public class HomeyAPI {
 
+    /**
+     * Fetched favorite devices, incomplete if some favorites failed to fetch
+     */
+    public static class Favorites {
+        // Fetched favorites by ID, in order of the favorites of the user
+        private final Map<String, Device> devices;
+        // Whether the user and every favorite are fetched, so missing devices are no favorites
+        private final boolean complete;
+
+        private Favorites(Map<String, Device> devices, boolean complete) {
+            this.devices = devices;
+            this.complete = complete;
+        }
+
+        public Map<String, Device> getDevices() { return devices; }
+        public boolean isComplete() { return complete; }
+    }
+
     // Athom Homey client ID for accessing API
     public static final String CLIENT_ID = BuildConfig.ATHOM_CLIENT_ID;
     // Athom Homey client secret for accessing API
     public static final String CLIENT_SECRET = BuildConfig.ATHOM_CLIENT_SECRET;
     // ReturnURL for OAuth2
     public static final String RETURN_URL = "https://wear.googleapis.com/3p_auth/com.xseth.homey";
+    // URL for the Athom Cloud API
+    public static final String CLOUD_URL = "https://api.athom.com/";
     // URL for Icon CDN
     public static final String ICON_URL = "https://icons-cdn.athom.com/";
     // List of OAuth2 scopes used in Athom Homey API
@@ -56,21 +96,63 @@ public class HomeyAPI {
             "button",
             "speaker_playing"
     };
+    // List of capabilities of which the value is kept, supported capabilities and voice control
+    public static final String[] VALUE_CAPABILITIES = {
+            "onoff",
+            "button",
+            "speaker_playing",
+            "dim",
+            "target_temperature"
+    };
+
+    // Maximum of concurrent requests to a single host, mostly the Homey
+    private static final int MAX_REQUESTS_PER_HOST = 16;
+    // Maximum of idle connections kept alive in the connection pool
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    // Time in minutes idle connections are kept alive
+    private static final int KEEP_ALIVE_DURATION = 5;
+    // Time in seconds callers wait for the HomeyAPI to be authenticated
+    private static final int READY_TIMEOUT = 30;
+    // Default time in milliseconds fetched devices, zones and flows are reused
+    private static final long FRESHNESS = 10 * 1000;
+
+    // Executor running work chained on the HomeyAPI being authenticated
+    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    // Scheduler used for timing out callers waiting for authentication
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
 
     // Instance HomeyAPI for singleton
     private static volatile HomeyAPI INSTANCE;
     // Service pointing to the AthomCloudAPI
     private CloudService cloudService;
     // Service pointing to the HomeyAPI
-    private HomeyService homeyService;
+    private volatile HomeyService homeyService;
+    // Completes once the homeyService is authenticated, replaced once authentication fails
+    private volatile CompletableFuture<HomeyService> ready = new CompletableFuture<>();
     // Athom User object
-    private User user;
+    private volatile User user;
+    // Coalesced fetches of devices, zones and flows, empty results are failures and not reused
+    private final SingleFlight<Map<String, Device>> allDevicesFlight =
+            new SingleFlight<>(FRESHNESS, result -> !result.isEmpty());
+    private final SingleFlight<Map<String, Zone>> zonesFlight =
+            new SingleFlight<>(FRESHNESS, result -> !result.isEmpty());
+    private final SingleFlight<Map<String, Flow>> flowsFlight =
+            new SingleFlight<>(FRESHNESS, result -> !result.isEmpty());
+    // Chooses how favorite devices are fetched
+    private final FavoritesPlanner favoritesPlanner = new FavoritesPlanner();
     // HTTP interceptor to handle authentication cloudService
     private TokenInterceptor tokenInterceptor;
     // HTTP interceptor to handle authentication for homeyService
     private TokenInterceptor homeyTokenInterceptor;
     // Instance for HTTPLogger
     private HttpLoggingInterceptor httpLogger;
+    // Shared HTTP client, other clients derive from it to share connections, TLS sessions and threads
+    private OkHttpClient baseClient;
+    // HTTP client used for the homeyService
+    private OkHttpClient homeyClient;
+    // Session for the Homey which is accessed via the homeyService
+    private volatile HomeySession session;
 
     /**
      * Get HomeyAPI instance
@@ -88,13 +170,26 @@ public class HomeyAPI {
      */
     public HomeyAPI(){
         // Create Interceptor for Bearer token and load, if existing, previous saved bearer token
-        tokenInterceptor = new TokenInterceptor();
+        tokenInterceptor = new TokenInterceptor(expired ->
+                expired.getRefreshToken() != null && refreshToken(expired.getRefreshToken()));
         tokenInterceptor.setSessionToken(Token.load());
 
         // Add logging interceptor
         httpLogger = new HttpLoggingInterceptor(message -> Timber.tag("OkHttp").v(message));
 
-        OkHttpClient client = new OkHttpClient.Builder()
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        // Prefer HTTP/2 so concurrent requests to the Homey are multiplexed on one connection
+        baseClient = new OkHttpClient.Builder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION,
+                        TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .eventListenerFactory(RequestMetrics.FACTORY)
+                .build();
+
+        OkHttpClient client = baseClient.newBuilder()
                 .addInterceptor(tokenInterceptor)
                 .addInterceptor(httpLogger)
                 .build();
@@ -102,11 +197,21 @@ public class HomeyAPI {
         Retrofit retrofit = new Retrofit.Builder()
                 .client(client)
                 .addConverterFactory(GsonConverterFactory.create())
-                .baseUrl("https://api.athom.com/")
+                .baseUrl(CLOUD_URL)
                 .build();
 
         cloudService = retrofit.create(CloudService.class);
 
+        // Reuse previous Homey session, it is renewed once the Homey rejects it
+        session = HomeySession.load();
+        if (session != null) {
+            Timber.i("Reusing saved homey session");
+            homeyService = createHomeyService(session.getRemoteUrl());
+            setHomeyToken(session.getToken());
+            ready.complete(homeyService);
+            StartupTimer.mark("Homey session (saved)");
+        }
+
         // Set level BASIC only in debugging mode
         if (BuildConfig.DEBUG)
             httpLogger.setLevel(HttpLoggingInterceptor.Level.BASIC);
@@ -116,7 +221,7 @@ public class HomeyAPI {
      * Verify whether there is an authorized session
      * @return if there is an authorized session
      */
-    public synchronized Boolean isLoggedIn() throws IOException {
+    public Boolean isLoggedIn() throws IOException {
         Call<User> call = cloudService.getUser();
 
         user = call.execute().body();
@@ -128,23 +233,99 @@ public class HomeyAPI {
      * Verify whether there is authorization for the HomeyAPI
      * @return if there is an authorized HomeyAPI
      */
-    public synchronized Boolean isHomeyAuthenticated(){
+    public Boolean isHomeyAuthenticated(){
         return this.homeyService != null;
     }
 
     /**
-     * Wait in thread for authorized HomeyAPI
+     * Get a future completing once the HomeyAPI is authenticated. Fails if authenticating fails
+     * or takes longer than READY_TIMEOUT seconds
+     * @return future completing with the authenticated homeyService
      */
-    public synchronized void waitForHomeyAPI(){
-        if (!this.isHomeyAuthenticated()) {
-            synchronized (this) {
-                try {
-                    this.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
+    public CompletableFuture<HomeyService> whenReady() {
+        CompletableFuture<HomeyService> current = ready;
+        if (current.isDone())
+            return current;
+
+        CompletableFuture<HomeyService> result = new CompletableFuture<>();
+        current.whenComplete((service, error) -> {
+            if (error != null)
+                result.completeExceptionally(error);
+            else
+                result.complete(service);
+        });
+
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> result.completeExceptionally(
+                new TimeoutException("HomeyAPI not authenticated")), READY_TIMEOUT, TimeUnit.SECONDS);
+        result.whenComplete((service, error) -> timeout.cancel(false));
+
+        return result;
+    }
+
+    /**
+     * Run task in background once the HomeyAPI is authenticated
+     * @param task task to run
+     * @return future completing once task is done
+     */
+    public CompletableFuture<Void> runWhenReady(Runnable task) {
+        return whenReady().thenRunAsync(task, executor);
+    }
+
+    /**
+     * Get result of task run in background once the HomeyAPI is authenticated
+     * @param task task to run
+     * @return future completing with result of task
+     */
+    public <T> CompletableFuture<T> callWhenReady(Supplier<T> task) {
+        return whenReady().thenApplyAsync(service -> task.get(), executor);
+    }
+
+    /**
+     * Create a call to the Homey once the HomeyAPI is authenticated. Callbacks receive the
+     * returned call, also if authenticating fails or times out
+     * @param factory creates the call once authenticated
+     * @return call waiting for the HomeyAPI to be authenticated
+     */
+    public <T> Call<T> deferCall(Supplier<Call<T>> factory) {
+        return new ReadyCall<>(whenReady(), factory);
+    }
+
+    /**
+     * Get the shared HTTP client, used for requests outside of the Athom and Homey APIs
+     * @return shared HTTP client
+     */
+    public OkHttpClient getHttpClient() {
+        return baseClient;
+    }
+
+    /**
+     * Open a connection to the Homey in the background, if its URL is known. Avoids paying the
+     * DNS and TLS handshake on the first user action.
+     */
+    public void warmUp() {
+        if (session != null)
+            warmUp(session.getRemoteUrl());
+    }
+
+    /**
+     * Open a connection to an URL in the background. The connection is kept in the shared pool
+     * @param url URL to connect to
+     */
+    private void warmUp(String url) {
+        Request request = new Request.Builder().url(url).head().build();
+
+        baseClient.newCall(request).enqueue(new okhttp3.Callback() {
+            @Override
+            public void onFailure(okhttp3.Call call, IOException e) {
+                Timber.d(e, "Failed to warm up connection to %s", url);
             }
-        }
+
+            @Override
+            public void onResponse(okhttp3.Call call, okhttp3.Response response) {
+                Timber.d("Warmed up connection to %s", url);
+                response.close();
+            }
+        });
     }
 
     /**
@@ -162,22 +343,38 @@ public class HomeyAPI {
         );
 
         Token token = (Token) call.execute().body();
+        token.markIssued();
         token.save();
 
         tokenInterceptor.setSessionToken(token);
 
+        // Session of a previous login may belong to another account
+        clearHomeySession();
+
         // Authenticate Homey
         authenticateHomey();
     }
 
+    /**
+     * Forget the Homey session, in memory and on disk, so the next authentication logs in on
+     * the Homey of the current user
+     */
+    private synchronized void clearHomeySession() {
+        HomeySession.delete();
+        session = null;
+        homeyService = null;
+        user = null;
+
+        if (ready.isDone())
+            ready = new CompletableFuture<>();
+    }
+
     /**
      * Retrieve new OAUTH2 session token via token refresh
      * @param refreshToken OAUTH2 refresh token
+     * @return whether a new session token is retrieved
      */
-    public void refreshToken(String refreshToken){
-        // Set token to null to signify refresh
-        tokenInterceptor.setSessionToken(null);
-
+    public boolean refreshToken(String refreshToken){
         Call<Token> call = cloudService.refreshToken(
                 CLIENT_ID,
                 CLIENT_SECRET,
@@ -187,11 +384,17 @@ public class HomeyAPI {
 
         try {
             Token token = call.execute().body();
+            if (token == null)
+                throw new IOException("Token refresh returned no token");
+
+            token.markIssued();
             token.save();
 
             tokenInterceptor.setSessionToken(token);
+            return true;
         } catch (IOException e) {
             Timber.e(e, "Failed to refresh token");
+            return false;
         }
     }
 
@@ -221,85 +424,283 @@ public class HomeyAPI {
         if (this.homeyService != null)
             return;
 
-        Token token = new Token();
+        Timber.i("Start authenticating homey");
+
+        try {
+            if(this.user == null && !this.isLoggedIn())
+                throw new IOException("Failed to retrieve user");
+
+            // Connect to the Homey while the delegationToken is requested
+            Homey homey = this.user.getFirstHomey();
+            warmUp(homey.getRemoteUrl());
+
+            String delegationToken = getDelegationToken();
+
+            // Create Service for homeyAPI, login before exposing it
+            HomeyService service = createHomeyService(homey.getRemoteUrl());
+
+            // Set sessionToken for accessing rest of Homey APIs
+            session = new HomeySession(homey.getId(), homey.getRemoteUrl(),
+                    loginHomey(service, delegationToken));
+            session.save();
+            setHomeyToken(session.getToken());
+            homeyService = service;
+        } catch (IOException | RuntimeException e) {
+            // Fail waiting callers, later callers wait for the next attempt
+            CompletableFuture<HomeyService> failed = ready;
+            ready = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            throw e;
+        }
+
+        Timber.i("Successfully authenticated against homey");
+        StartupTimer.mark("Homey session (delegated)");
+
+        // Continue all work waiting for the homeyAPI to be authenticated
+        ready.complete(homeyService);
+    }
+
+    /**
+     * Retrieve a new Homey session token, used once the Homey rejects the current token
+     * @return whether a new session token is retrieved
+     */
+    private synchronized boolean reauthenticateHomey() {
+        Timber.i("Homey session rejected, authenticating again");
+
+        if (session == null)
+            return false;
+
+        try {
+            if(this.user == null && !this.isLoggedIn())
+                throw new IOException("Failed to retrieve user");
+
+            session = new HomeySession(session.getHomeyId(), session.getRemoteUrl(),
+                    loginHomey(homeyService, getDelegationToken()));
+            session.save();
+            setHomeyToken(session.getToken());
+
+            return true;
+        } catch (IOException e) {
+            Timber.e(e, "Failed to authenticate against homey");
+            // Saved session is rejected, do not reuse it on the next start
+            HomeySession.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Get delegationToken from AthomCloudAPI, used to login on the Homey
+     * @return delegation token
+     */
+    private String getDelegationToken() throws IOException {
         Map<String, String> jsonParams = new HashMap<>();
         jsonParams.put("audience", "homey");
 
-        Timber.i("Start authenticating homey");
+        Call<String> call = cloudService.authenticateHomey(jsonParams);
+        return call.execute().body();
+    }
 
-        if(this.user == null && !this.isLoggedIn())
-            throw new IOException("Failed to retrieve user");
+    /**
+     * Login via delegationToken to retrieve sessionToken
+     * @param service service of the Homey to login on
+     * @param delegationToken delegation token retrieved from AthomCloudAPI
+     * @return Homey session token
+     */
+    private String loginHomey(HomeyService service, String delegationToken) throws IOException {
+        Map<String, String> jsonParams = new HashMap<>();
+        jsonParams.put("token", delegationToken);
 
-        // Get delegationToken from AthomCloudAPI
-        Call<String> call = cloudService.authenticateHomey(jsonParams);
-        String delegationToken = call.execute().body();
+        Call<String> call = service.login(jsonParams);
+        String token = call.execute().body();
 
-        homeyTokenInterceptor = new TokenInterceptor();
-        OkHttpClient client = new OkHttpClient.Builder()
+        if (token == null)
+            throw new IOException("Homey login returned no session token");
+
+        return token;
+    }
+
+    /**
+     * Create a service for accessing the Homey
+     * @param url URL of the Homey
+     * @return service for accessing the Homey
+     */
+    private HomeyService createHomeyService(String url) {
+        homeyTokenInterceptor = new TokenInterceptor(expired -> reauthenticateHomey());
+        homeyClient = baseClient.newBuilder()
                 .addInterceptor(homeyTokenInterceptor)
                 .addInterceptor(httpLogger)
                 .build();
 
         Retrofit retrofit = new Retrofit.Builder()
-                .client(client)
+                .client(homeyClient)
                 .addConverterFactory(GsonConverterFactory.create())
-                .baseUrl(this.user.getFirstHomey().getRemoteUrl())
+                .baseUrl(url)
                 .build();
 
-        // Create Service for homeyAPI
-        homeyService = retrofit.create(HomeyService.class);
-
-        jsonParams = new HashMap<>();
-        jsonParams.put("token", delegationToken);
-
-        // Login via delegationToken to retrieve sessionToken
-        call = homeyService.login(jsonParams);
-        String homeyToken = call.execute().body();
+        return retrofit.create(HomeyService.class);
+    }
 
-        // Set sessionToken for accessing rest of Homey APIs
+    /**
+     * Set session token used for accessing the Homey
+     * @param homeyToken Homey session token
+     */
+    private void setHomeyToken(String homeyToken) {
+        Token token = new Token();
         token.setAccessToken(homeyToken);
         homeyTokenInterceptor.setSessionToken(token);
+    }
 
-        Timber.i("Successfully authenticated against homey");
+    /**
+     * Create a realtime connection to the Homey, pushing capability updates of devices
+     * @param listener listener receiving capability changes
+     * @return realtime connection to the Homey, not yet connected
+     */
+    public HomeyRealtime createRealtime(HomeyRealtime.CapabilityListener listener) {
+        // Token is read on every handshake, as it is renewed once the Homey rejects it
+        HomeyRealtime.TokenProvider tokens = new HomeyRealtime.TokenProvider() {
+            @Override
+            public String getToken() {
+                HomeySession current = session;
+                return current == null ? null : current.getToken();
+            }
 
-        // Notify all threads that the homeyAPI is authenticated
-        synchronized (this){
-            this.notifyAll();
-        }
+            @Override
+            public boolean renewToken() {
+                return reauthenticateHomey();
+            }
+        };
+
+        return new HomeyRealtime(homeyClient, session.getRemoteUrl(), tokens,
+                session.getHomeyId(), listener);
     }
 
     /**
-     * Get a list of favorite devices
-     * @return list of favorite devices
+     * Get a list of favorite devices. Few favorites are fetched one request per device, many
+     * with the list of all devices, as chosen by the FavoritesPlanner
+     * @return list of favorite devices, favorites which failed to fetch are left out
      */
     public Map<String, Device> getDevices(){
+        return getFavorites().getDevices();
+    }
+
+    /**
+     * Get favorite devices, telling whether every favorite is fetched
+     * @return favorite devices, incomplete if the user or some favorites failed to fetch
+     */
+    public Favorites getFavorites(){
         // LinkedHashMap keeps order of keys
         Map<String, Device> newList = new LinkedHashMap<>();
+        List<String> favorites;
 
         try {
-            Call<Map<String, Device>> call = homeyService.getDevices();
-            Map<String, Device> devices = call.execute().body();
-
             Call<User> userCall = homeyService.getUser();
             User user = userCall.execute().body();
 
-            for(String id : user.getDeviceFavorites()) {
-                Device device = devices.get(id);
-                device.setCapability(); // Configure capability and onoff value
-                newList.put(id, device);
-            }
+            if (user == null)
+                return new Favorites(newList, false);
+
+            favorites = user.getDeviceFavorites();
+            if (favorites == null)
+                return new Favorites(newList, false);
         } catch (IOException ioe){
             Timber.e(ioe, "Failed to retrieve devices");
+            return new Favorites(newList, false);
         }
 
-        return newList;
+        // Shares the device list with other callers, capabilities are already configured
+        Map<String, Device> devices = peekAllDevices();
+        boolean complete = true;
+        if (devices != null) {
+            // Reusing the list costs nothing, so it is no decision of the planner
+            favoritesPlanner.recordCached();
+        } else {
+            FavoritesPlanner.Strategy strategy = favoritesPlanner.choose(favorites.size());
+            long start = SystemClock.elapsedRealtime();
+
+            if (strategy == FavoritesPlanner.Strategy.PER_DEVICE) {
+                // A failed fetch cannot be told apart from a removed device, so a removed
+                // favorite is only deleted once fetched with the list of all devices
+                devices = fetchDevices(favorites);
+                complete = devices.size() == favorites.size();
+            } else {
+                // Failed fetch of the list returns no devices
+                devices = getAllDevices();
+                complete = !devices.isEmpty();
+            }
+
+            favoritesPlanner.record(strategy, SystemClock.elapsedRealtime() - start);
+        }
+
+        for(String id : favorites) {
+            Device device = devices.get(id);
+            if (device != null)
+                newList.put(id, device);
+        }
+
+        if (!complete)
+            Timber.w("Fetched %d of %d favorites", newList.size(), favorites.size());
+
+        return new Favorites(newList, complete);
     }
 
     /**
-     * Get all devices (not just favorites)
-     * @return map of all devices
+     * Get all devices (not just favorites). Concurrent callers share one request, and the result
+     * is reused while fresh
+     * @return unmodifiable map of all devices
      */
     public Map<String, Device> getAllDevices() {
+        return allDevicesFlight.get(this::fetchAllDevices);
+    }
+
+    /**
+     * Get all devices if fetched recently, without fetching
+     * @return unmodifiable map of all devices, null if not fetched recently
+     */
+    public Map<String, Device> peekAllDevices() {
+        return allDevicesFlight.peek();
+    }
+
+    /**
+     * Patch a capability value in the reusable device list, so the list stays reusable while
+     * values change. Only values confirmed by the Homey are patched, unknown devices are ignored
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param value new value of capability
+     */
+    public void patchDevice(String deviceId, String capabilityId, Object value) {
+        allDevicesFlight.update(devices -> {
+            Device device = devices.get(deviceId);
+            if (device == null || capabilityId == null)
+                return devices;
+
+            Map<String, Device> patched = new LinkedHashMap<>(devices);
+            patched.put(deviceId, device.withCapabilityValue(capabilityId, value));
+            return Collections.unmodifiableMap(patched);
+        });
+    }
+
+    /**
+     * Forget the reusable device list, used once devices are added or removed
+     */
+    public void invalidateDevices() {
+        allDevicesFlight.invalidate();
+    }
+
+    /**
+     * Set time fetched devices, zones and flows are reused
+     * @param freshness time in milliseconds, 0 to only share concurrent requests
+     */
+    public void setFreshness(long freshness) {
+        allDevicesFlight.setFreshness(freshness);
+        zonesFlight.setFreshness(freshness);
+        flowsFlight.setFreshness(freshness);
+    }
+
+    /**
+     * Fetch all devices from the Homey
+     * @return unmodifiable map of all devices, empty if failed
+     */
+    private Map<String, Device> fetchAllDevices() {
         // LinkedHashMap keeps order of keys
         Map<String, Device> allDevices = new LinkedHashMap<>();
 
@@ -318,7 +719,7 @@ public class HomeyAPI {
             Timber.e(ioe, "Failed to retrieve all devices");
         }
 
-        return allDevices;
+        return Collections.unmodifiableMap(allDevices);
     }
 
     /**
@@ -326,10 +727,18 @@ public class HomeyAPI {
      * @param device device to turn on or off
      */
     public Call<Map<String, Object>> turnOnOff(Device device){
-        Map<String, Boolean> jsonParams = new HashMap<>();
-
         // Set new value, onoff is opposite of current value
-        jsonParams.put("value", !device.isOn());
+        return setOnOff(device, !device.isOn());
+    }
+
+    /**
+     * Turn device on or off
+     * @param device device to turn on or off
+     * @param on new on value
+     */
+    public Call<Map<String, Object>> setOnOff(Device device, boolean on){
+        Map<String, Boolean> jsonParams = new HashMap<>();
+        jsonParams.put("value", on);
 
         return homeyService.setCapability(
                 device.getId(),
@@ -339,10 +748,18 @@ public class HomeyAPI {
     }
 
     /**
-     * Get all zones
-     * @return map of zones
+     * Get all zones. Concurrent callers share one request, and the result is reused while fresh
+     * @return unmodifiable map of zones
      */
     public Map<String, Zone> getZones() {
+        return zonesFlight.get(this::fetchZones);
+    }
+
+    /**
+     * Fetch all zones from the Homey
+     * @return unmodifiable map of zones, empty if failed
+     */
+    private Map<String, Zone> fetchZones() {
         Timber.d("getZones: Starting API call");
         try {
             Call<Map<String, Zone>> call = homeyService.getZones();
@@ -353,31 +770,39 @@ public class HomeyAPI {
             if (!response.isSuccessful()) {
                 Timber.e("getZones: API call failed with code %d: %s", 
                     response.code(), response.message());
-                return new HashMap<>();
+                return Collections.emptyMap();
             }
             
             Map<String, Zone> zones = response.body();
             if (zones == null) {
                 Timber.w("getZones: API returned null body");
-                return new HashMap<>();
+                return Collections.emptyMap();
             }
             
             Timber.d("getZones: Successfully retrieved %d zones", zones.size());
-            return zones;
+            return Collections.unmodifiableMap(zones);
         } catch (IOException ioe) {
             Timber.e(ioe, "getZones: IOException - %s", ioe.getMessage());
-            return new HashMap<>();
+            return Collections.emptyMap();
         } catch (Exception e) {
             Timber.e(e, "getZones: Unexpected exception - %s", e.getMessage());
-            return new HashMap<>();
+            return Collections.emptyMap();
         }
     }
 
     /**
-     * Get all flows
-     * @return map of flows
+     * Get all flows. Concurrent callers share one request, and the result is reused while fresh
+     * @return unmodifiable map of flows
      */
     public Map<String, Flow> getFlows() {
+        return flowsFlight.get(this::fetchFlows);
+    }
+
+    /**
+     * Fetch all flows from the Homey
+     * @return unmodifiable map of flows, empty if failed
+     */
+    private Map<String, Flow> fetchFlows() {
         Timber.d("getFlows: Starting API call");
         try {
             Call<Map<String, Flow>> call = homeyService.getFlows();
@@ -388,23 +813,23 @@ public class HomeyAPI {
             if (!response.isSuccessful()) {
                 Timber.e("getFlows: API call failed with code %d: %s", 
                     response.code(), response.message());
-                return new HashMap<>();
+                return Collections.emptyMap();
             }
             
             Map<String, Flow> flows = response.body();
             if (flows == null) {
                 Timber.w("getFlows: API returned null body");
-                return new HashMap<>();
+                return Collections.emptyMap();
             }
             
             Timber.d("getFlows: Successfully retrieved %d flows", flows.size());
-            return flows;
+            return Collections.unmodifiableMap(flows);
         } catch (IOException ioe) {
             Timber.e(ioe, "getFlows: IOException - %s", ioe.getMessage());
-            return new HashMap<>();
+            return Collections.emptyMap();
         } catch (Exception e) {
             Timber.e(e, "getFlows: Unexpected exception - %s", e.getMessage());
-            return new HashMap<>();
+            return Collections.emptyMap();
         }
     }
 
@@ -431,6 +856,29 @@ public class HomeyAPI {
         }
     }
 
+    /**
+     * Fetch devices concurrently, requests share one connection to the Homey
+     * @param deviceIds IDs of devices to fetch
+     * @return fetched devices by ID, devices which failed to fetch are left out
+     */
+    public Map<String, Device> fetchDevices(Collection<String> deviceIds) {
+        Map<String, CompletableFuture<Device>> fetches = new LinkedHashMap<>();
+        for (String id : deviceIds)
+            fetches.put(id, CompletableFuture.supplyAsync(() -> getDevice(id), executor));
+
+        Map<String, Device> devices = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<Device>> entry : fetches.entrySet()) {
+            Device device = entry.getValue().join();
+            if (device == null)
+                continue;
+
+            device.setCapability(); // Configure capability and onoff value
+            devices.put(entry.getKey(), device);
+        }
+
+        return devices;
+    }
+
     /**
      * Set capability value for a device
      * @param deviceId device ID
@@ -0,0 +1,449 @@
+package com.xseth.homey.homey;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import timber.log.Timber;
+
+/**
+ * Minimal socket.io (Engine.IO v3) client for the Homey realtime event stream.
+ *
+ * Only the parts needed for device capability updates are implemented: the namespace handshake,
+ * heartbeat, subscribing to devices and parsing capability events.
+ */
+public class HomeyRealtime extends WebSocketListener {
+
+    /**
+     * Listener for capability changes pushed by the Homey
+     */
+    public interface CapabilityListener {
+        void onCapabilityChanged(String deviceId, String capabilityId, Object value);
+    }
+
+    /**
+     * Source of the Homey session token used for the handshake
+     */
+    public interface TokenProvider {
+        /**
+         * Get the current session token
+         * @return Homey session token
+         */
+        String getToken();
+
+        /**
+         * Retrieve a new session token, called once the Homey rejects the current token
+         * @return whether a new session token is retrieved
+         */
+        boolean renewToken();
+    }
+
+    // Namespace used for the handshake with the Homey
+    private static final String API_NAMESPACE = "/api";
+    // Prefix of device URIs used for subscriptions and events
+    private static final String DEVICE_URI = "homey:device:";
+    // Initial time in MS to wait before reconnecting
+    private static final long RECONNECT_DELAY = 1000;
+    // Maximum time in MS to wait before reconnecting
+    private static final long RECONNECT_DELAY_MAX = 60 * 1000;
+
+    // HTTP client used to open the websocket
+    private final OkHttpClient client;
+    // Base URL of the Homey
+    private final String baseUrl;
+    // Source of the Homey session token, read on every handshake
+    private final TokenProvider tokens;
+    // Homey ID
+    private final String homeyId;
+    // Listener receiving capability changes
+    private final CapabilityListener listener;
+    // Device IDs to receive capability updates for
+    private final Set<String> devices = ConcurrentHashMap.newKeySet();
+    // Executor used for heartbeat and reconnects
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    // Counter for socket.io acknowledgement IDs
+    private final AtomicInteger ackCounter = new AtomicInteger();
+
+    // Current websocket, null if not connected
+    private volatile WebSocket socket;
+    // Namespace assigned by the Homey after the handshake
+    private volatile String namespace;
+    // Whether events are received from the Homey
+    private volatile boolean connected = false;
+    // Whether the connection should be kept open
+    private volatile boolean running = false;
+    // Pending heartbeat task
+    private ScheduledFuture<?> heartbeat;
+    // Time in MS to wait before the next reconnect
+    private long reconnectDelay = RECONNECT_DELAY;
+    // Whether the token is renewed since the last established connection
+    private boolean tokenRenewed = false;
+
+    /**
+     * HomeyRealtime constructor
+     * @param client HTTP client used to open the websocket
+     * @param baseUrl base URL of the Homey
+     * @param tokens source of the Homey session token
+     * @param homeyId ID of the Homey
+     * @param listener listener receiving capability changes
+     */
+    public HomeyRealtime(OkHttpClient client, String baseUrl, TokenProvider tokens, String homeyId,
+                         CapabilityListener listener) {
+        this.client = client;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.tokens = tokens;
+        this.homeyId = homeyId;
+        this.listener = listener;
+    }
+
+    /**
+     * Open the connection to the Homey, reconnecting on failures until closed
+     */
+    public synchronized void connect() {
+        if (running)
+            return;
+
+        running = true;
+        reconnectDelay = RECONNECT_DELAY;
+        open();
+    }
+
+    /**
+     * Close the connection to the Homey. A closed instance cannot be reconnected
+     */
+    public synchronized void close() {
+        running = false;
+        connected = false;
+
+        if (heartbeat != null)
+            heartbeat.cancel(false);
+
+        if (socket != null)
+            socket.close(1000, null);
+
+        socket = null;
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Whether events from the Homey are currently received
+     * @return if the realtime connection is established
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Set devices to receive capability updates for, devices no longer in the set are
+     * unsubscribed
+     * @param deviceIds IDs of devices to subscribe to
+     */
+    public synchronized void setDevices(Collection<String> deviceIds) {
+        Set<String> removed = new HashSet<>(devices);
+        removed.removeAll(deviceIds);
+
+        for (String id : removed) {
+            devices.remove(id);
+            if (connected)
+                emit(namespace, new JsonPrimitive("unsubscribe"), uri(id));
+        }
+
+        for (String id : deviceIds) {
+            if (devices.add(id) && connected)
+                subscribe(id);
+        }
+    }
+
+    /**
+     * Open a new websocket to the Homey
+     */
+    private void open() {
+        String url = baseUrl + "socket.io/?EIO=3&transport=websocket";
+        Timber.d("Opening realtime connection to %s", url);
+
+        socket = client.newWebSocket(new Request.Builder().url(url).build(), this);
+    }
+
+    /**
+     * Schedule a reconnect with exponential backoff
+     */
+    private synchronized void scheduleReconnect() {
+        connected = false;
+
+        if (heartbeat != null)
+            heartbeat.cancel(false);
+
+        if (!running)
+            return;
+
+        Timber.i("Realtime connection lost, reconnecting in %d ms", reconnectDelay);
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                if (running) open();
+            }
+        }, reconnectDelay, TimeUnit.MILLISECONDS);
+
+        reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_DELAY_MAX);
+    }
+
+    /**
+     * Emit a socket.io event with acknowledgement on a namespace
+     * @param ns namespace to emit on
+     * @param args event name followed by arguments
+     */
+    private void emit(String ns, JsonElement... args) {
+        JsonArray payload = new JsonArray();
+        for (JsonElement arg : args) payload.add(arg);
+
+        socket.send("42" + ns + "," + ackCounter.incrementAndGet() + payload);
+    }
+
+    /**
+     * Subscribe to events of a device
+     * @param deviceId device to subscribe to
+     */
+    private void subscribe(String deviceId) {
+        emit(namespace, new JsonPrimitive("subscribe"), uri(deviceId));
+    }
+
+    /**
+     * Get URI of a device, used for subscriptions and events
+     */
+    private static JsonPrimitive uri(String deviceId) {
+        return new JsonPrimitive(DEVICE_URI + deviceId);
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+        if (webSocket != socket || text.isEmpty())
+            return;
+
+        try {
+            // Engine.IO packet types: 0 = open, 2 = ping, 3 = pong, 4 = message
+            switch (text.charAt(0)) {
+                case '0':
+                    onEngineOpen(JsonParser.parseString(text.substring(1)).getAsJsonObject());
+                    break;
+                case '2':
+                    webSocket.send("3");
+                    break;
+                case '4':
+                    if (text.length() > 1)
+                        onPacket(text.charAt(1), text.substring(2));
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Timber.e(e, "Failed to parse realtime message: %s", text);
+        }
+    }
+
+    /**
+     * Handle the Engine.IO open packet, start the heartbeat and join the API namespace
+     * @param handshake handshake data send by the Homey
+     */
+    private synchronized void onEngineOpen(JsonObject handshake) {
+        long interval = handshake.get("pingInterval").getAsLong();
+
+        if (heartbeat != null)
+            heartbeat.cancel(false);
+
+        heartbeat = scheduler.scheduleWithFixedDelay(() -> {
+            WebSocket ws = socket;
+            if (ws != null) ws.send("2");
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        socket.send("40" + API_NAMESPACE + ",");
+    }
+
+    /**
+     * Handle a socket.io packet
+     * @param type socket.io packet type
+     * @param packet remainder of the packet, containing namespace, ack ID and data
+     */
+    private void onPacket(char type, String packet) {
+        String ns = "/";
+
+        // Split off namespace
+        if (packet.startsWith("/")) {
+            int comma = packet.indexOf(',');
+            ns = comma < 0 ? packet : packet.substring(0, comma);
+            packet = comma < 0 ? "" : packet.substring(comma + 1);
+        }
+
+        // Skip acknowledgement ID
+        int start = 0;
+        while (start < packet.length() && Character.isDigit(packet.charAt(start))) start++;
+        String data = packet.substring(start);
+
+        switch (type) {
+            // Namespace connected
+            case '0':
+                onNamespaceConnect(ns);
+                break;
+            // Event
+            case '2':
+                onEvent(JsonParser.parseString(data).getAsJsonArray());
+                break;
+            // Acknowledgement
+            case '3':
+                if (ns.equals(API_NAMESPACE))
+                    onHandshake(JsonParser.parseString(data).getAsJsonArray());
+                break;
+            // Error
+            case '4':
+                Timber.e("Realtime error on %s: %s", ns, data);
+                break;
+        }
+    }
+
+    /**
+     * Handle a connected namespace
+     * @param ns namespace which is connected
+     */
+    private void onNamespaceConnect(String ns) {
+        if (ns.equals(API_NAMESPACE)) {
+            JsonObject handshake = new JsonObject();
+            handshake.addProperty("token", tokens.getToken());
+            handshake.addProperty("homeyId", homeyId);
+
+            emit(API_NAMESPACE, new JsonPrimitive("handshakeClient"), handshake);
+        } else if (ns.equals(namespace)) {
+            synchronized (this) {
+                Timber.i("Realtime connection established, subscribing %d devices", devices.size());
+                connected = true;
+                reconnectDelay = RECONNECT_DELAY;
+                tokenRenewed = false;
+
+                for (String id : devices) subscribe(id);
+            }
+
+            // Homey is reachable, replay writes recorded while it was not
+            CommandJournal journal = CommandJournal.getInstance();
+            if (journal != null)
+                journal.onReachable();
+        }
+    }
+
+    /**
+     * Handle handshake result, containing namespace for the Homey
+     * @param result acknowledgement arguments, error followed by result
+     */
+    private void onHandshake(JsonArray result) {
+        if (result.size() < 2 || !result.get(0).isJsonNull()) {
+            Timber.e("Realtime handshake failed: %s", result);
+            onHandshakeRejected();
+            return;
+        }
+
+        namespace = result.get(1).getAsJsonObject().get("namespace").getAsString();
+        socket.send("40" + namespace + ",");
+    }
+
+    /**
+     * Handle a rejected handshake. The token is renewed once and the connection reopened, if
+     * the renewed token is rejected as well reconnecting stops
+     */
+    private synchronized void onHandshakeRejected() {
+        WebSocket rejected = socket;
+        // Closing is not a lost connection, do not reconnect from onClosed
+        socket = null;
+        connected = false;
+
+        if (heartbeat != null)
+            heartbeat.cancel(false);
+
+        if (rejected != null)
+            rejected.close(1000, null);
+
+        if (!running)
+            return;
+
+        if (tokenRenewed) {
+            Timber.e("Realtime handshake rejected after renewing token, stop reconnecting");
+            running = false;
+            return;
+        }
+
+        tokenRenewed = true;
+        scheduler.execute(() -> {
+            if (!tokens.renewToken()) {
+                Timber.e("Failed to renew token, stop reconnecting");
+                synchronized (this) {
+                    running = false;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                if (running) open();
+            }
+        });
+    }
+
+    /**
+     * Handle an event, only device capability events are processed
+     * @param event event name followed by arguments
+     */
+    private void onEvent(JsonArray event) {
+        if (event.size() < 3)
+            return;
+
+        String uri = event.get(0).getAsString();
+        if (!uri.startsWith(DEVICE_URI) || !event.get(1).getAsString().equals("capability"))
+            return;
+
+        // Events of unsubscribed devices may still be in flight
+        String deviceId = uri.substring(DEVICE_URI.length());
+        if (!devices.contains(deviceId))
+            return;
+
+        JsonObject data = event.get(2).getAsJsonObject();
+        JsonElement value = data.get("value");
+        if (value == null || !value.isJsonPrimitive())
+            return;
+
+        JsonPrimitive primitive = value.getAsJsonPrimitive();
+        Object parsed;
+        if (primitive.isBoolean())
+            parsed = primitive.getAsBoolean();
+        else if (primitive.isNumber())
+            parsed = primitive.getAsDouble();
+        else
+            parsed = primitive.getAsString();
+
+        listener.onCapabilityChanged(deviceId, data.get("capabilityId").getAsString(), parsed);
+    }
+
+    @Override
+    public void onClosed(WebSocket webSocket, int code, String reason) {
+        if (webSocket == socket)
+            scheduleReconnect();
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+        if (webSocket != socket)
+            return;
+
+        Timber.w(t, "Realtime connection failed");
+        scheduleReconnect();
+    }
+}
@@ -0,0 +1,145 @@
+package com.xseth.homey.homey;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Call to the Homey which is created once the HomeyAPI is authenticated.
+ *
+ * Callbacks always receive this call, also if the HomeyAPI fails to become ready. The request
+ * of the underlying call is only known once ready, before that a placeholder request is returned.
+ */
+class ReadyCall<T> implements Call<T> {
+
+    // Request returned while the underlying call is not created
+    private static final Request PLACEHOLDER = new Request.Builder()
+            .url("https://homey.invalid/").build();
+
+    // Completes once the HomeyAPI is authenticated
+    private final CompletableFuture<?> ready;
+    // Creates the underlying call, only used once ready
+    private final Supplier<Call<T>> factory;
+    // Handler delivering readiness failures on the main thread, like retrofit does
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Underlying call, null until ready
+    private Call<T> delegate;
+    private boolean executed = false;
+    private volatile boolean canceled = false;
+
+    /**
+     * ReadyCall constructor
+     * @param ready future completing once the HomeyAPI is authenticated
+     * @param factory creates the call once ready
+     */
+    ReadyCall(CompletableFuture<?> ready, Supplier<Call<T>> factory) {
+        this.ready = ready;
+        this.factory = factory;
+    }
+
+    /**
+     * Get underlying call, created on first use
+     */
+    private synchronized Call<T> delegate() {
+        if (delegate == null)
+            delegate = factory.get();
+        if (canceled)
+            delegate.cancel();
+        return delegate;
+    }
+
+    /**
+     * Mark call as executed, a call can only be executed once
+     */
+    private synchronized void markExecuted() {
+        if (executed)
+            throw new IllegalStateException("Already executed");
+        executed = true;
+    }
+
+    @Override
+    public Response<T> execute() throws IOException {
+        markExecuted();
+
+        try {
+            ready.get();
+        } catch (ExecutionException e) {
+            throw new IOException("HomeyAPI not authenticated", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for HomeyAPI", e);
+        }
+
+        return delegate().execute();
+    }
+
+    @Override
+    public void enqueue(Callback<T> callback) {
+        markExecuted();
+
+        ready.whenComplete((service, error) -> {
+            if (error != null) {
+                handler.post(() -> callback.onFailure(this, error));
+                return;
+            }
+
+            delegate().enqueue(new Callback<T>() {
+                @Override
+                public void onResponse(Call<T> call, Response<T> response) {
+                    callback.onResponse(ReadyCall.this, response);
+                }
+
+                @Override
+                public void onFailure(Call<T> call, Throwable t) {
+                    callback.onFailure(ReadyCall.this, t);
+                }
+            });
+        });
+    }
+
+    @Override
+    public synchronized boolean isExecuted() {
+        return executed;
+    }
+
+    @Override
+    public synchronized void cancel() {
+        canceled = true;
+        if (delegate != null)
+            delegate.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public Call<T> clone() {
+        return new ReadyCall<>(ready, factory);
+    }
+
+    @Override
+    public synchronized Request request() {
+        if (!ready.isDone() || ready.isCompletedExceptionally())
+            return PLACEHOLDER;
+
+        return delegate().request();
+    }
+
+    @Override
+    public synchronized Timeout timeout() {
+        return delegate != null ? delegate.timeout() : Timeout.NONE;
+    }
+}
@@ -0,0 +1,191 @@
+package com.xseth.homey.homey;
+
+import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.utils.StartupTimer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.HttpException;
+import retrofit2.Response;
+import timber.log.Timber;
+
+/**
+ * Turns devices on or off optimistically.
+ *
+ * The new state is shown right away and reconciled with the value returned by the Homey. If the
+ * Homey rejects the request the last confirmed state is restored, if the Homey is unreachable the
+ * new state is kept and replayed later by the CommandJournal. Every toggle of a device gets a
+ * sequence number, responses of older toggles are not shown so quick repeated taps end in the
+ * last state. States are written via the CommandCoalescer, so intermediate states of quick taps
+ * are not sent.
+ * Only used on the main thread.
+ */
+public class ToggleController {
+
+    /**
+     * Listener notified once a toggle is done, called on the main thread
+     */
+    public interface ToggleListener {
+        /**
+         * Called once the Homey confirmed the latest toggle
+         * @param device toggled device
+         * @param on value returned by the Homey
+         */
+        void onToggled(Device device, boolean on);
+
+        /**
+         * Called once the latest toggle failed, the confirmed state is already restored
+         * @param device toggled device
+         * @param error cause of the failure
+         */
+        void onFailed(Device device, Throwable error);
+
+        /**
+         * Called once the latest toggle could not reach the Homey, it is sent once reachable
+         * @param device toggled device
+         * @param on state which is kept shown
+         */
+        void onQueued(Device device, boolean on);
+    }
+
+    /**
+     * Toggles of a device which are not yet confirmed
+     */
+    private static class Pending {
+        // Sequence number of the latest toggle
+        private int sequence;
+        // Last state confirmed by the Homey
+        private boolean confirmed;
+        // State submitted by the latest toggle
+        private boolean target;
+
+        private Pending(boolean confirmed) {
+            this.confirmed = confirmed;
+        }
+    }
+
+    // ToggleController instance
+    private static ToggleController INSTANCE;
+
+    // Unconfirmed toggles by device ID
+    private final Map<String, Pending> pending = new HashMap<>();
+
+    /**
+     * Get instance of ToggleController
+     * @return instance of ToggleController
+     */
+    public static ToggleController getInstance() {
+        if (INSTANCE == null)
+            INSTANCE = new ToggleController();
+        return INSTANCE;
+    }
+
+    private ToggleController() {}
+
+    /**
+     * Turn device on if off and off if on, showing the new state right away
+     * @param device device as currently shown
+     * @param listener listener notified once done
+     */
+    public void toggle(Device device, ToggleListener listener) {
+        String id = device.getId();
+        Pending state = pending.get(id);
+
+        // Shown device only changes once the adapter applied the previous toggle, so a quick
+        // second tap toggles the state submitted last. Buttons always send the same value
+        boolean target = state == null || device.isButton() ? !device.isOn() : !state.target;
+        if (state == null) {
+            state = new Pending(device.isOn());
+            pending.put(id, state);
+        }
+
+        final Pending toggle = state;
+        final int sequence = ++toggle.sequence;
+        toggle.target = target;
+
+        // Button has no state, it is always on
+        if (!device.isButton())
+            show(device, target);
+
+        Callback<Map<String, Object>> callback = new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                if (!response.isSuccessful()) {
+                    onFailure(call, new HttpException(response));
+                    return;
+                }
+
+                StartupTimer.mark("First toggle");
+                boolean value = target;
+
+                // if button no value is returned
+                Map<String, Object> body = response.body();
+                if (body != null && body.get("value") instanceof Boolean)
+                    value = (Boolean) body.get("value");
+
+                toggle.confirmed = value;
+
+                // A later toggle is in flight, its response decides the shown state
+                if (toggle.sequence != sequence) {
+                    Timber.d("Discard response of older toggle %d of %s", sequence, id);
+                    return;
+                }
+
+                pending.remove(id);
+                if (!device.isButton())
+                    show(device, value);
+                listener.onToggled(device, value);
+            }
+
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                if (toggle.sequence != sequence)
+                    return;
+
+                pending.remove(id);
+
+                // Coalescer recorded the state, it is written once the Homey is reachable
+                if (!device.isButton() && CommandJournal.getInstance() != null &&
+                        CommandJournal.isOffline(t)) {
+                    Timber.w(t, "Failed to reach Homey, keep %s of %s for replay", target, id);
+                    listener.onQueued(device, target);
+                    return;
+                }
+
+                Timber.e(t, "Failed to toggle %s, restore %s", id, toggle.confirmed);
+                if (!device.isButton())
+                    show(device, toggle.confirmed);
+                listener.onFailed(device, t);
+            }
+        };
+
+        // Every press of a button is sent, states are coalesced so only the latest is sent
+        if (device.isButton())
+            device.turnOnOff(target, callback);
+        else
+            CommandCoalescer.getInstance().submit(id, device.getCapability(), target, callback);
+    }
+
+    /**
+     * Show state of device in all screens
+     * @param device device to change
+     * @param on new on value
+     */
+    private static void show(Device device, boolean on) {
+        // Store writes known devices to room itself
+        if (HomeStateStore.getInstance().setOn(device.getId(), on))
+            return;
+
+        // Stored devices are shown before all devices are fetched into the store
+        DeviceRepository devices = DeviceRepository.getInstance();
+        if (devices != null)
+            devices.setOn(device.getId(), device.getCapability(), on);
+
+        ZoneRepository zones = ZoneRepository.getInstance();
+        if (zones != null)
+            zones.setOn(device.getId(), on);
+    }
+}
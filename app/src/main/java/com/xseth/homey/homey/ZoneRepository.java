@@ -0,0 +1,200 @@
+package com.xseth.homey.homey;
+
+import android.app.Application;
+import android.os.SystemClock;
+
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Transformations;
+
+import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.homey.models.Zone;
+import com.xseth.homey.homey.models.ZoneDevice;
+import com.xseth.homey.storage.HomeyRoomDatabase;
+import com.xseth.homey.storage.SyncState;
+import com.xseth.homey.storage.ZoneDAO;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import timber.log.Timber;
+
+/**
+ * Zones and their devices stored in room, so they are shown before the Homey is reachable.
+ *
+ * Screens observe the stored zones, which are revalidated against the Homey in the background.
+ * Only changed rows are written, so an unchanged revalidation does not update the screens.
+ */
+public class ZoneRepository {
+
+    // Source of snapshots published by revalidation, which stores them itself
+    private static final Object REVALIDATION = new Object();
+
+    // ZoneRepository instance
+    private static volatile ZoneRepository instance;
+    // Zone DAO for room access
+    private final ZoneDAO zoneDAO;
+    // LiveData of zones
+    private final LiveData<List<Zone>> zones;
+
+    /**
+     * Get instance of ZoneRepository
+     * @return instance of ZoneRepository, null if not built
+     */
+    public static ZoneRepository getInstance() {
+        return instance;
+    }
+
+    /**
+     * Get instance of ZoneRepository, built if needed
+     * @param application application used to create room used by zoneRepository
+     * @return instance of ZoneRepository
+     */
+    public static ZoneRepository getInstance(Application application) {
+        if (instance == null) {
+            synchronized (ZoneRepository.class) {
+                if (instance == null)
+                    instance = new ZoneRepository(application);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Zone repository constructor
+     * @param application application used to create room used by zoneRepository
+     */
+    private ZoneRepository(Application application) {
+        HomeyRoomDatabase db = HomeyRoomDatabase.getDatabase(application);
+        zoneDAO = db.zoneDAO();
+        zones = zoneDAO.getZones();
+
+        // Keep stored zone devices in sync with changes made anywhere in the app
+        HomeStateStore.getInstance().addListener(this::onStateChanged);
+    }
+
+    /**
+     * Get stored zones, ordered by their order in the Homey
+     * @return livedata list of zones
+     */
+    public LiveData<List<Zone>> getZones() {
+        return zones;
+    }
+
+    /**
+     * Get stored devices of zone
+     * @param zoneId zone ID
+     * @return livedata list of devices, ordered by name
+     */
+    public LiveData<List<Device>> getZoneDevices(String zoneId) {
+        return Transformations.map(zoneDAO.getZoneDevices(zoneId), stored -> {
+            List<Device> devices = new ArrayList<>(stored.size());
+            for (ZoneDevice device : stored)
+                devices.add(device.toDevice());
+            return devices;
+        });
+    }
+
+    /**
+     * Get time at which zones are last synced with the Homey
+     * @return livedata wall clock time in milliseconds, null if never synced
+     */
+    public LiveData<Long> getZonesSyncedAt() {
+        return zoneDAO.getSyncedAt(SyncState.ZONES);
+    }
+
+    /**
+     * Sync stored zones and zone devices with the Homey, if not loaded recently
+     * @param maxAge maximum age in milliseconds of loaded zones and devices, 0 to always fetch
+     * @return future completing with the number of zones once stored, completing exceptionally
+     * if the zones or devices could not be fetched
+     */
+    public CompletableFuture<Integer> revalidate(long maxAge) {
+        HomeStateStore store = HomeStateStore.getInstance();
+        long start = SystemClock.elapsedRealtime();
+
+        CompletableFuture<HomeStateStore.Snapshot> zones = store.ensureZones(maxAge);
+        CompletableFuture<HomeStateStore.Snapshot> devices =
+                store.ensureDevices(maxAge, REVALIDATION);
+
+        return CompletableFuture.allOf(zones, devices).thenApplyAsync(done -> {
+            HomeStateStore.Snapshot snapshot = store.getSnapshot();
+
+            // Failed fetch keeps the previous snapshot, keep stored zones and their sync time
+            if (!isLoaded(snapshot.getZonesFetchedAt(), start, maxAge) ||
+                    !isLoaded(snapshot.getDevicesFetchedAt(), start, maxAge))
+                throw new CompletionException(new IOException("Failed to fetch zones"));
+
+            int changes = zoneDAO.syncZones(snapshot.getZones().values());
+            changes += zoneDAO.syncZoneDevices(snapshot.getDevices().values(), true);
+
+            zoneDAO.setSyncState(new SyncState(SyncState.ZONES, System.currentTimeMillis()));
+            Timber.i("Revalidated zones, %d changes", changes);
+
+            return snapshot.getZones().size();
+        }, HomeyRoomDatabase.databaseWriteExecutor);
+    }
+
+    /**
+     * Whether state is fetched by a revalidation, or was still fresh when it started
+     * @param fetchedAt time of fetch, 0 if never fetched
+     * @param start time the revalidation started
+     * @param maxAge maximum age in milliseconds of loaded state
+     */
+    private static boolean isLoaded(long fetchedAt, long start, long maxAge) {
+        return fetchedAt > 0 && (fetchedAt >= start || start - fetchedAt < maxAge);
+    }
+
+    /**
+     * Refresh only the devices of a zone, stored devices are updated once changed. Syncs all
+     * zones and devices if no devices are loaded yet
+     * @param zoneId zone ID
+     * @return future completing with the number of devices in zone once refreshed
+     */
+    public CompletableFuture<Integer> refreshZone(String zoneId) {
+        HomeStateStore store = HomeStateStore.getInstance();
+
+        if (store.getSnapshot().getDevices().isEmpty())
+            return revalidate(HomeStateStore.DEFAULT_MAX_AGE);
+
+        return store.refreshZone(zoneId).thenApply(snapshot ->
+                snapshot.getZoneDeviceIds(zoneId).size());
+    }
+
+    /**
+     * Set on value of a stored device
+     * @param deviceId device to change
+     * @param on new on value
+     */
+    public void setOn(String deviceId, boolean on) {
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() -> zoneDAO.setOn(deviceId, on));
+    }
+
+    /**
+     * Store changed devices, called on the main thread
+     * @param snapshot new snapshot
+     * @param changedDeviceIds devices which are changed
+     */
+    private void onStateChanged(HomeStateStore.Snapshot snapshot, Set<String> changedDeviceIds) {
+        // Fetched devices are written by revalidate once zones are fetched as well
+        if (snapshot.getSource() == REVALIDATION)
+            return;
+
+        List<Device> changed = new ArrayList<>();
+        for (String id : changedDeviceIds) {
+            Device device = snapshot.getDevice(id);
+            if (device != null)
+                changed.add(device);
+        }
+
+        if (changed.isEmpty())
+            return;
+
+        // Removed devices are only deleted on revalidation
+        HomeyRoomDatabase.databaseWriteExecutor.execute(() ->
+                zoneDAO.syncZoneDevices(changed, false));
+    }
+}
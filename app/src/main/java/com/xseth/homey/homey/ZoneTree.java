@@ -0,0 +1,270 @@
+package com.xseth.homey.homey;
+
+import com.xseth.homey.homey.models.Zone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable hierarchy of zones, e.g. floors containing rooms.
+ *
+ * Zones are numbered in depth-first order, children ordered by their order in the Homey. The
+ * descendants of a zone are then a contiguous range of that numbering, so checking whether a
+ * zone is inside another and listing all zones inside a zone never walk the tree.
+ */
+public class ZoneTree {
+
+    // Orders zones as in the Homey, by order and then by name
+    private static final Comparator<Zone> ORDER = Comparator.comparingInt(Zone::getOrder)
+            .thenComparing(Zone::getName, String.CASE_INSENSITIVE_ORDER);
+
+    // Zones in depth-first order
+    private final Zone[] zones;
+    // IDs of zones in depth-first order
+    private final String[] ids;
+    // Position of zone in depth-first order, by zone ID
+    private final Map<String, Integer> positions;
+    // Position after the last descendant, per position
+    private final int[] ends;
+    // Position of parent per position, -1 for top-level zones
+    private final int[] parents;
+    // Top-level zones, ordered
+    private final List<Zone> roots;
+    // Child zones per zone ID, ordered
+    private final Map<String, List<Zone>> children;
+
+    /**
+     * ZoneTree constructor, zones with an unknown parent become top-level zones
+     * @param all all zones
+     */
+    public ZoneTree(Collection<Zone> all) {
+        Map<String, Zone> byId = new HashMap<>();
+        for (Zone zone : all)
+            byId.put(zone.getId(), zone);
+
+        List<Zone> topLevel = new ArrayList<>();
+        Map<String, List<Zone>> childLists = new HashMap<>();
+        for (Zone zone : byId.values()) {
+            String parentId = zone.getParentId();
+
+            if (parentId == null || parentId.equals(zone.getId()) || !byId.containsKey(parentId))
+                topLevel.add(zone);
+            else
+                childLists.computeIfAbsent(parentId, id -> new ArrayList<>()).add(zone);
+        }
+
+        topLevel.sort(ORDER);
+        for (List<Zone> list : childLists.values())
+            list.sort(ORDER);
+
+        int size = byId.size();
+        zones = new Zone[size];
+        ids = new String[size];
+        ends = new int[size];
+        parents = new int[size];
+        positions = new HashMap<>(size * 2);
+
+        // Positions whose children are being numbered, with the index of their next child
+        int[] stack = new int[size];
+        int[] childIndex = new int[size];
+
+        int next = 0;
+        for (Zone root : topLevel)
+            next = number(root, next, childLists, stack, childIndex);
+
+        // Zones in a parent cycle are not reachable from a top-level zone, treat them as top-level
+        if (next < size) {
+            List<Zone> unreached = new ArrayList<>();
+            for (Zone zone : byId.values()) {
+                if (!positions.containsKey(zone.getId()))
+                    unreached.add(zone);
+            }
+            unreached.sort(ORDER);
+
+            for (Zone zone : unreached) {
+                if (!positions.containsKey(zone.getId())) {
+                    topLevel.add(zone);
+                    next = number(zone, next, childLists, stack, childIndex);
+                }
+            }
+        }
+
+        Map<String, List<Zone>> childMap = new HashMap<>();
+        for (Map.Entry<String, List<Zone>> entry : childLists.entrySet())
+            childMap.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+
+        roots = Collections.unmodifiableList(topLevel);
+        children = childMap;
+    }
+
+    /**
+     * Number top-level zone and its descendants in depth-first order, iteratively so deep trees
+     * do not overflow the stack
+     * @return next free position
+     */
+    private int number(Zone root, int next, Map<String, List<Zone>> childLists, int[] stack,
+                       int[] childIndex) {
+        int depth = 0;
+
+        next = visit(root, -1, next);
+        stack[0] = next - 1;
+        childIndex[0] = 0;
+
+        while (depth >= 0) {
+            int position = stack[depth];
+            List<Zone> list = childLists.get(ids[position]);
+
+            if (list != null && childIndex[depth] < list.size()) {
+                Zone child = list.get(childIndex[depth]++);
+
+                // Already numbered via a cycle, skip
+                if (positions.containsKey(child.getId()))
+                    continue;
+
+                next = visit(child, position, next);
+                depth++;
+                stack[depth] = next - 1;
+                childIndex[depth] = 0;
+            } else {
+                ends[position] = next;
+                depth--;
+            }
+        }
+
+        return next;
+    }
+
+    /**
+     * Assign the next position to zone
+     * @return next free position
+     */
+    private int visit(Zone zone, int parent, int position) {
+        zones[position] = zone;
+        ids[position] = zone.getId();
+        parents[position] = parent;
+        positions.put(zone.getId(), position);
+        return position + 1;
+    }
+
+    /**
+     * Get top-level zones, e.g. floors
+     * @return ordered top-level zones
+     */
+    public List<Zone> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Get direct child zones
+     * @param zoneId zone ID
+     * @return ordered child zones, empty if none
+     */
+    public List<Zone> getChildren(String zoneId) {
+        List<Zone> list = children.get(zoneId);
+        return list == null ? Collections.emptyList() : list;
+    }
+
+    /**
+     * Whether zone contains other zones
+     * @param zoneId zone ID
+     * @return if zone has child zones
+     */
+    public boolean hasChildren(String zoneId) {
+        return children.containsKey(zoneId);
+    }
+
+    /**
+     * Get zone by ID
+     * @param zoneId zone ID
+     * @return zone, null if unknown
+     */
+    public Zone getZone(String zoneId) {
+        Integer position = positions.get(zoneId);
+        return position == null ? null : zones[position];
+    }
+
+    /**
+     * Get ID of the parent zone
+     * @param zoneId zone ID
+     * @return parent zone ID, null if top-level or unknown
+     */
+    public String getParentId(String zoneId) {
+        Integer position = positions.get(zoneId);
+        if (position == null || parents[position] < 0)
+            return null;
+
+        return ids[parents[position]];
+    }
+
+    /**
+     * Whether a zone is inside another zone, or is that zone
+     * @param ancestorId ID of the containing zone
+     * @param zoneId ID of the contained zone
+     * @return if zoneId is ancestorId or one of its descendants
+     */
+    public boolean contains(String ancestorId, String zoneId) {
+        Integer ancestor = positions.get(ancestorId);
+        Integer zone = positions.get(zoneId);
+
+        return ancestor != null && zone != null && ancestor <= zone && zone < ends[ancestor];
+    }
+
+    /**
+     * Get IDs of a zone and all zones inside it
+     * @param zoneId zone ID
+     * @return zone ID followed by its descendants in depth-first order, empty if unknown
+     */
+    public List<String> getSubtreeIds(String zoneId) {
+        Integer position = positions.get(zoneId);
+        if (position == null)
+            return Collections.emptyList();
+
+        return Collections.unmodifiableList(
+                Arrays.asList(ids).subList(position, ends[position]));
+    }
+
+    /**
+     * Get IDs of all zones inside any of the zones, each zone once
+     * @param zoneIds zone IDs, zones inside another of these zones are merged
+     * @return zone IDs in depth-first order
+     */
+    public List<String> getSubtreeIds(Collection<String> zoneIds) {
+        // Sort by position, so a nested zone directly follows the zone containing it
+        int[] starts = new int[zoneIds.size()];
+        int count = 0;
+        for (String id : zoneIds) {
+            Integer position = positions.get(id);
+            if (position != null)
+                starts[count++] = position;
+        }
+        Arrays.sort(starts, 0, count);
+
+        List<String> result = new ArrayList<>();
+        int covered = 0;
+        for (int i = 0; i < count; i++) {
+            int start = Math.max(starts[i], covered);
+            int end = ends[starts[i]];
+
+            for (int position = start; position < end; position++)
+                result.add(ids[position]);
+
+            covered = Math.max(covered, end);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get number of zones
+     * @return number of zones
+     */
+    public int size() {
+        return zones.length;
+    }
+}
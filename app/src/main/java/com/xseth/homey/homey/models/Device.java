@@ -1,28 +1,24 @@
 package com.xseth.homey.homey.models;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-
 import androidx.annotation.NonNull;
 import androidx.room.Entity;
 import androidx.room.Ignore;
 import androidx.room.PrimaryKey;
 
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 import com.xseth.homey.homey.HomeyAPI;
 
-import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import retrofit2.Call;
+import retrofit2.Callback;
 import timber.log.Timber;
 
 @Entity(tableName = "devices")
+@JsonAdapter(DeviceTypeAdapter.class)
 public class Device {
 
     // Device ID
@@ -40,9 +36,6 @@ public class Device {
     @NonNull
     private Boolean on;
 
-    // Device icon
-    public Bitmap iconImage;
-
     // Capability which is modified
     @NonNull
     public String capability;
@@ -57,15 +50,12 @@ public class Device {
     // Cached target temperature for relative changes
     private Double cachedTargetTemperature;
 
-    // Capabilities Object returned by API
+    // Values of used capabilities returned by API, in order returned by API
     @Ignore
-    @SerializedName("capabilitiesObj")
-    private Map<String, Map<String, Object>> capabilitiesObj;
+    private Map<String, Object> capabilityValues = new LinkedHashMap<>();
 
-    // Icon Object returned by API, containing icon IDs
-    @Ignore
-    @SerializedName("iconObj")
-    private Map<String, String> iconObj;
+    // Icon ID returned by API, icon itself is stored in the IconCache
+    private String iconId;
 
     /**
      * Device constructor
@@ -78,6 +68,45 @@ public class Device {
         this.on = true;
     }
 
+    /**
+     * Create a copy of this device, changes to the copy do not affect this device
+     * @return copy of device
+     */
+    public Device copy(){
+        Device copy = new Device(this.id, this.name);
+        copy.on = this.on;
+        copy.capability = this.capability;
+        copy.zoneId = this.zoneId;
+        copy.zoneName = this.zoneName;
+        copy.cachedTargetTemperature = this.cachedTargetTemperature;
+        copy.capabilityValues = new LinkedHashMap<>(this.capabilityValues);
+        copy.iconId = this.iconId;
+
+        return copy;
+    }
+
+    /**
+     * Get a copy with a changed capability value, the on value and cached target temperature
+     * follow the capability
+     * @param capabilityId capability to change
+     * @param value new value of capability
+     * @return changed copy of device
+     */
+    public Device withCapabilityValue(String capabilityId, Object value){
+        Device device = copy();
+        device.capabilityValues.put(capabilityId, value);
+
+        // Button has no value, it is always on
+        if (capabilityId.equals(device.capability) && value instanceof Boolean &&
+                !device.isButton())
+            device.on = (Boolean) value;
+
+        if (capabilityId.equals("target_temperature") && value instanceof Number)
+            device.cachedTargetTemperature = ((Number) value).doubleValue();
+
+        return device;
+    }
+
     /**
      * Get device ID
      * @return device ID
@@ -96,14 +125,6 @@ public class Device {
         return name;
     }
 
-    /**
-     * Get the Icon bitmap
-     * @return icon of device
-     */
-    public Bitmap getIconImage(){
-        return this.iconImage;
-    }
-
     /**
      * Get capability which is used
      * @return capability which is used
@@ -135,23 +156,17 @@ public class Device {
     public void setCapability(){
         List<String> capabilities = Arrays.asList(HomeyAPI.CAPABILITIES);
 
-        for(String capability : this.capabilitiesObj.keySet()){
+        for(String capability : this.capabilityValues.keySet()){
             if(capabilities.contains(capability)) {
                 this.capability = capability;
 
                 if(!capability.equals("button")) {
-                    // Get the capability value object
-                    Map<String, Object> capabilityData = this.capabilitiesObj.get(capability);
-                    if (capabilityData != null && capabilityData.containsKey("value")) {
-                        Object valueObj = capabilityData.get("value");
-                        if (valueObj != null) {
-                            this.on = Boolean.parseBoolean(valueObj.toString());
-                        } else {
-                            Timber.w("Device %s: capability %s has null value", this.name, capability);
-                            this.on = false;
-                        }
+                    // Get the capability value
+                    Object valueObj = this.capabilityValues.get(capability);
+                    if (valueObj != null) {
+                        this.on = Boolean.parseBoolean(valueObj.toString());
                     } else {
-                        Timber.w("Device %s: capability %s missing value field", this.name, capability);
+                        Timber.w("Device %s: capability %s has null value", this.name, capability);
                         this.on = false;
                     }
                 } else {
@@ -168,38 +183,6 @@ public class Device {
         }
     }
 
-    /**
-     * download the icon in bitmap form
-     */
-    public void fetchIconImage() {
-        if (this.iconObj == null) {
-            Timber.w("Device %s: iconObj is null, cannot fetch icon", this.name);
-            return;
-        }
-        
-        String iconId = this.iconObj.get("id");
-        if (iconId == null || iconId.isEmpty()) {
-            Timber.w("Device %s: iconId is null or empty", this.name);
-            return;
-        }
-        
-        final String strUrl = HomeyAPI.ICON_URL + iconId + "-128.png";
-
-        try{
-            URL url = new URL(strUrl);
-            URLConnection conn = url.openConnection();
-
-            this.iconImage = BitmapFactory.decodeStream(conn.getInputStream());
-            if (this.iconImage == null) {
-                Timber.w("Device %s: Failed to decode icon from %s", this.name, strUrl);
-            }
-        } catch (MalformedURLException mue) {
-            Timber.e(mue, "Device %s: Invalid iconUrl %s", this.name, strUrl);
-        } catch (IOException ioe) {
-            Timber.e(ioe, "Device %s: Error downloading icon from %s", this.name, strUrl);
-        }
-    }
-
     /**
      * Set the device on or off status
      * @param on on value to set
@@ -284,14 +267,21 @@ public class Device {
     }
 
     /**
-     * Turn device on or off based on on value
+     * Turn device on or off based on on value, once the HomeyAPI is authenticated
+     * @param callback callback receiving the response on the main thread
      */
-    public Call turnOnOff() {
-        HomeyAPI api = HomeyAPI.getAPI();
-        // Wait if HomeyAPI is not yet authenticated
-        api.waitForHomeyAPI();
+    public void turnOnOff(Callback<Map<String, Object>> callback) {
+        turnOnOff(!this.isOn(), callback);
+    }
 
-        return api.turnOnOff(this);
+    /**
+     * Turn device on or off, once the HomeyAPI is authenticated
+     * @param on new on value
+     * @param callback callback receiving the response on the main thread
+     */
+    public void turnOnOff(boolean on, Callback<Map<String, Object>> callback) {
+        HomeyAPI api = HomeyAPI.getAPI();
+        api.deferCall(() -> api.setOnOff(this, on)).enqueue(callback);
     }
 
     /**
@@ -300,12 +290,53 @@ public class Device {
      * @return boolean value whether capability is on|off
      */
     public boolean getCapabilityValue(String id){
-        Map<String, Object> capability = this.capabilitiesObj.get(id);
+        Object value = this.capabilityValues.get(id);
 
         // If capability is not found or if button, fallback is true
-        if(capability == null || this.isButton())
+        if(!(value instanceof Boolean) || this.isButton())
             return true;
 
-        return (Boolean) capability.get("value");
+        return (Boolean) value;
+    }
+
+    /**
+     * Get brightness of device
+     * @return brightness between 0 and 1, null if device cannot be dimmed
+     */
+    public Double getDim() {
+        Object value = this.capabilityValues.get("dim");
+        return value instanceof Number ? ((Number) value).doubleValue() : null;
+    }
+
+    /**
+     * Get values of used capabilities returned by API
+     * @return map of capability ID to value
+     */
+    public Map<String, Object> getCapabilityValues() {
+        return capabilityValues;
+    }
+
+    /**
+     * Set values of used capabilities
+     * @param capabilityValues map of capability ID to value
+     */
+    public void setCapabilityValues(Map<String, Object> capabilityValues) {
+        this.capabilityValues = capabilityValues;
+    }
+
+    /**
+     * Get icon ID
+     * @return icon ID of device
+     */
+    public String getIconId() {
+        return iconId;
+    }
+
+    /**
+     * Set icon ID
+     * @param iconId icon ID to set
+     */
+    public void setIconId(String iconId) {
+        this.iconId = iconId;
     }
 }
@@ -0,0 +1,214 @@
+package com.xseth.homey.homey.models;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.xseth.homey.homey.HomeyAPI;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streaming Gson adapter for Device.
+ *
+ * The Homey returns the full metadata of every capability, this adapter only keeps the value of
+ * capabilities used by the app and skips all other subtrees without materializing them.
+ */
+public class DeviceTypeAdapter extends TypeAdapter<Device> {
+
+    // Capabilities of which the value is kept
+    private static final Set<String> VALUE_CAPABILITIES =
+            new HashSet<>(Arrays.asList(HomeyAPI.VALUE_CAPABILITIES));
+
+    @Override
+    public void write(JsonWriter out, Device device) throws IOException {
+        if (device == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+        out.name("id").value(device.getId());
+        out.name("name").value(device.getName());
+        out.name("zone").value(device.getZoneId());
+
+        out.name("iconObj").beginObject();
+        out.name("id").value(device.getIconId());
+        out.endObject();
+
+        out.name("capabilitiesObj").beginObject();
+        for (Map.Entry<String, Object> entry : device.getCapabilityValues().entrySet()) {
+            out.name(entry.getKey()).beginObject().name("value");
+            writeValue(out, entry.getValue());
+            out.endObject();
+        }
+        out.endObject();
+
+        out.endObject();
+    }
+
+    @Override
+    public Device read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        String id = null;
+        String name = null;
+        String zoneId = null;
+        String iconId = null;
+        Map<String, Object> values = new LinkedHashMap<>();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id":
+                    id = nextString(in);
+                    break;
+                case "name":
+                    name = nextString(in);
+                    break;
+                case "zone":
+                    zoneId = nextString(in);
+                    break;
+                case "iconObj":
+                    iconId = readIconId(in);
+                    break;
+                case "capabilitiesObj":
+                    readCapabilities(in, values);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+
+        Device device = new Device(id, name);
+        device.setZoneId(zoneId);
+        device.setIconId(iconId);
+        device.setCapabilityValues(values);
+
+        Object temperature = values.get("target_temperature");
+        if (temperature instanceof Double)
+            device.setCachedTargetTemperature((Double) temperature);
+
+        return device;
+    }
+
+    /**
+     * Read the icon ID from the iconObj
+     * @param in reader positioned at the iconObj
+     * @return icon ID, null if not available
+     */
+    private static String readIconId(JsonReader in) throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return null;
+        }
+
+        String iconId = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("id"))
+                iconId = nextString(in);
+            else
+                in.skipValue();
+        }
+        in.endObject();
+
+        return iconId;
+    }
+
+    /**
+     * Read the values of used capabilities, skipping all other capabilities and metadata
+     * @param in reader positioned at the capabilitiesObj
+     * @param values map to store capability values in, in order of appearance
+     */
+    private static void readCapabilities(JsonReader in, Map<String, Object> values)
+            throws IOException {
+        if (in.peek() != JsonToken.BEGIN_OBJECT) {
+            in.skipValue();
+            return;
+        }
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String capability = in.nextName();
+
+            if (!VALUE_CAPABILITIES.contains(capability) || in.peek() != JsonToken.BEGIN_OBJECT) {
+                in.skipValue();
+                continue;
+            }
+
+            Object value = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("value"))
+                    value = readValue(in);
+                else
+                    in.skipValue();
+            }
+            in.endObject();
+
+            values.put(capability, value);
+        }
+        in.endObject();
+    }
+
+    /**
+     * Read a primitive capability value
+     * @param in reader positioned at the value
+     * @return Boolean, Double or String value, null for other values
+     */
+    private static Object readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NUMBER:
+                return in.nextDouble();
+            case STRING:
+                return in.nextString();
+            default:
+                in.skipValue();
+                return null;
+        }
+    }
+
+    /**
+     * Read a string which may be null
+     * @param in reader positioned at the string
+     * @return string value or null
+     */
+    private static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        return in.nextString();
+    }
+
+    /**
+     * Write a primitive capability value
+     * @param out writer to write to
+     * @param value Boolean, Number or String value
+     */
+    private static void writeValue(JsonWriter out, Object value) throws IOException {
+        if (value instanceof Boolean)
+            out.value((Boolean) value);
+        else if (value instanceof Number)
+            out.value((Number) value);
+        else if (value != null)
+            out.value(value.toString());
+        else
+            out.nullValue();
+    }
+}
@@ -0,0 +1,125 @@
+package com.xseth.homey.homey.models;
+
+import com.google.gson.Gson;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.xseth.homey.MainActivity;
+import com.xseth.homey.utils.utils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import timber.log.Timber;
+
+public class HomeySession {
+
+    // ID of the Homey
+    @SerializedName("homey_id")
+    private String homeyId;
+
+    // URL used for accessing Homey API
+    @SerializedName("remote_url")
+    private String remoteUrl;
+
+    // Session token for accessing Homey API
+    @SerializedName("token")
+    private String token;
+
+    // File name used for storing HomeySession value
+    @Expose(serialize = false)
+    private static String file_name = "homey_session.json";
+
+    // Alias of the key used to encrypt the session file
+    @Expose(serialize = false)
+    private static String key_alias = "homey_session";
+
+    /**
+     * HomeySession constructor
+     * @param homeyId ID of the Homey
+     * @param remoteUrl URL used for accessing Homey API
+     * @param token session token for accessing Homey API
+     */
+    public HomeySession(String homeyId, String remoteUrl, String token) {
+        this.homeyId = homeyId;
+        this.remoteUrl = remoteUrl;
+        this.token = token;
+    }
+
+    /**
+     * Get ID of the Homey
+     * @return ID of the Homey
+     */
+    public String getHomeyId() { return homeyId; }
+
+    /**
+     * Get URL used for accessing Homey API
+     * @return remote URL of Homey
+     */
+    public String getRemoteUrl() { return remoteUrl; }
+
+    /**
+     * Get session token for accessing Homey API
+     * @return session token
+     */
+    public String getToken() { return token; }
+
+    /**
+     * Save current session object to encrypted file
+     */
+    public void save(){
+        String path = MainActivity.appPath + "/" + file_name;
+
+        // EncryptedFile refuses to overwrite existing files
+        File file = new File(path);
+        if (file.exists() && !file.delete())
+            Timber.w("Cannot remove previous session file");
+
+        Gson gson = new Gson();
+        try (OutputStream out = utils.getEncryptedOutputStream(MainActivity.context, key_alias, path)) {
+
+            out.write(gson.toJson(this).getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+        } catch (Exception e) {
+            Timber.e(e, "Cannot save homey session to file");
+        }
+    }
+
+    /**
+     * Delete the saved session, so it is not reused on the next start
+     */
+    public static void delete(){
+        File file = new File(MainActivity.appPath + "/" + file_name);
+        if (file.exists() && !file.delete())
+            Timber.w("Cannot remove session file");
+    }
+
+    /**
+     * Load a session object from encrypted file
+     * @return HomeySession object, null if not available
+     */
+    public static HomeySession load(){
+        if (MainActivity.context == null)
+            return null;
+
+        String path = MainActivity.appPath + "/" + file_name;
+        if (!new File(path).exists())
+            return null;
+
+        HomeySession session = null;
+        Gson gson = new Gson();
+
+        try (InputStream in = utils.getEncryptedInputStream(MainActivity.context, key_alias, path)) {
+            session = gson.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8),
+                    HomeySession.class);
+            Timber.i("Load homey session from file: %s", path);
+        } catch (Exception e) {
+            Timber.e(e, "Cannot load homey session from file");
+        }
+
+        return session;
+    }
+}
@@ -30,6 +30,10 @@ public class Token implements Serializable {
     @SerializedName("refresh_token")
     private String refreshToken;
 
+    // Wall clock time in milliseconds at which accessToken is issued, 0 if unknown
+    @SerializedName("issued_at")
+    private long issuedAt;
+
     // File name used for storing Token value
     @Expose(serialize = false)
     private static String file_name = "token.json";
@@ -52,6 +56,23 @@ public class Token implements Serializable {
      */
     public void setAccessToken(String token) { this.accessToken = token; }
 
+    /**
+     * Record the current time as the time accessToken is issued
+     */
+    public void markIssued() { this.issuedAt = System.currentTimeMillis(); }
+
+    /**
+     * Verify whether accessToken expires within margin. Tokens without known expiry never expire
+     * @param marginMs margin in milliseconds before the actual expiry
+     * @return if accessToken is expired or about to expire
+     */
+    public boolean isExpiring(long marginMs) {
+        if (issuedAt <= 0 || expiresIn <= 0)
+            return false;
+
+        return System.currentTimeMillis() >= issuedAt + expiresIn * 1000L - marginMs;
+    }
+
     /**
      * Save current token object to file
      */
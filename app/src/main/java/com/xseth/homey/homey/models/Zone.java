@@ -1,10 +1,17 @@
 package com.xseth.homey.homey.models;
 
 import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
 import com.google.gson.annotations.SerializedName;
 
+import java.util.Objects;
+
+@Entity(tableName = "zones")
 public class Zone {
 
+    @PrimaryKey
     @NonNull
     @SerializedName("id")
     private String id;
@@ -80,4 +87,19 @@ public class Zone {
     public void setActive(boolean active) {
         this.active = active;
     }
+
+    /**
+     * Verify whether zone is shown the same as other zone
+     * @param other zone to compare with
+     * @return if all stored fields are equal
+     */
+    public boolean isSame(Zone other) {
+        return other != null &&
+                id.equals(other.id) &&
+                name.equals(other.name) &&
+                Objects.equals(parentId, other.parentId) &&
+                Objects.equals(icon, other.icon) &&
+                order == other.order &&
+                active == other.active;
+    }
 }
@@ -0,0 +1,105 @@
+package com.xseth.homey.homey.models;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.Objects;
+
+/**
+ * Stored device of a zone, holding only what is needed to show the zone before the Homey is
+ * reachable
+ */
+@Entity(tableName = "zone_devices", indices = {@Index("zoneId")})
+public class ZoneDevice {
+
+    // Device ID
+    @PrimaryKey
+    @NonNull
+    private String id;
+
+    // Zone ID where this device is located
+    private String zoneId;
+
+    // Device Name
+    @NonNull
+    private String name;
+
+    // Capability which is modified
+    @NonNull
+    private String capability;
+
+    // Device on or off
+    private boolean on;
+
+    // Icon ID returned by API, icon itself is stored in the IconCache
+    private String iconId;
+
+    /**
+     * ZoneDevice constructor
+     */
+    public ZoneDevice(@NonNull String id, String zoneId, @NonNull String name,
+                      @NonNull String capability, boolean on, String iconId) {
+        this.id = id;
+        this.zoneId = zoneId;
+        this.name = name;
+        this.capability = capability;
+        this.on = on;
+        this.iconId = iconId;
+    }
+
+    /**
+     * Create stored device from a fetched device
+     * @param device fetched device
+     * @return stored device
+     */
+    public static ZoneDevice from(Device device) {
+        return new ZoneDevice(device.getId(), device.getZoneId(), device.getName(),
+                device.getCapability(), device.isOn(), device.getIconId());
+    }
+
+    /**
+     * Create a device to show, without capability values
+     * @return device
+     */
+    public Device toDevice() {
+        Device device = new Device(id, name);
+        device.capability = capability;
+        device.setOn(on);
+        device.setZoneId(zoneId);
+        device.setIconId(iconId);
+
+        return device;
+    }
+
+    /**
+     * Verify whether device is stored the same as other device
+     * @param other device to compare with
+     * @return if all fields are equal
+     */
+    public boolean isSame(ZoneDevice other) {
+        return other != null &&
+                id.equals(other.id) &&
+                Objects.equals(zoneId, other.zoneId) &&
+                name.equals(other.name) &&
+                capability.equals(other.capability) &&
+                on == other.on &&
+                Objects.equals(iconId, other.iconId);
+    }
+
+    @NonNull
+    public String getId() { return id; }
+
+    public String getZoneId() { return zoneId; }
+
+    @NonNull
+    public String getName() { return name; }
+
+    @NonNull
+    public String getCapability() { return capability; }
+
+    public boolean isOn() { return on; }
+
+    public String getIconId() { return iconId; }
+}
@@ -0,0 +1,46 @@
+package com.xseth.homey.storage;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import java.util.List;
+
+@Dao
+public interface CommandDAO {
+
+    @Query("SELECT * FROM pending_commands ORDER BY createdAt")
+    List<PendingCommand> getCommands();
+
+    @Query("SELECT * FROM pending_commands WHERE deviceId = :deviceId AND capabilityId = :capabilityId")
+    PendingCommand getCommand(String deviceId, String capabilityId);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertCommand(PendingCommand command);
+
+    // Commands recorded after the given time hold a newer value, so they are kept
+    @Query("DELETE FROM pending_commands WHERE deviceId = :deviceId AND " +
+            "capabilityId = :capabilityId AND createdAt <= :before")
+    int deleteCommand(String deviceId, String capabilityId, long before);
+
+    @Query("DELETE FROM pending_commands WHERE expiresAt <= :now")
+    int deleteExpired(long now);
+
+    /**
+     * Record command, replacing the command of the same capability. A value which is recorded
+     * again, e.g. by a failed replay, keeps its expiry so it is not retried forever.
+     * @param command command to record
+     */
+    @Transaction
+    default void putCommand(PendingCommand command) {
+        PendingCommand old = getCommand(command.getDeviceId(), command.getCapabilityId());
+
+        if (old != null && old.getJson().equals(command.getJson()))
+            command = new PendingCommand(command.getDeviceId(), command.getCapabilityId(),
+                    command.getJson(), command.getCreatedAt(), old.getExpiresAt());
+
+        insertCommand(command);
+    }
+}
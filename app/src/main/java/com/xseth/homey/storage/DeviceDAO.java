@@ -6,11 +6,14 @@ import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
 import com.xseth.homey.homey.models.Device;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 @Dao
 public interface DeviceDAO {
@@ -19,18 +22,82 @@ public interface DeviceDAO {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     void insert(Device device);
 
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertAll(List<Device> devices);
+
     @Delete
     void deleteDevice(Device... devices);
 
     @Query("DELETE FROM devices")
     void deleteAll();
 
+    @Query("DELETE FROM devices WHERE id IN (:ids)")
+    void deleteByIds(List<String> ids);
+
     @Query("SELECT EXISTS(SELECT * FROM devices)")
     boolean hasDevices();
 
     @Query("SELECT * from devices")
     LiveData<List<Device>> getDevices();
 
+    @Query("SELECT * from devices")
+    List<Device> getDevicesNow();
+
     @Update
     void updateDevices(Device... devices);
+
+    @Query("SELECT id from devices")
+    List<String> getDeviceIds();
+
+    // Only touches the row if the value differs, so unchanged pushes do not invalidate LiveData
+    @Query("UPDATE devices SET `on` = :on WHERE id = :id AND capability = :capability AND `on` != :on")
+    int setOn(String id, String capability, boolean on);
+
+    /**
+     * Set on values of devices in a single transaction, only changed rows are written
+     * @param devices devices with their new on value
+     * @return number of rows written
+     */
+    @Transaction
+    default int setOnAll(List<Device> devices) {
+        int changes = 0;
+        for (Device device : devices)
+            changes += setOn(device.getId(), device.getCapability(), device.isOn());
+
+        return changes;
+    }
+
+    /**
+     * Apply fetched statuses to stored devices in a single transaction. Only changed rows are
+     * written and removed devices are deleted, so an unchanged refresh writes nothing.
+     * @param fetched latest devices by ID
+     * @param complete whether every favorite is fetched, otherwise missing devices may have
+     *                 failed to fetch and are kept
+     * @return number of rows written
+     */
+    @Transaction
+    default int syncStatuses(Map<String, Device> fetched, boolean complete) {
+        List<String> removed = new ArrayList<>();
+        int changes = 0;
+
+        for (Device stored : getDevicesNow()) {
+            Device device = fetched.get(stored.getId());
+
+            // If favorite Device is removed, device will be null, so remove it
+            if (device == null) {
+                if (complete)
+                    removed.add(stored.getId());
+                continue;
+            }
+
+            boolean on = device.getCapabilityValue(stored.getCapability());
+            if (on != stored.isOn())
+                changes += setOn(stored.getId(), stored.getCapability(), on);
+        }
+
+        if (!removed.isEmpty())
+            deleteByIds(removed);
+
+        return changes + removed.size();
+    }
 }
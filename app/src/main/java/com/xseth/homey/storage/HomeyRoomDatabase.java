@@ -5,19 +5,24 @@ import android.content.Context;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
-import androidx.room.TypeConverters;
 
 import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.homey.models.Zone;
+import com.xseth.homey.homey.models.ZoneDevice;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-@Database(entities = {Device.class}, version = 11, exportSchema = false)
-@TypeConverters({BitmapConverter.class})
+@Database(entities = {Device.class, Zone.class, ZoneDevice.class, SyncState.class,
+        PendingCommand.class}, version = 14, exportSchema = false)
 public abstract class HomeyRoomDatabase extends RoomDatabase {
 
     public abstract DeviceDAO deviceDAO();
 
+    public abstract ZoneDAO zoneDAO();
+
+    public abstract CommandDAO commandDAO();
+
     private static volatile HomeyRoomDatabase INSTANCE;
     private static final int NUMBER_OF_THREADS = 4;
     public static final ExecutorService databaseWriteExecutor =
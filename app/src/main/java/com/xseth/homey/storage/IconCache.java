@@ -0,0 +1,198 @@
+package com.xseth.homey.storage;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.xseth.homey.homey.HomeyAPI;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Two-tier cache for device icons keyed by icon ID.
+ *
+ * Decoded bitmaps are kept in memory, raw PNG bytes are kept on disk. Concurrent requests for
+ * the same icon share a single download.
+ */
+public class IconCache {
+
+    // Name of the directory on disk containing icons
+    private static final String DIRECTORY = "icons";
+    // Part of the memory available to the app used for decoded icons
+    private static final int MEMORY_FRACTION = 32;
+    // Number of threads used for loading icons
+    private static final int NUMBER_OF_THREADS = 2;
+
+    // IconCache instance
+    private static volatile IconCache INSTANCE;
+
+    // Decoded icons in memory, sized in bytes
+    private final LruCache<String, Bitmap> memory;
+    // Directory containing raw icons on disk
+    private final File directory;
+    // Icons currently being loaded, used to deduplicate requests
+    private final Map<String, CompletableFuture<Bitmap>> inFlight = new ConcurrentHashMap<>();
+    // Executor used for loading icons from disk and network
+    private final ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_THREADS);
+
+    /**
+     * Get instance of IconCache
+     * @param context context used to locate the cache directory
+     * @return instance of IconCache
+     */
+    public static IconCache getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (IconCache.class) {
+                if (INSTANCE == null)
+                    INSTANCE = new IconCache(context.getApplicationContext());
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * IconCache constructor
+     * @param context context used to locate the cache directory
+     */
+    private IconCache(Context context) {
+        int size = (int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+
+        memory = new LruCache<String, Bitmap>(size) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        directory = new File(context.getCacheDir(), DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs())
+            Timber.w("Cannot create icon cache directory");
+    }
+
+    /**
+     * Get an icon, loading it from disk or network if not in memory
+     * @param iconId icon ID to get
+     * @return future completing with the icon, or null if not available
+     */
+    public CompletableFuture<Bitmap> get(String iconId) {
+        if (iconId == null || iconId.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        Bitmap bitmap = memory.get(iconId);
+        if (bitmap != null)
+            return CompletableFuture.completedFuture(bitmap);
+
+        CompletableFuture<Bitmap> future = inFlight.computeIfAbsent(iconId,
+                id -> CompletableFuture.supplyAsync(() -> load(id), executor));
+        future.whenComplete((result, error) -> inFlight.remove(iconId, future));
+
+        return future;
+    }
+
+    /**
+     * Get an icon, blocking until it is loaded. Must not be called on the UI thread
+     * @param iconId icon ID to get
+     * @return icon, or null if not available
+     */
+    public Bitmap getBlocking(String iconId) {
+        try {
+            return get(iconId).get();
+        } catch (ExecutionException | InterruptedException e) {
+            Timber.e(e, "Failed to load icon %s", iconId);
+            return null;
+        }
+    }
+
+    /**
+     * Show an icon in an ImageView. If the view is rebound before the icon is loaded, the icon
+     * is not shown
+     * @param iconId icon ID to show
+     * @param view view to show icon in
+     */
+    public void into(String iconId, ImageView view) {
+        view.setTag(iconId);
+
+        Bitmap bitmap = iconId == null ? null : memory.get(iconId);
+        view.setImageBitmap(bitmap);
+
+        if (bitmap != null || iconId == null)
+            return;
+
+        get(iconId).thenAccept(result -> view.post(() -> {
+            if (iconId.equals(view.getTag()))
+                view.setImageBitmap(result);
+        }));
+    }
+
+    /**
+     * Load an icon from disk, or from network if not on disk
+     * @param iconId icon ID to load
+     * @return decoded icon, or null if not available
+     */
+    private Bitmap load(String iconId) {
+        File file = new File(directory, iconId.replaceAll("[^A-Za-z0-9_-]", "_") + ".png");
+
+        try {
+            byte[] bytes = file.exists() ? Files.readAllBytes(file.toPath()) : download(iconId, file);
+            if (bytes == null)
+                return null;
+
+            Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            if (bitmap == null) {
+                Timber.w("Failed to decode icon %s", iconId);
+                return null;
+            }
+
+            memory.put(iconId, bitmap);
+            return bitmap;
+        } catch (IOException ioe) {
+            Timber.e(ioe, "Error loading icon %s", iconId);
+            return null;
+        }
+    }
+
+    /**
+     * Download an icon from the icon CDN and store it on disk
+     * @param iconId icon ID to download
+     * @param file file to store icon in
+     * @return raw icon bytes, or null if not available
+     */
+    private byte[] download(String iconId, File file) throws IOException {
+        String url = HomeyAPI.ICON_URL + iconId + "-128.png";
+        Request request = new Request.Builder().url(url).build();
+
+        try (Response response = HomeyAPI.getAPI().getHttpClient().newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                Timber.w("Failed to download icon from %s: %d", url, response.code());
+                return null;
+            }
+
+            byte[] bytes = response.body().bytes();
+
+            // Write to temporary file first, so a partial icon is never read
+            File tmp = new File(directory, file.getName() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(bytes);
+            }
+            if (!tmp.renameTo(file))
+                Timber.w("Failed to store icon %s", iconId);
+
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.xseth.homey.storage;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+import com.google.gson.Gson;
+
+/**
+ * Capability value which could not be written because the Homey was unreachable.
+ *
+ * Only the latest value per capability of a device is kept, so replaying never sends values
+ * which are already superseded.
+ */
+@Entity(tableName = "pending_commands", primaryKeys = {"deviceId", "capabilityId"})
+public class PendingCommand {
+
+    // Gson used to store values with their type
+    private static final Gson GSON = new Gson();
+
+    // Device ID
+    @NonNull
+    private String deviceId;
+
+    // Capability ID
+    @NonNull
+    private String capabilityId;
+
+    // Value as JSON, so booleans and numbers are restored as such
+    @NonNull
+    private String json;
+
+    // Wall clock time in milliseconds at which the command is recorded
+    private long createdAt;
+
+    // Wall clock time in milliseconds after which the command is dropped
+    private long expiresAt;
+
+    /**
+     * PendingCommand constructor
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param json value as JSON
+     * @param createdAt time at which the command is recorded
+     * @param expiresAt time after which the command is dropped
+     */
+    public PendingCommand(@NonNull String deviceId, @NonNull String capabilityId,
+                          @NonNull String json, long createdAt, long expiresAt) {
+        this.deviceId = deviceId;
+        this.capabilityId = capabilityId;
+        this.json = json;
+        this.createdAt = createdAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Create command of a value
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param value value to set
+     * @param createdAt time at which the command is recorded
+     * @param expiresAt time after which the command is dropped
+     * @return command setting value
+     */
+    public static PendingCommand of(String deviceId, String capabilityId, Object value,
+                                    long createdAt, long expiresAt) {
+        return new PendingCommand(deviceId, capabilityId, GSON.toJson(value), createdAt, expiresAt);
+    }
+
+    @NonNull
+    public String getDeviceId() { return deviceId; }
+
+    @NonNull
+    public String getCapabilityId() { return capabilityId; }
+
+    @NonNull
+    public String getJson() { return json; }
+
+    public long getCreatedAt() { return createdAt; }
+
+    public long getExpiresAt() { return expiresAt; }
+
+    /**
+     * Get value to set
+     * @return value, a Boolean, Double or String
+     */
+    public Object getValue() {
+        return GSON.fromJson(json, Object.class);
+    }
+}
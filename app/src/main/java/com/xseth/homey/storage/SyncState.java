@@ -0,0 +1,38 @@
+package com.xseth.homey.storage;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Time at which stored data is last synced with the Homey
+ */
+@Entity(tableName = "sync_state")
+public class SyncState {
+
+    // Name of synced data
+    public static final String ZONES = "zones";
+
+    // Name of synced data
+    @PrimaryKey
+    @NonNull
+    private String name;
+
+    // Wall clock time in milliseconds of the last successful sync
+    private long syncedAt;
+
+    /**
+     * SyncState constructor
+     * @param name name of synced data
+     * @param syncedAt time of the last successful sync
+     */
+    public SyncState(@NonNull String name, long syncedAt) {
+        this.name = name;
+        this.syncedAt = syncedAt;
+    }
+
+    @NonNull
+    public String getName() { return name; }
+
+    public long getSyncedAt() { return syncedAt; }
+}
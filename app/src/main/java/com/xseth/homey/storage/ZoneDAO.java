@@ -0,0 +1,121 @@
+package com.xseth.homey.storage;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Transaction;
+
+import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.homey.models.Zone;
+import com.xseth.homey.homey.models.ZoneDevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Dao
+public interface ZoneDAO {
+
+    @Query("SELECT * FROM zones ORDER BY `order`, name")
+    LiveData<List<Zone>> getZones();
+
+    @Query("SELECT * FROM zones")
+    List<Zone> getZonesNow();
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertZones(List<Zone> zones);
+
+    @Query("DELETE FROM zones WHERE id IN (:ids)")
+    void deleteZonesByIds(List<String> ids);
+
+    @Query("SELECT * FROM zone_devices WHERE zoneId = :zoneId ORDER BY name")
+    LiveData<List<ZoneDevice>> getZoneDevices(String zoneId);
+
+    @Query("SELECT * FROM zone_devices")
+    List<ZoneDevice> getZoneDevicesNow();
+
+    @Query("SELECT * FROM zone_devices WHERE id IN (:ids)")
+    List<ZoneDevice> getZoneDevicesByIds(List<String> ids);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertZoneDevices(List<ZoneDevice> devices);
+
+    @Query("DELETE FROM zone_devices WHERE id IN (:ids)")
+    void deleteZoneDevicesByIds(List<String> ids);
+
+    // Only touches the row if the value differs, so unchanged updates do not invalidate LiveData
+    @Query("UPDATE zone_devices SET `on` = :on WHERE id = :id AND `on` != :on")
+    int setOn(String id, boolean on);
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void setSyncState(SyncState state);
+
+    @Query("SELECT syncedAt FROM sync_state WHERE name = :name")
+    LiveData<Long> getSyncedAt(String name);
+
+    /**
+     * Replace stored zones with fetched zones in a single transaction. Only changed rows are
+     * written, so an unchanged sync does not invalidate LiveData.
+     * @param fetched latest zones
+     * @return number of rows written
+     */
+    @Transaction
+    default int syncZones(Collection<Zone> fetched) {
+        Map<String, Zone> stored = new HashMap<>();
+        for (Zone zone : getZonesNow())
+            stored.put(zone.getId(), zone);
+
+        List<Zone> changed = new ArrayList<>();
+        for (Zone zone : fetched) {
+            if (!zone.isSame(stored.remove(zone.getId())))
+                changed.add(zone);
+        }
+
+        if (!changed.isEmpty())
+            insertZones(changed);
+
+        // Zones left are removed from the Homey
+        if (!stored.isEmpty())
+            deleteZonesByIds(new ArrayList<>(stored.keySet()));
+
+        return changed.size() + stored.size();
+    }
+
+    /**
+     * Replace stored zone devices with fetched devices in a single transaction. Only changed
+     * rows are written, and only the rows of fetched devices are read unless complete.
+     * @param fetched latest devices
+     * @param complete whether fetched holds all devices, so stored devices not in it are removed
+     * @return number of rows written
+     */
+    @Transaction
+    default int syncZoneDevices(Collection<Device> fetched, boolean complete) {
+        List<String> ids = new ArrayList<>(fetched.size());
+        for (Device device : fetched)
+            ids.add(device.getId());
+
+        Map<String, ZoneDevice> stored = new HashMap<>();
+        for (ZoneDevice device : complete ? getZoneDevicesNow() : getZoneDevicesByIds(ids))
+            stored.put(device.getId(), device);
+
+        List<ZoneDevice> changed = new ArrayList<>();
+        for (Device device : fetched) {
+            ZoneDevice zoneDevice = ZoneDevice.from(device);
+            if (!zoneDevice.isSame(stored.remove(device.getId())))
+                changed.add(zoneDevice);
+        }
+
+        if (!changed.isEmpty())
+            insertZoneDevices(changed);
+
+        if (!complete || stored.isEmpty())
+            return changed.size();
+
+        deleteZoneDevicesByIds(new ArrayList<>(stored.keySet()));
+        return changed.size() + stored.size();
+    }
+}
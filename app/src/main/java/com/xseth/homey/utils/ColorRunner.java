@@ -1,43 +1,68 @@
 package com.xseth.homey.utils;
 
-import android.app.Activity;
 import android.graphics.Color;
+import android.os.Bundle;
+import android.view.Choreographer;
 import android.view.View;
 
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.wear.ambient.AmbientModeSupport;
+
 import java.util.Random;
 
 import timber.log.Timber;
 
 /**
- * Class for updating background color of views
+ * Class for updating background color of views.
+ *
+ * Colors are switched on display frames via the Choreographer, only while the activity is
+ * started and not in ambient mode. Once stopped nothing is scheduled, so the app does not wake
+ * up in the background.
  */
-public class ColorRunner implements Runnable{
-
-    // Thread object
-    private static ColorRunner INSTANCE;
-    // Boolean used to start/stop runnable
-    private boolean run = true;
-    // Boolean used to pause/unpause runnable
-    private boolean pause = false;
+public class ColorRunner implements LifecycleEventObserver, Choreographer.FrameCallback {
+
     // Amount of time in MS to wait between color switches
-    public final int SLEEP = 500;
+    private static final long SLEEP = 500;
     // Resolution of color possibilities
-    public final int COLOR_SIZE = 250;
+    private static final int COLOR_SIZE = 250;
     // Array depicting rainbow colors
-    public int[] COLORS = new int[COLOR_SIZE];
-    // View object to colorize
-    private View view;
+    private static final int[] COLORS = new int[COLOR_SIZE];
+    // Static background color in ambient mode, black keeps OLED pixels off
+    private static final int AMBIENT_COLOR = Color.BLACK;
+    // Random used to pick colors
+    private static final Random RANDOM = new Random();
+
+    static {
+        double jump = 360.0 / (COLOR_SIZE*1.0);
+        for (int i = 0; i < COLORS.length; i++) {
+            COLORS[i] = Color.HSVToColor(new float[]{(float) (jump*i), 1.0f, 1.0f});
+        }
+    }
+
     // View object to colorize
-    private Activity activity;
+    private final View view;
+    // Index of next color to show
+    private int index;
+    // Whether the activity is started
+    private boolean started = false;
+    // Whether the activity is in ambient mode
+    private boolean ambient = false;
+    // Whether a frame callback is scheduled
+    private boolean running = false;
 
     /**
-     * Start the ColorRunner, thread which changes background color
+     * Start changing background color while the lifecycle owner is started
+     * @param owner activity owning the view
      * @param view View for which background color is updated
+     * @return ColorRunner of view
      */
-    public static void startColorRunner(Activity activity, View view){
-        // Change color in background
-        INSTANCE = new ColorRunner(activity, view);
-        new Thread(INSTANCE).start();
+    public static ColorRunner attach(LifecycleOwner owner, View view){
+        ColorRunner runner = new ColorRunner(view);
+        owner.getLifecycle().addObserver(runner);
+        return runner;
     }
 
     /**
@@ -45,80 +70,80 @@ public class ColorRunner implements Runnable{
      * @return random color from rainbow color list
      */
     public static int getRandomColor(){
-        return INSTANCE.chooseColor();
+        return COLORS[RANDOM.nextInt(COLOR_SIZE)];
     }
 
-    /**
-     * Resume paused ColorRunner Thread
-     */
-    public static void resumeColorRunner(){
-        INSTANCE.pause = false;
+    private ColorRunner(View view){
+        this.view = view;
+        this.index = RANDOM.nextInt(COLOR_SIZE);
     }
 
-    /**
-     * Pause running ColorRunner Thread
-     */
-    public static void pauseColorRunner(){
-        INSTANCE.pause = true;
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event == Lifecycle.Event.ON_START) {
+            started = true;
+        } else if (event == Lifecycle.Event.ON_STOP) {
+            started = false;
+        } else if (event == Lifecycle.Event.ON_DESTROY) {
+            source.getLifecycle().removeObserver(this);
+        }
+
+        update();
     }
 
     /**
-     * Stop ColorRunner Thread
+     * Show a static color in ambient mode, colors are not switched until ambient mode exits
+     * @param ambient whether the activity is in ambient mode
      */
-    public static void stopColorRunner(){
-        INSTANCE.run = false;
+    public void setAmbient(boolean ambient){
+        this.ambient = ambient;
+        view.setBackgroundColor(ambient ? AMBIENT_COLOR : COLORS[index]);
+        update();
     }
 
-    private ColorRunner(Activity activity, View view){
-        this.activity = activity;
-        this.view = view;
+    /**
+     * Get callback switching to a static color in ambient mode
+     * @return ambient callback, provided via AmbientModeSupport.AmbientCallbackProvider
+     */
+    public AmbientModeSupport.AmbientCallback getAmbientCallback(){
+        return new AmbientModeSupport.AmbientCallback() {
+            @Override
+            public void onEnterAmbient(Bundle ambientDetails) {
+                setAmbient(true);
+            }
 
-        double jump = 360.0 / (COLOR_SIZE*1.0);
-        for (int i = 0; i < COLORS.length; i++) {
-            COLORS[i] = Color.HSVToColor(new float[]{(float) (jump*i), 1.0f, 1.0f});
-        }
+            @Override
+            public void onExitAmbient() {
+                setAmbient(false);
+            }
+        };
     }
 
     /**
-     * Retrieve a random color from generated rainbow color list
-     * @return random color from rainbow color list
+     * Schedule or cancel switching colors
      */
-    public int chooseColor(){
-        Random r = new Random();
-        int color_index = r.nextInt(COLOR_SIZE);
-        return COLORS[color_index];
+    private void update(){
+        boolean run = started && !ambient;
+        if (run == running)
+            return;
+
+        running = run;
+        Timber.d("ColorRunner %s", run ? "started" : "stopped");
+
+        if (run)
+            Choreographer.getInstance().postFrameCallback(this);
+        else
+            Choreographer.getInstance().removeFrameCallback(this);
     }
 
     @Override
-    public void run() {
-        int color;
-
-        int max = COLORS.length;
-        int index = new Random().nextInt(COLOR_SIZE-1);
-
-        Timber.d("Starting colorRun");
-
-        do {
-            // pause remain in sleep forever until unpause
-            while(pause){
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException ignored) {}
-            }
-
-            color = COLORS[index];
-            final int tmp_color = color;
-
-            activity.runOnUiThread(() -> view.setBackgroundColor(tmp_color));
-
-            index += 1;
+    public void doFrame(long frameTimeNanos) {
+        if (!running)
+            return;
 
-            if (index == max)
-                index = 0;
+        view.setBackgroundColor(COLORS[index]);
+        index = (index + 1) % COLOR_SIZE;
 
-            try {
-                Thread.sleep(SLEEP);
-            } catch (InterruptedException ignored) { run = false; }
-        } while (run);
+        Choreographer.getInstance().postFrameCallbackDelayed(this, SLEEP);
     }
-}
\ No newline at end of file
+}
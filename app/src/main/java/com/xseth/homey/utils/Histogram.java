@@ -0,0 +1,109 @@
+package com.xseth.homey.utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of non-negative values, e.g. durations or byte counts, using fixed memory.
+ *
+ * Values are counted in buckets, each power of two is split in two buckets. Percentiles are then
+ * accurate to within a factor 1.5 regardless of the number or range of recorded values.
+ * Not thread-safe.
+ */
+public class Histogram {
+
+    // Number of buckets, values beyond the last bucket are counted in the last bucket
+    private static final int BUCKETS = 2 + 2 * 40;
+
+    // Number of values per bucket
+    private final long[] counts = new long[BUCKETS];
+    // Number, sum and maximum of recorded values
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * Record a value
+     * @param value value to record, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Get number of recorded values
+     * @return number of recorded values
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Estimate a percentile
+     * @param percentile percentile between 0 and 100
+     * @return estimated value, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            // Last bucket is unbounded
+            if (seen >= rank)
+                return i == BUCKETS - 1 ? max : Math.min(upperBound(i), max);
+        }
+
+        return max;
+    }
+
+    /**
+     * Get summary of the recorded values
+     * @return count, mean, percentiles and maximum as JSON
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("mean", count == 0 ? 0 : sum / count);
+        json.put("p50", getPercentile(50));
+        json.put("p90", getPercentile(90));
+        json.put("p99", getPercentile(99));
+        json.put("max", max);
+        return json;
+    }
+
+    /**
+     * Get bucket of value. Bucket 0 holds 0, after that each power of two is split in two
+     */
+    private static int bucket(long value) {
+        if (value == 0)
+            return 0;
+
+        int octave = 63 - Long.numberOfLeadingZeros(value);
+        int half = octave == 0 ? 0 : (int) ((value >> (octave - 1)) & 1);
+
+        return Math.min(1 + 2 * octave + half, BUCKETS - 1);
+    }
+
+    /**
+     * Get largest value counted in bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket == 0)
+            return 0;
+
+        int octave = (bucket - 1) / 2;
+        int half = (bucket - 1) % 2;
+        long size = octave == 0 ? 1 : 1L << (octave - 1);
+
+        return (1L << octave) + (half + 1) * size - 1;
+    }
+}
@@ -0,0 +1,65 @@
+package com.xseth.homey.utils;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and values describing how the app behaves, e.g. which fetch strategy is chosen.
+ * Values are kept in memory only and may be updated from any thread.
+ */
+public class Metrics {
+
+    // Values by name, sorted by name
+    private static final Map<String, AtomicLong> values = new ConcurrentSkipListMap<>();
+
+    /**
+     * Increment a counter
+     * @param name name of the counter
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Add to a counter
+     * @param name name of the counter
+     * @param delta amount to add
+     */
+    public static void add(String name, long delta) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Set a value
+     * @param name name of the value
+     * @param value new value
+     */
+    public static void set(String name, long value) {
+        values.computeIfAbsent(name, key -> new AtomicLong()).set(value);
+    }
+
+    /**
+     * Get a value
+     * @param name name of the value
+     * @return value, 0 if never set
+     */
+    public static long get(String name) {
+        AtomicLong value = values.get(name);
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * Get all values
+     * @return unmodifiable copy of values by name, sorted by name
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : values.entrySet())
+            copy.put(entry.getKey(), entry.getValue().get());
+
+        return Collections.unmodifiableMap(copy);
+    }
+}
@@ -0,0 +1,333 @@
+package com.xseth.homey.utils;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONException;
+import org.json.JSONObject;
+import retrofit2.Invocation;
+import retrofit2.http.DELETE;
+import retrofit2.http.GET;
+import retrofit2.http.PATCH;
+import retrofit2.http.POST;
+import retrofit2.http.PUT;
+
+/**
+ * Measures the phases and sizes of HTTP requests per endpoint.
+ *
+ * Requests are grouped by the path template of the service method, e.g. the fetches of all
+ * single devices share one endpoint. Per endpoint the time of DNS lookup, connecting, TLS
+ * handshake, first response byte and the whole call are kept in histograms, together with the
+ * request and response sizes. DNS and connecting point at the radio, the time to the first byte
+ * at the cloud relay or the Homey. Phases which did not happen, e.g. connecting on a reused
+ * connection, are not recorded.
+ */
+public class RequestMetrics extends EventListener {
+
+    // Factory creating a listener per call, set on the OkHttpClient
+    public static final EventListener.Factory FACTORY = call -> new RequestMetrics();
+
+    // Weight of the latest request in the averages
+    private static final double WEIGHT = 0.3;
+
+    // Measurements by endpoint
+    private static final Map<String, Stat> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Measurements of an endpoint
+     */
+    public static class Stat {
+        // Number of completed and failed requests
+        private long count = 0;
+        private long failures = 0;
+        // Weighted average latency in milliseconds and response size in bytes
+        private double millis = 0;
+        private double bytes = 0;
+        // Durations in milliseconds of the phases of requests
+        private final Histogram dns = new Histogram();
+        private final Histogram connect = new Histogram();
+        private final Histogram tls = new Histogram();
+        private final Histogram ttfb = new Histogram();
+        private final Histogram total = new Histogram();
+        // Sizes in bytes of requests and responses, including headers
+        private final Histogram requestBytes = new Histogram();
+        private final Histogram responseBytes = new Histogram();
+
+        /**
+         * Record a completed request
+         */
+        private synchronized void record(RequestMetrics call, long millis) {
+            if (count == 0) {
+                this.millis = millis;
+                this.bytes = call.responseBytes;
+            } else {
+                this.millis += WEIGHT * (millis - this.millis);
+                this.bytes += WEIGHT * (call.responseBytes - this.bytes);
+            }
+
+            count++;
+            recordPhases(call);
+            total.record(millis);
+            requestBytes.record(call.requestBytes);
+            responseBytes.record(call.responseBytes);
+        }
+
+        /**
+         * Record a failed request, phases which completed are recorded
+         */
+        private synchronized void fail(RequestMetrics call) {
+            failures++;
+            recordPhases(call);
+        }
+
+        private void recordPhases(RequestMetrics call) {
+            if (call.dnsMillis >= 0)
+                dns.record(call.dnsMillis);
+            if (call.connectMillis >= 0)
+                connect.record(call.connectMillis);
+            if (call.tlsMillis >= 0)
+                tls.record(call.tlsMillis);
+            if (call.ttfbMillis >= 0)
+                ttfb.record(call.ttfbMillis);
+        }
+
+        public synchronized long getCount() { return count; }
+        public synchronized long getFailures() { return failures; }
+        public synchronized double getMillis() { return millis; }
+        public synchronized double getBytes() { return bytes; }
+
+        /**
+         * Get measurements as JSON
+         * @return counts and histograms of phases and sizes
+         */
+        public synchronized JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("failures", failures);
+            json.put("dns_ms", dns.toJson());
+            json.put("connect_ms", connect.toJson());
+            json.put("tls_ms", tls.toJson());
+            json.put("ttfb_ms", ttfb.toJson());
+            json.put("total_ms", total.toJson());
+            json.put("request_bytes", requestBytes.toJson());
+            json.put("response_bytes", responseBytes.toJson());
+            return json;
+        }
+
+        /**
+         * Get short summary of median times and sizes
+         * @return summary, e.g. for showing on the watch
+         */
+        public synchronized String summarize() {
+            return String.format("n=%d fail=%d\n" +
+                            "total %d/%d ms (p50/p90)\n" +
+                            "ttfb %d dns %d conn %d tls %d ms\n" +
+                            "req %d B resp %d B",
+                    count, failures,
+                    total.getPercentile(50), total.getPercentile(90),
+                    ttfb.getPercentile(50), dns.getPercentile(50),
+                    connect.getPercentile(50), tls.getPercentile(50),
+                    requestBytes.getPercentile(50), responseBytes.getPercentile(50));
+        }
+    }
+
+    // Start times in nanoseconds of the call and its phases, 0 if not started
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long tlsStart;
+    private long requestStart;
+    // Durations in milliseconds of the phases, -1 if the phase did not happen
+    private long dnsMillis = -1;
+    private long connectMillis = -1;
+    private long tlsMillis = -1;
+    private long ttfbMillis = -1;
+    // Bytes sent and received, including headers
+    private long requestBytes = 0;
+    private long responseBytes = 0;
+
+    private RequestMetrics() {}
+
+    /**
+     * Get measurements of an endpoint
+     * @param endpoint endpoint, as returned by endpoint()
+     * @return measurements, null if no request completed
+     */
+    public static Stat get(String endpoint) {
+        Stat stat = stats.get(endpoint);
+        return stat == null || stat.getCount() == 0 ? null : stat;
+    }
+
+    /**
+     * Get measurements of all endpoints
+     * @return measurements by endpoint, sorted by endpoint
+     */
+    public static Map<String, Stat> getAll() {
+        return new TreeMap<>(stats);
+    }
+
+    /**
+     * Get measurements of all endpoints as JSON
+     * @return measurements by endpoint
+     */
+    public static JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, Stat> entry : getAll().entrySet())
+            json.put(entry.getKey(), entry.getValue().toJson());
+
+        return json;
+    }
+
+    /**
+     * Get endpoint of a service method
+     * @param service retrofit service interface
+     * @param name name of the method
+     * @return HTTP method and path template, e.g. "GET api/manager/devices/device/{deviceId}"
+     */
+    public static String endpoint(Class<?> service, String name) {
+        for (Method method : service.getMethods()) {
+            if (method.getName().equals(name))
+                return endpoint(method);
+        }
+
+        throw new IllegalArgumentException("Unknown method " + name);
+    }
+
+    /**
+     * Get endpoint of a request
+     * @param request request, sent via a retrofit service or not
+     * @return HTTP method and path template, or the path if not sent via a retrofit service
+     */
+    public static String endpoint(Request request) {
+        Invocation invocation = request.tag(Invocation.class);
+        if (invocation != null)
+            return endpoint(invocation.method());
+
+        return request.method() + " " + request.url().encodedPath();
+    }
+
+    /**
+     * Get endpoint of a service method
+     */
+    private static String endpoint(Method method) {
+        for (Annotation annotation : method.getAnnotations()) {
+            if (annotation instanceof GET)
+                return "GET " + ((GET) annotation).value();
+            if (annotation instanceof PUT)
+                return "PUT " + ((PUT) annotation).value();
+            if (annotation instanceof POST)
+                return "POST " + ((POST) annotation).value();
+            if (annotation instanceof DELETE)
+                return "DELETE " + ((DELETE) annotation).value();
+            if (annotation instanceof PATCH)
+                return "PATCH " + ((PATCH) annotation).value();
+        }
+
+        return method.getName();
+    }
+
+    /**
+     * Get measurements of an endpoint, created if needed
+     */
+    private static Stat stat(Call call) {
+        return stats.computeIfAbsent(endpoint(call.request()), endpoint -> new Stat());
+    }
+
+    /**
+     * Get milliseconds since a start time
+     */
+    private static long since(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsMillis = since(dnsStart);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        tlsStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsMillis = since(tlsStart);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                           Protocol protocol) {
+        connectMillis = since(connectStart);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        requestStart = System.nanoTime();
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        requestBytes += request.headers().byteCount();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        requestBytes += byteCount;
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        ttfbMillis = since(requestStart);
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        responseBytes += response.headers().byteCount();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        responseBytes += byteCount;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        stat(call).record(this, since(callStart));
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        stat(call).fail(this);
+    }
+}
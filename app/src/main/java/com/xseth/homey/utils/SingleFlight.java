@@ -0,0 +1,141 @@
+package com.xseth.homey.utils;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Coalesces concurrent fetches of the same resource into a single request.
+ *
+ * The first caller performs the fetch on its own thread, concurrent callers wait for its result.
+ * Results are reused for a short freshness window.
+ * @param <T> type of the fetched resource
+ */
+public class SingleFlight<T> {
+
+    // Whether a result may be reused, failed fetches are not
+    private final Predicate<T> cacheable;
+    // Time in milliseconds a result is reused
+    private volatile long freshness;
+
+    // Fetch in progress, null if none
+    private CompletableFuture<T> inFlight;
+    // Latest reusable result, null if none
+    private T value;
+    // Time at which value is fetched
+    private long fetchedAt;
+    // Incremented on invalidation, results of older fetches are not reused
+    private int generation;
+
+    /**
+     * SingleFlight constructor
+     * @param freshness time in milliseconds a result is reused
+     * @param cacheable whether a result may be reused
+     */
+    public SingleFlight(long freshness, Predicate<T> cacheable) {
+        this.freshness = freshness;
+        this.cacheable = cacheable;
+    }
+
+    /**
+     * Set time a result is reused
+     * @param freshness time in milliseconds, 0 to only coalesce concurrent fetches
+     */
+    public void setFreshness(long freshness) {
+        this.freshness = freshness;
+    }
+
+    /**
+     * Get the resource, reusing a fresh result or a fetch in progress
+     * @param fetch blocking fetch of the resource
+     * @return fetched resource
+     */
+    public T get(Supplier<T> fetch) {
+        CompletableFuture<T> future;
+        int flightGeneration;
+
+        synchronized (this) {
+            if (value != null && SystemClock.elapsedRealtime() - fetchedAt < freshness)
+                return value;
+
+            // Another caller is fetching, wait for its result
+            if (inFlight != null) {
+                future = inFlight;
+                flightGeneration = -1;
+            } else {
+                future = inFlight = new CompletableFuture<>();
+                flightGeneration = generation;
+            }
+        }
+
+        if (flightGeneration < 0) {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw e;
+            }
+        }
+
+        T result;
+        try {
+            result = fetch.get();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (inFlight == future)
+                    inFlight = null;
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+
+        synchronized (this) {
+            if (inFlight == future)
+                inFlight = null;
+
+            if (flightGeneration == generation && cacheable.test(result)) {
+                value = result;
+                fetchedAt = SystemClock.elapsedRealtime();
+            }
+        }
+
+        future.complete(result);
+        return result;
+    }
+
+    /**
+     * Get the reusable result without fetching
+     * @return fresh result, null if none
+     */
+    public synchronized T peek() {
+        if (value != null && SystemClock.elapsedRealtime() - fetchedAt < freshness)
+            return value;
+
+        return null;
+    }
+
+    /**
+     * Change the reusable result in place, keeping its fetch time. A fetch in progress is still
+     * returned to its callers, but not reused as it may predate the change
+     * @param update returns the changed result, must not modify the given result
+     */
+    public synchronized void update(UnaryOperator<T> update) {
+        generation++;
+        if (value != null)
+            value = update.apply(value);
+    }
+
+    /**
+     * Forget the reusable result, the next caller fetches the resource again
+     */
+    public synchronized void invalidate() {
+        generation++;
+        value = null;
+        inFlight = null;
+    }
+}
@@ -0,0 +1,31 @@
+package com.xseth.homey.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Assigns stable numeric IDs to string IDs, used as RecyclerView item IDs.
+ *
+ * Unlike hash codes the numbers never collide. Only used on the main thread.
+ */
+public class StableIds {
+
+    // Assigned numbers by string ID
+    private final Map<String, Long> ids = new HashMap<>();
+    // Next number to assign
+    private long next = 0;
+
+    /**
+     * Get number assigned to ID, assigning a new number if needed
+     * @param id string ID
+     * @return number of ID
+     */
+    public long get(String id) {
+        Long number = ids.get(id);
+        if (number == null) {
+            number = next++;
+            ids.put(id, number);
+        }
+        return number;
+    }
+}
@@ -0,0 +1,30 @@
+package com.xseth.homey.utils;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Logs the time since process start of startup milestones, such as the first device toggle
+ */
+public class StartupTimer {
+
+    // Milestones which are already logged
+    private static final Set<String> milestones = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Log time since process start for milestone, only the first occurrence is logged
+     * @param milestone name of the milestone
+     */
+    public static void mark(String milestone){
+        if (!milestones.add(milestone))
+            return;
+
+        long elapsed = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        Timber.tag("Startup").i("%s after %d ms", milestone, elapsed);
+    }
+}
@@ -1,6 +1,5 @@
 package com.xseth.homey.utils;
 
-import com.xseth.homey.homey.HomeyAPI;
 import com.xseth.homey.homey.models.Token;
 
 import java.io.IOException;
@@ -12,8 +11,39 @@ import timber.log.Timber;
 
 public class TokenInterceptor implements Interceptor {
 
+    /**
+     * Interface for retrieving a new session token once the current token is rejected
+     */
+    public interface TokenRefresher {
+        /**
+         * Retrieve and set a new session token
+         * @param expired token which is rejected
+         * @return whether a new token is set
+         */
+        boolean refresh(Token expired);
+    }
+
+    // Time in milliseconds before expiry at which a token is refreshed
+    private static final long EXPIRY_MARGIN_MS = 60_000;
+
     // Token object holding session tokens
-    private Token token;
+    private volatile Token token;
+    // Refresher used when the token is rejected
+    private final TokenRefresher refresher;
+    // Lock ensuring a single refresh at a time
+    private final Object refreshLock = new Object();
+    // Thread currently refreshing the token, its own requests are sent without token
+    private volatile Thread refreshing;
+    // Token of which the last refresh failed, not refreshed again before it is rejected
+    private volatile Token failed;
+
+    /**
+     * TokenInterceptor constructor
+     * @param refresher refresher used when the token is rejected
+     */
+    public TokenInterceptor(TokenRefresher refresher) {
+        this.refresher = refresher;
+    }
 
     /**
      * Set Token object
@@ -27,23 +57,45 @@ public class TokenInterceptor implements Interceptor {
     public Response intercept(Chain chain) throws IOException {
         Request request = chain.request();
 
+        // Request made by the refresher itself, such as the refresh call
+        if (refreshing == Thread.currentThread())
+            return chain.proceed(request);
+
+        Token current = token;
+
+        // Refresh before the token expires, instead of waiting for a rejection
+        if (current != null && current != failed && current.getRefreshToken() != null &&
+                current.isExpiring(EXPIRY_MARGIN_MS)) {
+            Timber.i("Token about to expire, refreshing token!");
+            refresh(current);
+            current = token;
+        }
+
         Request.Builder requestBuilder = request.newBuilder();
 
         // If token present set Authorization header
-        if (token != null)
-            requestBuilder.addHeader("Authorization", token.getAuthorizationHeader());
+        if (current != null)
+            requestBuilder.addHeader("Authorization", current.getAuthorizationHeader());
 
         Response response = chain.proceed(requestBuilder.build());
 
+        // OAuth servers reject an expired token with 400, other APIs with 401
+        boolean rejected = response.code() == 401 ||
+                (response.code() == 400 && current != null && current.getRefreshToken() != null);
+
         // Token expired, refresh token if available
-        if((response.code() == 400 || response.code() == 401) && token != null &&
-                token.getRefreshToken() != null) {
+        if(rejected && current != null) {
+
+            Timber.w("%d denied, refreshing token!", response.code());
+
+            if (!refresh(current))
+                return response;
 
-            Timber.w("401 denied, refreshing token!");
             response.close();
 
-            HomeyAPI.getAPI().refreshToken(token.getRefreshToken());
-            requestBuilder.header("Authorization", token.getAuthorizationHeader());
+            Token refreshed = token;
+            if (refreshed != null)
+                requestBuilder.header("Authorization", refreshed.getAuthorizationHeader());
 
             return chain.proceed(requestBuilder.build());
 
@@ -51,5 +103,28 @@ public class TokenInterceptor implements Interceptor {
             return response;
     }
 
-
+    /**
+     * Refresh the token, unless another request already refreshed it. Concurrent callers wait
+     * for the refresh in progress instead of starting their own
+     * @param expired token which is rejected or about to expire
+     * @return whether a new token is set
+     */
+    private boolean refresh(Token expired) {
+        synchronized (refreshLock) {
+            // Refreshed while waiting for the lock
+            if (token != expired)
+                return token != null;
+
+            refreshing = Thread.currentThread();
+            try {
+                boolean refreshed = refresher.refresh(expired);
+                if (!refreshed)
+                    failed = expired;
+
+                return refreshed;
+            } finally {
+                refreshing = null;
+            }
+        }
+    }
 }
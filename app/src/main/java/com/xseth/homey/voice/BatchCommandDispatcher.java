@@ -0,0 +1,152 @@
+package com.xseth.homey.voice;
+
+import com.xseth.homey.homey.models.Device;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Executes a command on multiple devices concurrently, with a limit on the number of
+ * requests in flight. Requests to the Homey share one multiplexed HTTP/2 connection, so a
+ * command on many devices takes about one round trip instead of one per device.
+ */
+public class BatchCommandDispatcher {
+
+    // Default number of concurrent requests
+    public static final int DEFAULT_CONCURRENCY = 8;
+
+    /**
+     * Command executed for every device
+     */
+    public interface DeviceCommand {
+        /**
+         * Execute command for device, blocking until the Homey responds
+         * @param device device to execute command for
+         * @return whether a request is sent, false if the device is skipped
+         * @throws Exception if the request failed
+         */
+        boolean execute(Device device) throws Exception;
+    }
+
+    /**
+     * Listener notified once a device is done, called from a worker thread
+     */
+    public interface ProgressListener {
+        void onProgress(int completed, int total);
+    }
+
+    /**
+     * Per-device outcome of a batch
+     */
+    public static class Outcome {
+        private final List<Device> succeeded = Collections.synchronizedList(new ArrayList<>());
+        private final List<Device> failed = Collections.synchronizedList(new ArrayList<>());
+        private final List<Device> skipped = Collections.synchronizedList(new ArrayList<>());
+
+        public List<Device> getSucceeded() { return succeeded; }
+        public List<Device> getFailed() { return failed; }
+        public List<Device> getSkipped() { return skipped; }
+    }
+
+    // Maximum number of concurrent requests
+    private final int concurrency;
+    // Listener notified of progress, may be null
+    private ProgressListener progressListener;
+
+    /**
+     * BatchCommandDispatcher constructor
+     * @param concurrency maximum number of concurrent requests
+     */
+    public BatchCommandDispatcher(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * Set listener notified of progress
+     * @param progressListener listener, or null
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Execute command for all devices, blocking until every device is done
+     * @param devices devices to execute command for
+     * @param command command to execute
+     * @return outcome per device
+     */
+    public Outcome dispatch(List<Device> devices, DeviceCommand command) {
+        Outcome outcome = new Outcome();
+        int total = devices.size();
+
+        if (total == 0)
+            return outcome;
+
+        // Single device, no need for another thread
+        if (total == 1) {
+            run(devices.get(0), command, outcome);
+            notifyProgress(1, 1);
+            return outcome;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, total));
+        CountDownLatch done = new CountDownLatch(total);
+        AtomicInteger completed = new AtomicInteger();
+
+        for (Device device : devices) {
+            executor.execute(() -> {
+                try {
+                    run(device, command, outcome);
+                    notifyProgress(completed.incrementAndGet(), total);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        executor.shutdown();
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Timber.w("Interrupted while waiting for batch command");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        return outcome;
+    }
+
+    /**
+     * Execute command for a single device and record its outcome
+     * @param device device to execute command for
+     * @param command command to execute
+     * @param outcome outcome to record result in
+     */
+    private static void run(Device device, DeviceCommand command, Outcome outcome) {
+        try {
+            if (command.execute(device))
+                outcome.succeeded.add(device);
+            else
+                outcome.skipped.add(device);
+        } catch (Exception e) {
+            Timber.e(e, "Command failed for device: %s", device.getName());
+            outcome.failed.add(device);
+        }
+    }
+
+    /**
+     * Notify progress listener, if set
+     */
+    private void notifyProgress(int completed, int total) {
+        ProgressListener listener = progressListener;
+        if (listener != null)
+            listener.onProgress(completed, total);
+    }
+}
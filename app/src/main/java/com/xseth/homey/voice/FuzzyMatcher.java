@@ -2,9 +2,8 @@ package com.xseth.homey.voice;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * Multi-stage fuzzy string matching with German language support
@@ -12,7 +11,13 @@ import java.util.Set;
 public class FuzzyMatcher {
 
     private static final double MATCH_THRESHOLD = 0.65;
-    private static final double COMPOUND_MATCH_SCORE_MULTIPLIER = 0.95;
+
+    // Common German compound separators, normalized
+    private static final String[] COMMON_PARTS = {
+        "wohn", "zimmer", "schlaf", "kinder", "bade", "ess",
+        "arbeits", "buero", "wohnzimmer", "schlafzimmer", "kueche",
+        "bad", "flur", "keller", "garage", "garten", "licht"
+    };
 
     /**
      * Match result containing score and match type
@@ -33,12 +38,116 @@ public class FuzzyMatcher {
         public String getMatchedId() { return matchedId; }
     }
 
+    /**
+     * Running best match of a query over candidates. Candidates are passed in pre-processed
+     * form, so the VoiceCatalog can prepare them once instead of per query.
+     */
+    static class Scorer {
+        private final String query;
+        private final String[] tokens;
+        private final String[] parts;
+
+        private double bestScore = 0.0;
+        private String bestMatchType = "none";
+        private String bestMatchedId = null;
+
+        Scorer(String query) {
+            this.query = normalizeGerman(query);
+            this.tokens = tokenize(this.query);
+            this.parts = compoundParts(this.query);
+        }
+
+        String getQuery() { return query; }
+
+        /**
+         * Forget the best match, so the query can be scored against a new set of candidates
+         */
+        void reset() {
+            bestScore = 0.0;
+            bestMatchType = "none";
+            bestMatchedId = null;
+        }
+
+        /**
+         * Score a candidate against the query
+         * @return true if the candidate is an exact match, no further candidates are needed
+         */
+        boolean consider(String candidateId, String candidate, String[] candidateTokens,
+                         String[] candidateParts) {
+            // Stage 1: Exact match
+            if (query.equals(candidate)) {
+                bestScore = 1.0;
+                bestMatchType = "exact";
+                bestMatchedId = candidateId;
+                return true;
+            }
+
+            // Stage 2: Contains match
+            double containsScore = 0.0;
+            if (candidate.contains(query)) {
+                containsScore = 0.85 + (0.05 * (1.0 - (candidate.length() - query.length()) / (double) candidate.length()));
+            } else if (query.contains(candidate)) {
+                containsScore = 0.80;
+            }
+
+            if (containsScore > bestScore) {
+                bestScore = containsScore;
+                bestMatchType = "contains";
+                bestMatchedId = candidateId;
+            }
+
+            // Stage 3: Token set match
+            double tokenScore = tokenSetMatch(tokens, candidateTokens) * 0.80;
+            if (tokenScore > bestScore) {
+                bestScore = tokenScore;
+                bestMatchType = "token_set";
+                bestMatchedId = candidateId;
+            }
+
+            // Stage 4: Jaro-Winkler fuzzy match
+            double jaroScore = jaroWinklerNormalized(query, candidate);
+            if (jaroScore > 0.75 && jaroScore > bestScore) {
+                bestScore = jaroScore;
+                bestMatchType = "fuzzy";
+                bestMatchedId = candidateId;
+            }
+
+            // Stage 5: Compound word matching, only improves the best score so the result does
+            // not depend on the order of candidates
+            for (String qPart : parts) {
+                for (String cPart : candidateParts) {
+                    double partScore = jaroWinklerNormalized(qPart, cPart);
+                    double compoundScore = partScore * 0.75;
+                    if (partScore > 0.80 && compoundScore > bestScore) {
+                        bestScore = compoundScore;
+                        bestMatchType = "compound";
+                        bestMatchedId = candidateId;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Get best match, if above threshold
+         * @return best match or null
+         */
+        MatchResult result() {
+            if (bestScore >= MATCH_THRESHOLD && bestMatchedId != null) {
+                return new MatchResult(bestScore, bestMatchType, bestMatchedId);
+            }
+
+            return null;
+        }
+    }
+
     /**
      * Normalize German umlauts and special characters
      */
     public static String normalizeGerman(String text) {
         if (text == null) return "";
-        
+
         return text.toLowerCase()
                 .replace("ä", "ae")
                 .replace("ö", "oe")
@@ -51,20 +160,18 @@ public class FuzzyMatcher {
      * Split German compound words (basic heuristic)
      */
     public static List<String> splitCompound(String word) {
+        return Arrays.asList(compoundParts(normalizeGerman(word)));
+    }
+
+    /**
+     * Split a normalized German compound word, first part is the word itself
+     */
+    static String[] compoundParts(String normalized) {
         List<String> parts = new ArrayList<>();
-        
-        // Common German compound separators
-        String[] commonParts = {
-            "wohn", "zimmer", "schlaf", "kinder", "bade", "ess",
-            "arbeits", "büro", "wohnzimmer", "schlafzimmer", "küche",
-            "bad", "flur", "keller", "garage", "garten", "licht"
-        };
-        
-        String normalized = normalizeGerman(word);
         parts.add(normalized);
-        
+
         // Try to split based on known parts
-        for (String part : commonParts) {
+        for (String part : COMMON_PARTS) {
             if (normalized.contains(part) && normalized.length() > part.length()) {
                 String remainder = normalized.replace(part, "");
                 if (remainder.length() > 0) {
@@ -73,36 +180,47 @@ public class FuzzyMatcher {
                 }
             }
         }
-        
-        return parts;
+
+        return parts.toArray(new String[0]);
+    }
+
+    /**
+     * Split a normalized text into sorted unique tokens
+     */
+    static String[] tokenize(String normalized) {
+        return new TreeSet<>(Arrays.asList(normalized.split("\\s+"))).toArray(new String[0]);
     }
 
     /**
      * Calculate Jaro-Winkler distance
      */
     public static double jaroWinkler(String s1, String s2) {
-        s1 = normalizeGerman(s1);
-        s2 = normalizeGerman(s2);
-        
+        return jaroWinklerNormalized(normalizeGerman(s1), normalizeGerman(s2));
+    }
+
+    /**
+     * Calculate Jaro-Winkler distance of normalized strings
+     */
+    static double jaroWinklerNormalized(String s1, String s2) {
         if (s1.equals(s2)) return 1.0;
-        
+
         int len1 = s1.length();
         int len2 = s2.length();
-        
+
         if (len1 == 0 || len2 == 0) return 0.0;
-        
+
         int matchDistance = Math.max(len1, len2) / 2 - 1;
         boolean[] s1Matches = new boolean[len1];
         boolean[] s2Matches = new boolean[len2];
-        
+
         int matches = 0;
         int transpositions = 0;
-        
+
         // Find matches
         for (int i = 0; i < len1; i++) {
             int start = Math.max(0, i - matchDistance);
             int end = Math.min(i + matchDistance + 1, len2);
-            
+
             for (int j = start; j < end; j++) {
                 if (s2Matches[j] || s1.charAt(i) != s2.charAt(j)) continue;
                 s1Matches[i] = true;
@@ -111,9 +229,9 @@ public class FuzzyMatcher {
                 break;
             }
         }
-        
+
         if (matches == 0) return 0.0;
-        
+
         // Find transpositions
         int k = 0;
         for (int i = 0; i < len1; i++) {
@@ -122,18 +240,18 @@ public class FuzzyMatcher {
             if (s1.charAt(i) != s2.charAt(k)) transpositions++;
             k++;
         }
-        
-        double jaro = (matches / (double) len1 + 
-                      matches / (double) len2 + 
+
+        double jaro = (matches / (double) len1 +
+                      matches / (double) len2 +
                       (matches - transpositions / 2.0) / matches) / 3.0;
-        
+
         // Winkler modification
         int prefix = 0;
         for (int i = 0; i < Math.min(4, Math.min(len1, len2)); i++) {
             if (s1.charAt(i) == s2.charAt(i)) prefix++;
             else break;
         }
-        
+
         return jaro + (prefix * 0.1 * (1.0 - jaro));
     }
 
@@ -141,18 +259,34 @@ public class FuzzyMatcher {
      * Token set matching
      */
     public static double tokenSetMatch(String s1, String s2) {
-        Set<String> tokens1 = new HashSet<>(Arrays.asList(normalizeGerman(s1).split("\\s+")));
-        Set<String> tokens2 = new HashSet<>(Arrays.asList(normalizeGerman(s2).split("\\s+")));
-        
-        Set<String> intersection = new HashSet<>(tokens1);
-        intersection.retainAll(tokens2);
-        
-        Set<String> union = new HashSet<>(tokens1);
-        union.addAll(tokens2);
-        
-        if (union.isEmpty()) return 0.0;
-        
-        return (double) intersection.size() / union.size();
+        return tokenSetMatch(tokenize(normalizeGerman(s1)), tokenize(normalizeGerman(s2)));
+    }
+
+    /**
+     * Token set matching of sorted unique tokens, without allocating sets
+     */
+    static double tokenSetMatch(String[] tokens1, String[] tokens2) {
+        int intersection = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < tokens1.length && j < tokens2.length) {
+            int cmp = tokens1[i].compareTo(tokens2[j]);
+            if (cmp == 0) {
+                intersection++;
+                i++;
+                j++;
+            } else if (cmp < 0) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        int union = tokens1.length + tokens2.length - intersection;
+        if (union == 0) return 0.0;
+
+        return (double) intersection / union;
     }
 
     /**
@@ -162,78 +296,20 @@ public class FuzzyMatcher {
         if (query == null || candidates == null || candidates.isEmpty()) {
             return null;
         }
-        
-        String normalizedQuery = normalizeGerman(query);
-        double bestScore = 0.0;
-        String bestMatchType = "none";
-        String bestMatchedId = null;
-        int bestIndex = -1;
-        
+
+        Scorer scorer = new Scorer(query);
+
         for (int i = 0; i < candidates.size(); i++) {
-            String candidate = candidates.get(i);
             String candidateId = (candidateIds != null && i < candidateIds.size()) ? candidateIds.get(i) : null;
-            String normalizedCandidate = normalizeGerman(candidate);
-            
-            // Stage 1: Exact match
-            if (normalizedQuery.equals(normalizedCandidate)) {
-                return new MatchResult(1.0, "exact", candidateId);
-            }
-            
-            // Stage 2: Contains match
-            double containsScore = 0.0;
-            if (normalizedCandidate.contains(normalizedQuery)) {
-                containsScore = 0.85 + (0.05 * (1.0 - (normalizedCandidate.length() - normalizedQuery.length()) / (double) normalizedCandidate.length()));
-            } else if (normalizedQuery.contains(normalizedCandidate)) {
-                containsScore = 0.80;
-            }
-            
-            if (containsScore > bestScore) {
-                bestScore = containsScore;
-                bestMatchType = "contains";
-                bestMatchedId = candidateId;
-                bestIndex = i;
-            }
-            
-            // Stage 3: Token set match
-            double tokenScore = tokenSetMatch(query, candidate) * 0.80;
-            if (tokenScore > bestScore) {
-                bestScore = tokenScore;
-                bestMatchType = "token_set";
-                bestMatchedId = candidateId;
-                bestIndex = i;
-            }
-            
-            // Stage 4: Jaro-Winkler fuzzy match
-            double jaroScore = jaroWinkler(query, candidate);
-            if (jaroScore > 0.75 && jaroScore > bestScore) {
-                bestScore = jaroScore;
-                bestMatchType = "fuzzy";
-                bestMatchedId = candidateId;
-                bestIndex = i;
-            }
-            
-            // Stage 5: Compound word matching
-            List<String> queryParts = splitCompound(query);
-            List<String> candidateParts = splitCompound(candidate);
-            
-            for (String qPart : queryParts) {
-                for (String cPart : candidateParts) {
-                    double partScore = jaroWinkler(qPart, cPart);
-                    if (partScore > 0.80 && partScore > bestScore * COMPOUND_MATCH_SCORE_MULTIPLIER) {
-                        bestScore = partScore * 0.75;
-                        bestMatchType = "compound";
-                        bestMatchedId = candidateId;
-                        bestIndex = i;
-                    }
-                }
+            String normalizedCandidate = normalizeGerman(candidates.get(i));
+
+            if (scorer.consider(candidateId, normalizedCandidate, tokenize(normalizedCandidate),
+                    compoundParts(normalizedCandidate))) {
+                break;
             }
         }
-        
-        if (bestScore >= MATCH_THRESHOLD && bestMatchedId != null) {
-            return new MatchResult(bestScore, bestMatchType, bestMatchedId);
-        }
-        
-        return null;
+
+        return scorer.result();
     }
 
     /**
@@ -241,11 +317,11 @@ public class FuzzyMatcher {
      */
     public static boolean matches(String query, String candidate) {
         if (query == null || candidate == null) return false;
-        
+
         List<String> candidates = Arrays.asList(candidate);
         List<String> ids = Arrays.asList(candidate);
         MatchResult result = findBestMatch(query, candidates, ids);
-        
+
         return result != null;
     }
 }
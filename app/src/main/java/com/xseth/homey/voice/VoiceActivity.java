@@ -20,10 +20,13 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentActivity;
 
+import com.xseth.homey.BuildConfig;
 import com.xseth.homey.R;
+import com.xseth.homey.homey.CommandJournal;
 import com.xseth.homey.homey.HomeyAPI;
 
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
 
 import timber.log.Timber;
 
@@ -34,6 +37,8 @@ public class VoiceActivity extends FragmentActivity {
 
     private static final int PERMISSION_REQUEST_RECORD_AUDIO = 1;
     private static final int AUTO_CLOSE_DELAY_MS = 1500;
+    // Delay in debug builds, leaving time to read the timeline overlay
+    private static final int DEBUG_CLOSE_DELAY_MS = 5000;
 
     private enum State {
         INITIALIZING,
@@ -49,8 +54,16 @@ public class VoiceActivity extends FragmentActivity {
     private TextView commandText;
     private ProgressBar progressBar;
     private Button retryButton;
+    // Overlay with the timeline of the last command, only in debug builds
+    private TextView traceText;
     private State currentState;
     private Handler handler;
+    // Devices, zones and flows, loaded while listening
+    private CompletableFuture<VoiceContext> voiceContext;
+    // Timeline of the current command, started at the end of speech
+    private VoiceTrace trace;
+    // Span of recognizing the speech, running until results arrive
+    private VoiceTrace.Span recognizing;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,9 +75,13 @@ public class VoiceActivity extends FragmentActivity {
         commandText = findViewById(R.id.command_text);
         progressBar = findViewById(R.id.progress_bar);
         retryButton = findViewById(R.id.retry_button);
+        traceText = findViewById(R.id.trace_text);
 
         handler = new Handler(Looper.getMainLooper());
 
+        // Replay writes which could not reach the Homey, once reachable
+        CommandJournal.getInstance(getApplication());
+
         retryButton.setOnClickListener(v -> startVoiceRecognition());
 
         setState(State.INITIALIZING);
@@ -128,6 +145,11 @@ public class VoiceActivity extends FragmentActivity {
         }
 
         setState(State.LISTENING);
+        trace = null;
+        recognizing = null;
+
+        // Load devices, zones and flows while the user is speaking
+        voiceContext = VoiceContext.get(HomeyAPI.getAPI());
 
         Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
         intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL,
@@ -173,6 +195,7 @@ public class VoiceActivity extends FragmentActivity {
                 statusText.setText(R.string.voice_listening);
                 commandText.setVisibility(View.VISIBLE);
                 commandText.setText("");
+                traceText.setVisibility(View.GONE);
                 progressBar.setVisibility(View.GONE);
                 retryButton.setVisibility(View.GONE);
                 break;
@@ -191,7 +214,8 @@ public class VoiceActivity extends FragmentActivity {
                 progressBar.setVisibility(View.GONE);
                 retryButton.setVisibility(View.GONE);
                 // Auto-close after delay
-                handler.postDelayed(this::finish, AUTO_CLOSE_DELAY_MS);
+                handler.postDelayed(this::finish,
+                        BuildConfig.DEBUG ? DEBUG_CLOSE_DELAY_MS : AUTO_CLOSE_DELAY_MS);
                 break;
 
             case ERROR:
@@ -203,23 +227,57 @@ public class VoiceActivity extends FragmentActivity {
         }
     }
 
+    /**
+     * Show timeline of a command in the overlay, only in debug builds
+     * @param trace finished timeline
+     */
+    private void showTrace(VoiceTrace trace) {
+        if (!BuildConfig.DEBUG)
+            return;
+
+        traceText.setText(trace.summarize());
+        traceText.setVisibility(View.VISIBLE);
+    }
+
     /**
      * Process recognized speech
+     * @param command recognized text
+     * @param trace timeline of the command
      */
-    private void processCommand(String command) {
+    private void processCommand(String command, VoiceTrace trace) {
         setState(State.PROCESSING);
         commandText.setText(command);
+        trace.setCommand(command);
 
         // Execute command in background thread
         new Thread(() -> {
             try {
                 HomeyAPI api = HomeyAPI.getAPI();
-                VoiceCommandExecutor executor = new VoiceCommandExecutor(api);
-                
-                ParsedIntent intent = GermanIntentParser.parse(command);
+                ParsedIntent intent;
+                try (VoiceTrace.Span span = trace.begin("parse")) {
+                    intent = GermanIntentParser.parse(command);
+                }
+
+                // Usually loaded already, otherwise wait for the remaining calls. Loading again if
+                // it failed while listening, e.g. as the HomeyAPI was not ready yet
+                CompletableFuture<VoiceContext> loading = voiceContext;
+                if (loading == null || loading.isCompletedExceptionally())
+                    loading = VoiceContext.get(api);
+
+                VoiceContext context;
+                try (VoiceTrace.Span span = trace.begin("context")) {
+                    context = loading.join();
+                }
+
+                VoiceCommandExecutor executor = new VoiceCommandExecutor(api, context);
+                executor.setTrace(trace);
+                executor.setProgressListener((completed, total) -> runOnUiThread(() ->
+                        statusText.setText(getString(R.string.voice_progress, completed, total))));
                 VoiceCommandExecutor.Result result = executor.execute(intent);
+                trace.finish(result.isSuccess());
 
                 runOnUiThread(() -> {
+                    showTrace(trace);
                     if (result.isSuccess()) {
                         setState(State.SUCCESS);
                         statusText.setText(result.getMessage());
@@ -230,7 +288,9 @@ public class VoiceActivity extends FragmentActivity {
                 });
             } catch (Exception e) {
                 Timber.e(e, "Error processing command");
+                trace.finish(false);
                 runOnUiThread(() -> {
+                    showTrace(trace);
                     setState(State.ERROR);
                     statusText.setText(R.string.voice_error_generic);
                 });
@@ -275,11 +335,17 @@ public class VoiceActivity extends FragmentActivity {
         @Override
         public void onEndOfSpeech() {
             Timber.d("End of speech");
+            trace = new VoiceTrace();
+            recognizing = trace.begin("recognize");
         }
 
         @Override
         public void onError(int error) {
             Timber.e("Speech recognition error: " + error);
+            // Nothing recognized, no command to trace
+            if (recognizing != null)
+                recognizing.close();
+            trace = null;
             
             String errorMessage;
             switch (error) {
@@ -318,13 +384,21 @@ public class VoiceActivity extends FragmentActivity {
 
         @Override
         public void onResults(Bundle results) {
+            if (recognizing != null)
+                recognizing.close();
+
             ArrayList<String> matches = results.getStringArrayList(
                     SpeechRecognizer.RESULTS_RECOGNITION);
             
             if (matches != null && !matches.isEmpty()) {
                 String recognizedText = matches.get(0);
                 Timber.d("Recognized: " + recognizedText);
-                processCommand(recognizedText);
+
+                // End of speech is not reported by every recognizer
+                if (trace == null)
+                    trace = new VoiceTrace();
+
+                processCommand(recognizedText, trace);
             } else {
                 runOnUiThread(() -> {
                     setState(State.ERROR);
@@ -0,0 +1,237 @@
+package com.xseth.homey.voice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable index of named entities (devices, zones or flows) for voice matching.
+ *
+ * Names are normalized, tokenized and split into compound parts once when the catalog is built.
+ * Character bigram postings are used to score only a shortlist of candidates sharing the most
+ * bigrams with a query, so large homes do not require scoring every name.
+ */
+public class VoiceCatalog {
+
+    // Catalogs up to this size are scanned completely
+    private static final int FULL_SCAN_SIZE = 64;
+    // Maximum number of candidates scored for a best match
+    private static final int SHORTLIST_SIZE = 48;
+
+    // Entity IDs, in order of addition
+    private final String[] ids;
+    // Original entity names
+    private final String[] names;
+    // Normalized entity names
+    private final String[] normalized;
+    // Sorted unique tokens of normalized names
+    private final String[][] tokens;
+    // Compound parts of normalized names
+    private final String[][] parts;
+    // Index of first entity per normalized name
+    private final Map<String, Integer> exact;
+    // Indices of entities containing a bigram, ascending
+    private final Map<String, int[]> postings;
+
+    /**
+     * Builder collecting entities for a VoiceCatalog
+     */
+    public static class Builder {
+        private final List<String> ids = new ArrayList<>();
+        private final List<String> names = new ArrayList<>();
+
+        /**
+         * Add an entity to the catalog, entities without name are ignored
+         * @param id ID of entity
+         * @param name spoken name of entity
+         * @return this builder
+         */
+        public Builder add(String id, String name) {
+            if (name != null) {
+                ids.add(id);
+                names.add(name);
+            }
+            return this;
+        }
+
+        /**
+         * Build the catalog
+         * @return immutable catalog
+         */
+        public VoiceCatalog build() {
+            return new VoiceCatalog(ids.toArray(new String[0]), names.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * VoiceCatalog constructor, prepares all names for matching
+     * @param ids entity IDs
+     * @param names entity names
+     */
+    private VoiceCatalog(String[] ids, String[] names) {
+        int size = ids.length;
+
+        this.ids = ids;
+        this.names = names;
+        this.normalized = new String[size];
+        this.tokens = new String[size][];
+        this.parts = new String[size][];
+        this.exact = new HashMap<>();
+
+        Map<String, List<Integer>> lists = new HashMap<>();
+
+        for (int i = 0; i < size; i++) {
+            String norm = FuzzyMatcher.normalizeGerman(names[i]);
+            normalized[i] = norm;
+            tokens[i] = FuzzyMatcher.tokenize(norm);
+            parts[i] = FuzzyMatcher.compoundParts(norm);
+            exact.putIfAbsent(norm, i);
+
+            String padded = pad(norm);
+            for (int c = 0; c < padded.length() - 1; c++) {
+                List<Integer> list = lists.computeIfAbsent(padded.substring(c, c + 2), k -> new ArrayList<>());
+                // Indices are added in ascending order, skip repeated bigrams in one name
+                if (list.isEmpty() || list.get(list.size() - 1) != i)
+                    list.add(i);
+            }
+        }
+
+        this.postings = new HashMap<>(lists.size() * 2);
+        for (Map.Entry<String, List<Integer>> entry : lists.entrySet()) {
+            List<Integer> list = entry.getValue();
+            int[] indices = new int[list.size()];
+            for (int i = 0; i < indices.length; i++)
+                indices[i] = list.get(i);
+            postings.put(entry.getKey(), indices);
+        }
+    }
+
+    /**
+     * Get number of entities in catalog
+     * @return number of entities
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Find the entity best matching a query, same result as FuzzyMatcher.findBestMatch
+     * over the shortlisted candidates
+     * @param query spoken name
+     * @return best match above threshold, or null
+     */
+    public FuzzyMatcher.MatchResult findBestMatch(String query) {
+        if (query == null || ids.length == 0)
+            return null;
+
+        FuzzyMatcher.Scorer scorer = new FuzzyMatcher.Scorer(query);
+
+        // Exact name, no need to score other candidates
+        Integer index = exact.get(scorer.getQuery());
+        if (index != null)
+            return new FuzzyMatcher.MatchResult(1.0, "exact", ids[index]);
+
+        int[] shortlist = shortlist(scorer.getQuery(), SHORTLIST_SIZE);
+        for (int i : shortlist) {
+            if (scorer.consider(ids[i], normalized[i], tokens[i], parts[i]))
+                break;
+        }
+
+        return scorer.result();
+    }
+
+    /**
+     * Find all entities individually matching a query, same result as FuzzyMatcher.matches
+     * for every shortlisted candidate
+     * @param query spoken name
+     * @return IDs of matching entities, in order of addition
+     */
+    public List<String> findMatches(String query) {
+        List<String> matches = new ArrayList<>();
+        if (query == null || ids.length == 0)
+            return matches;
+
+        FuzzyMatcher.Scorer scorer = new FuzzyMatcher.Scorer(query);
+
+        int[] shortlist = shortlist(scorer.getQuery(), ids.length);
+        for (int i : shortlist) {
+            scorer.reset();
+            scorer.consider(ids[i], normalized[i], tokens[i], parts[i]);
+            if (scorer.result() != null)
+                matches.add(ids[i]);
+        }
+
+        return matches;
+    }
+
+    /**
+     * Select candidates sharing the most bigrams with a query
+     * @param query normalized query
+     * @param limit maximum number of candidates
+     * @return indices of candidates, ascending
+     */
+    private int[] shortlist(String query, int limit) {
+        int size = ids.length;
+
+        // Small catalog or query too short to index, score everything
+        if (size <= FULL_SCAN_SIZE || query.length() < 2) {
+            int[] all = new int[size];
+            for (int i = 0; i < size; i++)
+                all[i] = i;
+            return all;
+        }
+
+        // Count shared bigrams per candidate
+        String padded = pad(query);
+        int[] shared = new int[size];
+        int maxShared = 0;
+
+        for (int c = 0; c < padded.length() - 1; c++) {
+            int[] indices = postings.get(padded.substring(c, c + 2));
+            if (indices == null)
+                continue;
+
+            for (int i : indices)
+                maxShared = Math.max(maxShared, ++shared[i]);
+        }
+
+        // No candidate shares a bigram
+        if (maxShared == 0)
+            return new int[0];
+
+        // Find the lowest shared count still fitting in the limit
+        int[] histogram = new int[maxShared + 1];
+        for (int count : shared)
+            histogram[count]++;
+
+        int cutoff = maxShared;
+        int selected = 0;
+        while (cutoff > 1 && selected + histogram[cutoff] < limit) {
+            selected += histogram[cutoff];
+            cutoff--;
+        }
+
+        // Take all candidates above the cutoff, fill with candidates at the cutoff
+        int remaining = limit - selected;
+        int[] result = new int[Math.min(limit, selected + histogram[cutoff])];
+        int n = 0;
+
+        for (int i = 0; i < size && n < result.length; i++) {
+            if (shared[i] > cutoff || (shared[i] == cutoff && remaining-- > 0))
+                result[n++] = i;
+        }
+
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Pad a name with word boundaries, so single characters have a bigram
+     * @param name normalized name
+     * @return padded name
+     */
+    private static String pad(String name) {
+        return " " + name + " ";
+    }
+}
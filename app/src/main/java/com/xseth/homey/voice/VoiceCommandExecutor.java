@@ -1,14 +1,20 @@
 package com.xseth.homey.voice;
 
+import com.xseth.homey.homey.CommandJournal;
+import com.xseth.homey.homey.HomeStateStore;
 import com.xseth.homey.homey.HomeyAPI;
 import com.xseth.homey.homey.models.Device;
 import com.xseth.homey.homey.models.Flow;
-import com.xseth.homey.homey.models.Zone;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import retrofit2.Call;
+import retrofit2.HttpException;
+import retrofit2.Response;
 import timber.log.Timber;
 
 /**
@@ -28,53 +34,63 @@ public class VoiceCommandExecutor {
         private boolean success;
         private String message;
         private int affectedDevices;
+        private int failedDevices;
 
         public Result(boolean success, String message, int affectedDevices) {
+            this(success, message, affectedDevices, 0);
+        }
+
+        public Result(boolean success, String message, int affectedDevices, int failedDevices) {
             this.success = success;
             this.message = message;
             this.affectedDevices = affectedDevices;
+            this.failedDevices = failedDevices;
         }
 
         public boolean isSuccess() { return success; }
         public String getMessage() { return message; }
         public int getAffectedDevices() { return affectedDevices; }
+        public int getFailedDevices() { return failedDevices; }
     }
 
     private HomeyAPI api;
+    private VoiceContext context;
     private Map<String, Device> allDevices;
-    private Map<String, Zone> allZones;
     private Map<String, Flow> allFlows;
+    // Dispatcher executing commands on multiple devices concurrently
+    private final BatchCommandDispatcher dispatcher =
+            new BatchCommandDispatcher(BatchCommandDispatcher.DEFAULT_CONCURRENCY);
+    // Number of writes of the current command recorded for replay, as the Homey is unreachable
+    private final AtomicInteger queued = new AtomicInteger();
+    // Timeline the stages of the command are recorded in, may be null
+    private VoiceTrace trace;
 
-    public VoiceCommandExecutor(HomeyAPI api) {
+    /**
+     * VoiceCommandExecutor constructor
+     * @param api HomeyAPI to execute commands with
+     * @param context loaded devices, zones and flows
+     */
+    public VoiceCommandExecutor(HomeyAPI api, VoiceContext context) {
         this.api = api;
-        // Wait for HomeyAPI to be authenticated
-        api.waitForHomeyAPI();
-        loadData();
+        this.context = context;
+        this.allDevices = context.getDevices();
+        this.allFlows = context.getFlows();
     }
 
     /**
-     * Load devices, zones, and flows from API
+     * Set listener notified while a command is executed on multiple devices
+     * @param listener listener called from a worker thread, or null
      */
-    private void loadData() {
-        try {
-            allDevices = api.getAllDevices();
-            allZones = api.getZones();
-            allFlows = api.getFlows();
-            
-            // Map zone names to devices
-            if (allZones != null) {
-                for (Device device : allDevices.values()) {
-                    if (device.getZoneId() != null) {
-                        Zone zone = allZones.get(device.getZoneId());
-                        if (zone != null) {
-                            device.setZoneName(zone.getName());
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
-            Timber.e(e, "Failed to load data for voice commands");
-        }
+    public void setProgressListener(BatchCommandDispatcher.ProgressListener listener) {
+        dispatcher.setProgressListener(listener);
+    }
+
+    /**
+     * Set timeline resolving targets and writes are recorded in
+     * @param trace timeline of the command, or null
+     */
+    public void setTrace(VoiceTrace trace) {
+        this.trace = trace;
     }
 
     /**
@@ -85,6 +101,8 @@ public class VoiceCommandExecutor {
             return new Result(false, "Kein Befehl erkannt", 0);
         }
 
+        queued.set(0);
+
         try {
             switch (intent.getType()) {
                 case "LIGHT_ON":
@@ -118,25 +136,16 @@ public class VoiceCommandExecutor {
             return new Result(false, "Keine Geräte gefunden", 0);
         }
 
-        int successCount = 0;
-        for (Device device : targetDevices) {
-            try {
-                if (!device.isOn()) {
-                    api.setCapabilityValue(device.getId(), "onoff", true).execute();
-                    successCount++;
-                }
-            } catch (Exception e) {
-                Timber.e(e, "Failed to turn on device: " + device.getName());
-            }
-        }
+        BatchCommandDispatcher.Outcome outcome = dispatcher.dispatch(targetDevices, device -> setOnOff(device, true));
+        int successCount = outcome.getSucceeded().size();
 
         if (successCount > 0) {
             String message = successCount == 1 ? 
                 "Licht eingeschaltet" : 
                 successCount + " Lichter eingeschaltet";
-            return new Result(true, message, successCount);
+            return result(message, outcome);
         } else {
-            return new Result(false, "Fehler beim Einschalten", 0);
+            return new Result(false, "Fehler beim Einschalten", 0, outcome.getFailed().size());
         }
     }
 
@@ -150,25 +159,16 @@ public class VoiceCommandExecutor {
             return new Result(false, "Keine Geräte gefunden", 0);
         }
 
-        int successCount = 0;
-        for (Device device : targetDevices) {
-            try {
-                if (device.isOn()) {
-                    api.setCapabilityValue(device.getId(), "onoff", false).execute();
-                    successCount++;
-                }
-            } catch (Exception e) {
-                Timber.e(e, "Failed to turn off device: " + device.getName());
-            }
-        }
+        BatchCommandDispatcher.Outcome outcome = dispatcher.dispatch(targetDevices, device -> setOnOff(device, false));
+        int successCount = outcome.getSucceeded().size();
 
         if (successCount > 0) {
             String message = successCount == 1 ? 
                 "Licht ausgeschaltet" : 
                 successCount + " Lichter ausgeschaltet";
-            return new Result(true, message, successCount);
+            return result(message, outcome);
         } else {
-            return new Result(false, "Fehler beim Ausschalten", 0);
+            return new Result(false, "Fehler beim Ausschalten", 0, outcome.getFailed().size());
         }
     }
 
@@ -182,23 +182,19 @@ public class VoiceCommandExecutor {
             return new Result(false, "Keine dimmbaren Geräte gefunden", 0);
         }
 
-        int successCount = 0;
         double dimValue = intent.getLevel() / 100.0; // Convert percentage to 0-1 range
-        
-        for (Device device : targetDevices) {
-            try {
-                api.setCapabilityValue(device.getId(), "dim", dimValue).execute();
-                successCount++;
-            } catch (Exception e) {
-                Timber.e(e, "Failed to dim device: " + device.getName());
-            }
-        }
 
-        if (successCount > 0) {
+        BatchCommandDispatcher.Outcome outcome = dispatcher.dispatch(targetDevices, device -> {
+            write(device.getId(), "dim", dimValue);
+            HomeStateStore.getInstance().updateCapability(device.getId(), "dim", dimValue);
+            return true;
+        });
+
+        if (!outcome.getSucceeded().isEmpty()) {
             String message = "Helligkeit auf " + intent.getLevel() + "% gesetzt";
-            return new Result(true, message, successCount);
+            return result(message, outcome);
         } else {
-            return new Result(false, "Fehler beim Dimmen", 0);
+            return new Result(false, "Fehler beim Dimmen", 0, outcome.getFailed().size());
         }
     }
 
@@ -212,23 +208,14 @@ public class VoiceCommandExecutor {
             return new Result(false, "Keine Geräte gefunden", 0);
         }
 
-        int successCount = 0;
-        for (Device device : targetDevices) {
-            try {
-                if (device.isOn()) {
-                    api.setCapabilityValue(device.getId(), "onoff", false).execute();
-                    successCount++;
-                }
-            } catch (Exception e) {
-                Timber.e(e, "Failed to turn off device: " + device.getName());
-            }
-        }
+        BatchCommandDispatcher.Outcome outcome = dispatcher.dispatch(targetDevices, device -> setOnOff(device, false));
+        int successCount = outcome.getSucceeded().size();
 
         if (successCount > 0) {
             String message = "Alles ausgeschaltet (" + successCount + " Geräte)";
-            return new Result(true, message, successCount);
+            return result(message, outcome);
         } else {
-            return new Result(false, "Fehler beim Ausschalten", 0);
+            return new Result(false, "Fehler beim Ausschalten", 0, outcome.getFailed().size());
         }
     }
 
@@ -241,26 +228,16 @@ public class VoiceCommandExecutor {
         }
 
         // Find matching flow using fuzzy matching
-        List<String> flowNames = new ArrayList<>();
-        List<String> flowIds = new ArrayList<>();
-        
-        for (Map.Entry<String, Flow> entry : allFlows.entrySet()) {
-            Flow flow = entry.getValue();
-            if (flow.isEnabled() && flow.isTriggerable()) {
-                flowNames.add(flow.getName());
-                flowIds.add(flow.getId());
-            }
+        FuzzyMatcher.MatchResult match;
+        try (VoiceTrace.Span span = span("resolve")) {
+            match = context.getFlowCatalog().findBestMatch(intent.getSceneName());
         }
 
-        FuzzyMatcher.MatchResult match = FuzzyMatcher.findBestMatch(
-            intent.getSceneName(), flowNames, flowIds
-        );
-
         if (match == null) {
             return new Result(false, "Szene nicht gefunden", 0);
         }
 
-        try {
+        try (VoiceTrace.Span span = span("write flow")) {
             api.triggerFlow(match.getMatchedId()).execute();
             Flow matchedFlow = allFlows.get(match.getMatchedId());
             return new Result(true, "Szene aktiviert: " + matchedFlow.getName(), 1);
@@ -280,55 +257,141 @@ public class VoiceCommandExecutor {
             return new Result(false, "Keine Heizgeräte gefunden", 0);
         }
 
-        int successCount = 0;
-        for (Device device : targetDevices) {
-            try {
-                double targetTemp;
-                
-                if (intent.isRelative()) {
-                    // Relative temperature change
-                    Double currentTemp = device.getCachedTargetTemperature();
+        BatchCommandDispatcher.Outcome outcome = dispatcher.dispatch(targetDevices, device -> {
+            double targetTemp;
+
+            if (intent.isRelative()) {
+                // Relative temperature change
+                Double currentTemp = device.getCachedTargetTemperature();
+                if (currentTemp == null) {
+                    // Fetch current temperature
+                    Device updatedDevice = api.getDevice(device.getId());
+                    if (updatedDevice != null) {
+                        currentTemp = updatedDevice.getCachedTargetTemperature();
+                    }
                     if (currentTemp == null) {
-                        // Fetch current temperature
-                        Device updatedDevice = api.getDevice(device.getId());
-                        if (updatedDevice != null) {
-                            currentTemp = updatedDevice.getCachedTargetTemperature();
-                        }
-                        if (currentTemp == null) {
-                            currentTemp = DEFAULT_TEMPERATURE;
-                        }
+                        currentTemp = DEFAULT_TEMPERATURE;
                     }
-                    targetTemp = currentTemp + intent.getDegrees();
-                } else {
-                    // Absolute temperature
-                    targetTemp = intent.getDegrees();
                 }
-
-                // Clamp temperature to reasonable range
-                targetTemp = Math.max(MIN_TEMPERATURE, Math.min(MAX_TEMPERATURE, targetTemp));
-                
-                api.setCapabilityValue(device.getId(), "target_temperature", targetTemp).execute();
-                device.setCachedTargetTemperature(targetTemp);
-                successCount++;
-            } catch (Exception e) {
-                Timber.e(e, "Failed to set temperature: " + device.getName());
+                targetTemp = currentTemp + intent.getDegrees();
+            } else {
+                // Absolute temperature
+                targetTemp = intent.getDegrees();
             }
-        }
 
-        if (successCount > 0) {
+            // Clamp temperature to reasonable range
+            targetTemp = Math.max(MIN_TEMPERATURE, Math.min(MAX_TEMPERATURE, targetTemp));
+
+            write(device.getId(), "target_temperature", targetTemp);
+            HomeStateStore.getInstance().updateCapability(device.getId(), "target_temperature", targetTemp);
+            return true;
+        });
+
+        if (!outcome.getSucceeded().isEmpty()) {
             String message = intent.isRelative() ? 
                 "Temperatur angepasst" : 
                 "Temperatur auf " + String.format("%.1f", intent.getDegrees()) + "°C gesetzt";
-            return new Result(true, message, successCount);
+            return result(message, outcome);
         } else {
-            return new Result(false, "Fehler beim Einstellen", 0);
+            return new Result(false, "Fehler beim Einstellen", 0, outcome.getFailed().size());
         }
     }
 
+    /**
+     * Turn device on or off, unless it already is
+     * @param device device to turn on or off
+     * @param on value to set
+     * @return whether a request is sent
+     */
+    private boolean setOnOff(Device device, boolean on) throws IOException {
+        if (device.isOn() == on)
+            return false;
+
+        write(device.getId(), "onoff", on);
+        HomeStateStore.getInstance().updateCapability(device.getId(), "onoff", on);
+        return true;
+    }
+
+    /**
+     * Set value of a capability. If the Homey is unreachable the value is recorded and sent once
+     * it is reachable
+     * @param deviceId device ID
+     * @param capabilityId capability ID
+     * @param value value to set
+     */
+    private void write(String deviceId, String capabilityId, Object value) throws IOException {
+        CommandJournal journal = CommandJournal.getInstance();
+        long writtenAt = System.currentTimeMillis();
+
+        try (VoiceTrace.Span span = span("write " + capabilityId)) {
+            send(api.setCapabilityValue(deviceId, capabilityId, value));
+        } catch (IOException e) {
+            if (journal == null)
+                throw e;
+
+            journal.record(deviceId, capabilityId, value);
+            queued.incrementAndGet();
+            return;
+        }
+
+        // Keep the fetched device list in line with the Homey
+        api.patchDevice(deviceId, capabilityId, value);
+
+        // Older recorded values of this capability are superseded
+        if (journal != null)
+            journal.discard(deviceId, capabilityId, writtenAt);
+    }
+
+    /**
+     * Execute call, failing if the Homey rejects it
+     * @param call call to execute
+     */
+    private static void send(Call<?> call) throws IOException {
+        Response<?> response = call.execute();
+        if (!response.isSuccessful())
+            throw new HttpException(response);
+    }
+
+    /**
+     * Create successful result, mentioning devices which failed
+     * @param message message for succeeded devices
+     * @param outcome outcome of batch command
+     * @return result of command
+     */
+    private Result result(String message, BatchCommandDispatcher.Outcome outcome) {
+        int failed = outcome.getFailed().size();
+        if (failed > 0)
+            message += " (" + failed + " fehlgeschlagen)";
+
+        int offline = queued.get();
+        if (offline > 0)
+            message += " (" + offline + " offline, wird nachgeholt)";
+
+        return new Result(true, message, outcome.getSucceeded().size(), failed);
+    }
+
+    /**
+     * Start a stage in the timeline, if set
+     * @param name name of the stage
+     * @return span to close when done, null if no timeline is set
+     */
+    private VoiceTrace.Span span(String name) {
+        return trace == null ? null : trace.begin(name);
+    }
+
     /**
      * Find target devices based on room and device name with fuzzy matching
      */
     private List<Device> findTargetDevices(String room, String deviceName, String capability) {
+        try (VoiceTrace.Span span = span("resolve")) {
+            return matchTargetDevices(room, deviceName, capability);
+        }
+    }
+
+    /**
+     * Match target devices by device name, or by room
+     */
+    private List<Device> matchTargetDevices(String room, String deviceName, String capability) {
         List<Device> targets = new ArrayList<>();
 
         if (allDevices == null || allDevices.isEmpty()) {
@@ -337,17 +400,7 @@ public class VoiceCommandExecutor {
 
         // If explicit device name is provided, match by name
         if (deviceName != null && !deviceName.isEmpty()) {
-            List<String> deviceNames = new ArrayList<>();
-            List<String> deviceIds = new ArrayList<>();
-            
-            for (Device device : allDevices.values()) {
-                if (hasCapability(device, capability)) {
-                    deviceNames.add(device.getName());
-                    deviceIds.add(device.getId());
-                }
-            }
-
-            FuzzyMatcher.MatchResult match = FuzzyMatcher.findBestMatch(deviceName, deviceNames, deviceIds);
+            FuzzyMatcher.MatchResult match = context.getDeviceCatalog(capability).findBestMatch(deviceName);
             
             if (match != null) {
                 Device matchedDevice = allDevices.get(match.getMatchedId());
@@ -359,59 +412,23 @@ public class VoiceCommandExecutor {
             return targets;
         }
 
-        // If room is specified, find all matching zones (fuzzy match)
-        List<String> targetZoneIds = new ArrayList<>();
-        
-        if (room != null && !room.isEmpty() && allZones != null) {
-            List<String> zoneNames = new ArrayList<>();
-            List<String> zoneIds = new ArrayList<>();
-            
-            for (Zone zone : allZones.values()) {
-                zoneNames.add(zone.getName());
-                zoneIds.add(zone.getId());
-            }
-
-            // Fuzzy match to find all zones that match the room name
-            for (int i = 0; i < zoneNames.size(); i++) {
-                if (FuzzyMatcher.matches(room, zoneNames.get(i))) {
-                    targetZoneIds.add(zoneIds.get(i));
-                }
-            }
-        }
-
-        // Collect all devices in target zones with the required capability
-        for (Device device : allDevices.values()) {
-            if (hasCapability(device, capability)) {
-                if (room == null || room.isEmpty()) {
-                    // No room specified, add all devices with capability
-                    targets.add(device);
-                } else if (device.getZoneId() != null && targetZoneIds.contains(device.getZoneId())) {
-                    // Device is in one of the matching zones
+        // No room specified, add all devices with capability
+        if (room == null || room.isEmpty()) {
+            for (Device device : allDevices.values()) {
+                if (VoiceContext.hasCapability(device, capability))
                     targets.add(device);
-                }
             }
+            return targets;
         }
 
-        return targets;
-    }
+        // Fuzzy match to find all zones that match the room name, a floor includes its rooms
+        List<String> targetZoneIds = context.getZoneCatalog().findMatches(room);
 
-    /**
-     * Check if device has capability
-     */
-    private boolean hasCapability(Device device, String capability) {
-        if (device == null || capability == null) return false;
-        
-        // Check if device capability matches or contains the required capability
-        String deviceCap = device.getCapability();
-        if (deviceCap == null) return false;
-        
-        if (deviceCap.equals(capability)) return true;
-        
-        // For onoff, also check if device has button or speaker_playing
-        if (capability.equals("onoff") && (deviceCap.equals("button") || deviceCap.equals("speaker_playing"))) {
-            return true;
+        for (Device device : context.getDevicesInside(targetZoneIds)) {
+            if (VoiceContext.hasCapability(device, capability))
+                targets.add(device);
         }
-        
-        return false;
+
+        return targets;
     }
 }
@@ -0,0 +1,184 @@
+package com.xseth.homey.voice;
+
+import android.os.Trace;
+
+import com.xseth.homey.homey.HomeStateStore;
+import com.xseth.homey.homey.HomeyAPI;
+import com.xseth.homey.homey.models.Device;
+import com.xseth.homey.homey.models.Flow;
+import com.xseth.homey.homey.models.Zone;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Devices, zones and flows used to execute voice commands, with their names indexed.
+ *
+ * Read from the HomeStateStore, which is refreshed if older than the freshness window, so it can
+ * be loaded while the user is still speaking. Name indices are reused as long as the names in the
+ * store do not change.
+ */
+public class VoiceContext {
+
+    // Time in milliseconds loaded state is reused
+    private static final long FRESHNESS_MS = 30_000;
+
+    // Latest context, reused while its snapshot is current
+    private static VoiceContext latest;
+
+    private final HomeStateStore.Snapshot snapshot;
+
+    // Indexed names of zones and triggerable flows
+    private final VoiceCatalog zoneCatalog;
+    private final VoiceCatalog flowCatalog;
+    // Indexed names of devices per capability, built when first needed
+    private final Map<String, VoiceCatalog> deviceCatalogs;
+
+    /**
+     * Get a context of the home, refreshing devices, zones and flows in parallel if they are no
+     * longer fresh. Fails if the HomeyAPI does not become ready
+     * @param api HomeyAPI to load from
+     * @return future completing with the context
+     */
+    public static CompletableFuture<VoiceContext> get(HomeyAPI api) {
+        HomeStateStore store = HomeStateStore.getInstance();
+
+        CompletableFuture<HomeStateStore.Snapshot> devices = store.ensureDevices(FRESHNESS_MS);
+        CompletableFuture<HomeStateStore.Snapshot> zones = store.ensureZones(FRESHNESS_MS);
+        CompletableFuture<HomeStateStore.Snapshot> flows = store.ensureFlows(FRESHNESS_MS);
+
+        return CompletableFuture.allOf(devices, zones, flows)
+                .thenApply(done -> forSnapshot(store.getSnapshot()));
+    }
+
+    /**
+     * Get context for a snapshot, reusing indices of the previous context where possible
+     * @param snapshot snapshot of the home
+     * @return context for snapshot
+     */
+    private static synchronized VoiceContext forSnapshot(HomeStateStore.Snapshot snapshot) {
+        VoiceContext previous = latest;
+
+        if (previous == null || previous.snapshot.getVersion() != snapshot.getVersion()) {
+            Trace.beginSection("voice:index");
+            try {
+                latest = new VoiceContext(snapshot, previous);
+            } finally {
+                Trace.endSection();
+            }
+        }
+
+        return latest;
+    }
+
+    /**
+     * VoiceContext constructor, indexes names
+     * @param snapshot snapshot of the home
+     * @param previous previous context whose indices are reused if unchanged, or null
+     */
+    private VoiceContext(HomeStateStore.Snapshot snapshot, VoiceContext previous) {
+        this.snapshot = snapshot;
+
+        // Store keeps map instances of unchanged zones and flows
+        if (previous != null && previous.snapshot.getZones() == snapshot.getZones()) {
+            this.zoneCatalog = previous.zoneCatalog;
+        } else {
+            VoiceCatalog.Builder zoneNames = new VoiceCatalog.Builder();
+            for (Zone zone : snapshot.getZones().values())
+                zoneNames.add(zone.getId(), zone.getName());
+            this.zoneCatalog = zoneNames.build();
+        }
+
+        if (previous != null && previous.snapshot.getFlows() == snapshot.getFlows()) {
+            this.flowCatalog = previous.flowCatalog;
+        } else {
+            VoiceCatalog.Builder flowNames = new VoiceCatalog.Builder();
+            for (Flow flow : snapshot.getFlows().values()) {
+                if (flow.isEnabled() && flow.isTriggerable())
+                    flowNames.add(flow.getId(), flow.getName());
+            }
+            this.flowCatalog = flowNames.build();
+        }
+
+        // Device values changed but names did not, indices are still valid
+        if (previous != null &&
+                previous.snapshot.getStructureVersion() == snapshot.getStructureVersion())
+            this.deviceCatalogs = previous.deviceCatalogs;
+        else
+            this.deviceCatalogs = new ConcurrentHashMap<>();
+
+        Timber.d("Voice context version %d: %d devices, %d zones, %d flows",
+                snapshot.getVersion(), snapshot.getDevices().size(),
+                snapshot.getZones().size(), snapshot.getFlows().size());
+    }
+
+    public Map<String, Device> getDevices() {
+        return snapshot.getDevices();
+    }
+
+    public Map<String, Zone> getZones() {
+        return snapshot.getZones();
+    }
+
+    public Map<String, Flow> getFlows() {
+        return snapshot.getFlows();
+    }
+
+    /**
+     * Get devices in zones and all zones inside them, e.g. a floor and its rooms
+     * @param zoneIds zone IDs
+     * @return devices in zones, each device once
+     */
+    public List<Device> getDevicesInside(Collection<String> zoneIds) {
+        return snapshot.getDevicesInside(zoneIds);
+    }
+
+    public VoiceCatalog getZoneCatalog() {
+        return zoneCatalog;
+    }
+
+    public VoiceCatalog getFlowCatalog() {
+        return flowCatalog;
+    }
+
+    /**
+     * Get name index of devices with capability
+     * @param capability required capability
+     * @return catalog of matching devices
+     */
+    public VoiceCatalog getDeviceCatalog(String capability) {
+        return deviceCatalogs.computeIfAbsent(capability, cap -> {
+            VoiceCatalog.Builder builder = new VoiceCatalog.Builder();
+            for (Device device : snapshot.getDevices().values()) {
+                if (hasCapability(device, cap))
+                    builder.add(device.getId(), device.getName());
+            }
+            return builder.build();
+        });
+    }
+
+    /**
+     * Check if device has capability
+     */
+    static boolean hasCapability(Device device, String capability) {
+        if (device == null || capability == null) return false;
+
+        // Check if device capability matches or contains the required capability
+        String deviceCap = device.getCapability();
+        if (deviceCap == null) return false;
+
+        if (deviceCap.equals(capability)) return true;
+
+        // For onoff, also check if device has button or speaker_playing
+        if (capability.equals("onoff") && (deviceCap.equals("button") || deviceCap.equals("speaker_playing"))) {
+            return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,262 @@
+package com.xseth.homey.voice;
+
+import android.os.Trace;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Timeline of a voice command, from the end of speech until the Homey acknowledged every write.
+ *
+ * Stages of the command, e.g. recognizing, parsing, loading the context, resolving the targets
+ * and each write, are recorded as spans relative to the end of speech. Spans may start and end
+ * on any thread and are also emitted as async trace sections, so they show up in Perfetto next
+ * to the system's view of the same command. The most recent finished timelines are kept in
+ * memory.
+ */
+public class VoiceTrace {
+
+    // Number of finished timelines kept
+    private static final int CAPACITY = 10;
+    // Prefix of trace section names
+    private static final String SECTION_PREFIX = "voice:";
+
+    // Recently finished timelines, oldest is overwritten first
+    private static final VoiceTrace[] recent = new VoiceTrace[CAPACITY];
+    // Index in recent the next finished timeline is stored at
+    private static int next = 0;
+
+    // Cookies distinguishing async trace sections with the same name
+    private static final AtomicInteger cookies = new AtomicInteger();
+
+    /**
+     * Stage of a command, closed when the stage is done
+     */
+    public class Span implements AutoCloseable {
+        private final String name;
+        private final int cookie;
+        // Start and end times in nanoseconds, end is 0 while running
+        private final long start;
+        private long end = 0;
+
+        private Span(String name) {
+            this.name = name;
+            this.cookie = cookies.incrementAndGet();
+            this.start = System.nanoTime();
+            Trace.beginAsyncSection(SECTION_PREFIX + name, cookie);
+        }
+
+        /**
+         * End span, subsequent calls are ignored
+         */
+        @Override
+        public void close() {
+            synchronized (VoiceTrace.this) {
+                if (end != 0)
+                    return;
+                end = System.nanoTime();
+            }
+            Trace.endAsyncSection(SECTION_PREFIX + name, cookie);
+        }
+
+        public String getName() { return name; }
+    }
+
+    // Time in nanoseconds speech ended, all spans are relative to it
+    private final long origin;
+    // Recorded spans, in order of starting
+    private final List<Span> spans = new ArrayList<>();
+    // Recognized command, null until known
+    private String command;
+    // Whether the command succeeded, and time in nanoseconds it finished, 0 while running
+    private boolean success;
+    private long finish = 0;
+
+    /**
+     * Start timeline of a command now, at the end of speech
+     */
+    public VoiceTrace() {
+        this.origin = System.nanoTime();
+    }
+
+    /**
+     * Get recently finished timelines
+     * @return timelines, newest first
+     */
+    public static synchronized List<VoiceTrace> getRecent() {
+        List<VoiceTrace> traces = new ArrayList<>(CAPACITY);
+        for (int i = 1; i <= CAPACITY; i++) {
+            VoiceTrace trace = recent[(next - i + CAPACITY) % CAPACITY];
+            if (trace != null)
+                traces.add(trace);
+        }
+
+        return traces;
+    }
+
+    /**
+     * Get recently finished timelines as JSON
+     * @return timelines, newest first
+     */
+    public static JSONArray toJsonAll() throws JSONException {
+        JSONArray json = new JSONArray();
+        for (VoiceTrace trace : getRecent())
+            json.put(trace.toJson());
+
+        return json;
+    }
+
+    /**
+     * Store a finished timeline
+     */
+    private static synchronized void store(VoiceTrace trace) {
+        recent[next] = trace;
+        next = (next + 1) % CAPACITY;
+    }
+
+    /**
+     * Start a stage of the command
+     * @param name name of the stage, the same name may be used for concurrent stages
+     * @return span to close when the stage is done
+     */
+    public Span begin(String name) {
+        Span span = new Span(name);
+        synchronized (this) {
+            spans.add(span);
+        }
+        return span;
+    }
+
+    /**
+     * Set recognized command
+     * @param command recognized text
+     */
+    public synchronized void setCommand(String command) {
+        this.command = command;
+    }
+
+    public synchronized String getCommand() {
+        return command;
+    }
+
+    /**
+     * Finish timeline and keep it with the recent timelines. Spans still running are ended
+     * @param success whether the command succeeded
+     */
+    public void finish(boolean success) {
+        List<Span> running = new ArrayList<>();
+
+        synchronized (this) {
+            if (finish != 0)
+                return;
+
+            this.success = success;
+            this.finish = System.nanoTime();
+            for (Span span : spans) {
+                if (span.end == 0)
+                    running.add(span);
+            }
+        }
+
+        for (Span span : running)
+            span.close();
+
+        store(this);
+        Timber.d("Voice command \"%s\" took %d ms", command, getTotalMillis());
+    }
+
+    /**
+     * Get time from the end of speech until the command finished
+     * @return time in milliseconds, or until now if still running
+     */
+    public synchronized long getTotalMillis() {
+        return millis((finish != 0 ? finish : System.nanoTime()) - origin);
+    }
+
+    /**
+     * Get breakdown of the timeline, spans with the same name are combined
+     * @return one line per stage with its start and end relative to the end of speech, e.g. for
+     * showing on the watch
+     */
+    public synchronized String summarize() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, long[]> entry : combine().entrySet()) {
+            long[] stage = entry.getValue();
+            builder.append(entry.getKey());
+            if (stage[0] > 1)
+                builder.append(" x").append(stage[0]);
+            builder.append(String.format(" +%d..%d ms\n", millis(stage[1]), millis(stage[2])));
+        }
+
+        builder.append(String.format("total %d ms%s", getTotalMillis(), success ? "" : " (failed)"));
+        return builder.toString();
+    }
+
+    /**
+     * Get timeline as JSON
+     * @return command, outcome and spans with start and end in milliseconds since end of speech
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("command", command);
+        json.put("success", success);
+        json.put("total_ms", getTotalMillis());
+
+        JSONArray array = new JSONArray();
+        for (Span span : spans) {
+            JSONObject item = new JSONObject();
+            item.put("name", span.name);
+            item.put("start_ms", millis(span.start - origin));
+            item.put("end_ms", millis(end(span) - origin));
+            array.put(item);
+        }
+        json.put("spans", array);
+
+        return json;
+    }
+
+    /**
+     * Combine spans by name into number, earliest start and latest end relative to the origin
+     */
+    private Map<String, long[]> combine() {
+        Map<String, long[]> stages = new LinkedHashMap<>();
+
+        for (Span span : spans) {
+            long start = span.start - origin;
+            long end = end(span) - origin;
+            long[] stage = stages.get(span.name);
+
+            if (stage == null) {
+                stages.put(span.name, new long[]{1, start, end});
+            } else {
+                stage[0]++;
+                stage[1] = Math.min(stage[1], start);
+                stage[2] = Math.max(stage[2], end);
+            }
+        }
+
+        return stages;
+    }
+
+    /**
+     * Get end of span, now if still running
+     */
+    private static long end(Span span) {
+        return span.end != 0 ? span.end : System.nanoTime();
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
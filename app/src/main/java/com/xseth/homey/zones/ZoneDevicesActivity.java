@@ -11,12 +11,10 @@ import androidx.wear.widget.WearableRecyclerView;
 
 import com.xseth.homey.R;
 import com.xseth.homey.adapters.ZoneDeviceAdapter;
-import com.xseth.homey.homey.HomeyAPI;
+import com.xseth.homey.homey.ZoneRepository;
 import com.xseth.homey.homey.models.Device;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import timber.log.Timber;
 
@@ -31,6 +29,10 @@ public class ZoneDevicesActivity extends FragmentActivity {
     private TextView emptyView;
     private String zoneId;
     private String zoneName;
+    // Repository holding stored devices of zones
+    private ZoneRepository zoneRepository;
+    // Whether stored devices are revalidated, before that no stored devices does not mean empty
+    private boolean revalidated;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -54,85 +56,73 @@ public class ZoneDevicesActivity extends FragmentActivity {
         deviceAdapter = new ZoneDeviceAdapter();
         deviceList.setAdapter(deviceAdapter);
 
+        // Show stored devices right away, changes made anywhere in the app are stored as well
+        zoneRepository = ZoneRepository.getInstance(getApplication());
+        zoneRepository.getZoneDevices(zoneId).observe(this, this::showDevices);
+
         loadDevices();
     }
 
     /**
-     * Load devices for the selected zone
+     * Refresh values of the devices in this zone, other devices are not fetched
      */
     private void loadDevices() {
-        progressBar.setVisibility(View.VISIBLE);
-        
-        new Thread(() -> {
-            try {
-                Timber.d("loadDevices: Starting for zone %s (%s)", zoneName, zoneId);
-                HomeyAPI api = HomeyAPI.getAPI();
-                
-                // Wait for API to be fully authenticated
-                Timber.d("loadDevices: Waiting for HomeyAPI authentication...");
-                api.waitForHomeyAPI();
-                Timber.d("loadDevices: HomeyAPI authenticated, fetching all devices...");
-                
-                Map<String, Device> allDevices = api.getAllDevices();
-                Timber.d("loadDevices: Received %d total devices", allDevices != null ? allDevices.size() : 0);
-                
-                if (allDevices == null || allDevices.isEmpty()) {
-                    Timber.w("loadDevices: No devices returned from API");
-                    runOnUiThread(() -> {
-                        progressBar.setVisibility(View.GONE);
-                        emptyView.setText("Keine Geräte verfügbar");
-                        emptyView.setVisibility(View.VISIBLE);
-                    });
-                    return;
-                }
-                
-                List<Device> zoneDevices = new ArrayList<>();
-                int matchCount = 0;
-                for (Device device : allDevices.values()) {
-                    if (zoneId.equals(device.getZoneId())) {
-                        matchCount++;
-                        Timber.d("loadDevices: Found device %s in zone %s", device.getName(), zoneName);
-                        device.fetchIconImage();
-                        zoneDevices.add(device);
-                    }
-                }
-                
-                Timber.d("loadDevices: Found %d devices matching zone %s", matchCount, zoneName);
-
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    
-                    if (zoneDevices.isEmpty()) {
-                        Timber.d("loadDevices: No devices in this zone, showing empty view");
-                        emptyView.setVisibility(View.VISIBLE);
-                        deviceList.setVisibility(View.GONE);
-                    } else {
-                        Timber.d("loadDevices: Setting %d devices to adapter", zoneDevices.size());
-                        deviceAdapter.setDevices(zoneDevices);
-                        emptyView.setVisibility(View.GONE);
-                        deviceList.setVisibility(View.VISIBLE);
-                    }
-                });
-            } catch (Exception e) {
-                Timber.e(e, "loadDevices: Failed to load devices - %s", e.getMessage());
-                runOnUiThread(() -> {
-                    progressBar.setVisibility(View.GONE);
-                    emptyView.setText(R.string.error);
-                    emptyView.setVisibility(View.VISIBLE);
-                    android.widget.Toast.makeText(this, 
-                        "Fehler beim Laden der Geräte: " + e.getMessage(), 
-                        android.widget.Toast.LENGTH_LONG).show();
-                });
+        Timber.d("loadDevices: Starting for zone %s (%s)", zoneName, zoneId);
+
+        // Fetch once API is fully authenticated, stored devices are updated via LiveData
+        zoneRepository.refreshZone(zoneId).whenComplete((count, e) -> {
+            if (e != null) {
+                Timber.e(e, "loadDevices: Failed to load devices");
+                showLoadError(e.getCause() != null ? e.getCause() : e);
+                return;
             }
-        }).start();
+
+            runOnUiThread(() -> {
+                revalidated = true;
+                progressBar.setVisibility(View.GONE);
+
+                if (deviceAdapter.getItemCount() == 0) {
+                    Timber.d("loadDevices: No devices in this zone, showing empty view");
+                    emptyView.setVisibility(View.VISIBLE);
+                    deviceList.setVisibility(View.GONE);
+                }
+            });
+        });
     }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // Refresh device states when returning to this activity
-        if (deviceAdapter.getItemCount() > 0) {
-            deviceAdapter.refreshDeviceStates();
+    /**
+     * Show devices, or the empty view if there are none once revalidated
+     * @param zoneDevices devices in zone
+     */
+    private void showDevices(List<Device> zoneDevices) {
+        Timber.d("showDevices: %d devices in zone %s", zoneDevices.size(), zoneName);
+        deviceAdapter.setDevices(zoneDevices);
+
+        if (!zoneDevices.isEmpty()) {
+            progressBar.setVisibility(View.GONE);
+            emptyView.setVisibility(View.GONE);
+            deviceList.setVisibility(View.VISIBLE);
+        } else if (revalidated) {
+            emptyView.setVisibility(View.VISIBLE);
+            deviceList.setVisibility(View.GONE);
         }
     }
+
+    /**
+     * Show error once devices cannot be loaded, stored devices remain shown
+     * @param e cause of the error
+     */
+    private void showLoadError(Throwable e) {
+        runOnUiThread(() -> {
+            progressBar.setVisibility(View.GONE);
+            if (deviceAdapter.getItemCount() > 0)
+                return;
+
+            emptyView.setText(R.string.error);
+            emptyView.setVisibility(View.VISIBLE);
+            android.widget.Toast.makeText(this,
+                "Fehler beim Laden der Geräte: " + e.getMessage(),
+                android.widget.Toast.LENGTH_LONG).show();
+        });
+    }
 }
@@ -2,6 +2,7 @@ package com.xseth.homey.zones;
 
 import android.content.Intent;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.FrameLayout;
@@ -10,6 +11,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.fragment.app.FragmentActivity;
+import androidx.wear.ambient.AmbientModeSupport;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.wear.widget.WearableRecyclerView;
 import androidx.wear.widget.drawer.WearableActionDrawerView;
@@ -18,7 +20,12 @@ import androidx.wear.widget.drawer.WearableDrawerLayout;
 import com.xseth.homey.BuildConfig;
 import com.xseth.homey.MainActivity;
 import com.xseth.homey.R;
+import com.xseth.homey.diagnostics.DiagnosticsActivity;
+import com.xseth.homey.homey.CommandJournal;
+import com.xseth.homey.homey.HomeStateStore;
 import com.xseth.homey.homey.HomeyAPI;
+import com.xseth.homey.homey.ZoneRepository;
+import com.xseth.homey.homey.ZoneTree;
 import com.xseth.homey.homey.models.Zone;
 import com.xseth.homey.utils.ColorRunner;
 import com.xseth.homey.utils.OAuth;
@@ -26,8 +33,8 @@ import com.xseth.homey.utils.utils;
 
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 import timber.log.Timber;
 
@@ -35,13 +42,29 @@ import timber.log.Timber;
  * Activity showing list of zones for navigation
  */
 public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMenuItemClickListener,
-        View.OnClickListener {
+        View.OnClickListener, AmbientModeSupport.AmbientCallbackProvider {
 
     private WearableRecyclerView zoneList;
     private ZoneListAdapter zoneAdapter;
     private WearableActionDrawerView drawer;
     private FrameLayout notifications;
     private ProgressBar notificationsProgress;
+    // Runner changing background color
+    private ColorRunner colorRunner;
+    // Indicator showing whether stored zones are being revalidated or outdated
+    private TextView freshness;
+    // Repository holding stored zones
+    private ZoneRepository zoneRepository;
+    // Time at which stored zones are last synced, null if never
+    private Long syncedAt;
+    // Whether stored zones are being revalidated
+    private boolean revalidating;
+    // Whether the last revalidation failed
+    private boolean revalidateFailed;
+    // Hierarchy of stored zones
+    private ZoneTree zoneTree = new ZoneTree(Collections.emptyList());
+    // Zone whose children are shown, null for top-level zones
+    private String parentId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -59,7 +82,8 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
 
         // View used for rainbow background
         WearableDrawerLayout background = findViewById(R.id.zone_back);
-        ColorRunner.startColorRunner(this, background);
+        colorRunner = ColorRunner.attach(this, background);
+        AmbientModeSupport.attach(this);
 
         // View used for notifications
         notifications = findViewById(R.id.notification);
@@ -73,12 +97,14 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
             try {
                 Timber.d("onCreate: Starting authentication check");
                 HomeyAPI api = HomeyAPI.getAPI();
+                api.warmUp();
 
-                if (api.isLoggedIn()) {
+                // A saved Homey session skips verifying the Athom session
+                if (api.isHomeyAuthenticated() || api.isLoggedIn()) {
                     Timber.d("onCreate: User is logged in, authenticating with Homey");
                     api.authenticateHomey();
                     Timber.d("onCreate: Authentication successful, loading zones");
-                    loadZones();
+                    loadZones(HomeStateStore.DEFAULT_MAX_AGE);
                 } else {
                     Timber.w("onCreate: User not logged in, showing login notification");
                     OAuth.startOAuth(this);
@@ -86,10 +112,10 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
                 }
             } catch(UnknownHostException uhe){
                 Timber.e(uhe, "onCreate: No internet connection");
-                setNotification(R.string.no_internet, R.drawable.ic_cloud_off);
+                showSyncError(R.string.no_internet, R.drawable.ic_cloud_off);
             } catch(Exception e) {
                 Timber.e(e, "onCreate: Authentication error - %s", e.getMessage());
-                setNotification(R.string.error, R.drawable.ic_error);
+                showSyncError(R.string.error, R.drawable.ic_error);
             }
         }).start();
 
@@ -99,6 +125,14 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
         zoneList.requestFocus();
 
         zoneAdapter = new ZoneListAdapter(zone -> {
+            // Zone containing other zones, e.g. a floor, shows its rooms first
+            if (zoneTree.hasChildren(zone.getId()) && !zone.getId().equals(parentId)) {
+                parentId = zone.getId();
+                showLevel();
+                zoneList.scrollToPosition(0);
+                return;
+            }
+
             // Navigate to zone devices activity
             Intent intent = new Intent(this, ZoneDevicesActivity.class);
             intent.putExtra("zoneId", zone.getId());
@@ -107,75 +141,179 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
         });
         zoneList.setAdapter(zoneAdapter);
 
+        // Show stored zones right away, they are revalidated once the Homey is reachable
+        freshness = findViewById(R.id.freshness);
+        zoneRepository = ZoneRepository.getInstance(getApplication());
+        CommandJournal.getInstance(getApplication());
+        zoneRepository.getZones().observe(this, this::showZones);
+        zoneRepository.getZonesSyncedAt().observe(this, time -> {
+            syncedAt = time;
+            updateFreshness();
+        });
+
         // Top Navigation Drawer
         drawer = findViewById(R.id.action_drawer);
         drawer.setOnMenuItemClickListener(this);
+        DiagnosticsActivity.addMenuItem(drawer.getMenu());
     }
 
     /**
-     * Load zones from HomeyAPI
+     * Revalidate stored zones against the HomeyAPI, if not loaded recently
+     * @param maxAge maximum age in milliseconds of loaded zones, 0 to always fetch
      */
-    private void loadZones() {
-        new Thread(() -> {
-            try {
-                Timber.d("Starting loadZones()");
-                HomeyAPI api = HomeyAPI.getAPI();
-                
-                // Wait for API to be fully authenticated
-                Timber.d("Waiting for HomeyAPI authentication...");
-                api.waitForHomeyAPI();
-                Timber.d("HomeyAPI authenticated, fetching zones...");
-                
-                Map<String, Zone> zonesMap = api.getZones();
-                Timber.d("Received zones map with %d zones", zonesMap != null ? zonesMap.size() : 0);
-                
-                if (zonesMap == null || zonesMap.isEmpty()) {
+    private void loadZones(long maxAge) {
+        Timber.d("Starting loadZones()");
+        runOnUiThread(() -> {
+            revalidating = true;
+            updateFreshness();
+        });
+
+        // Fetch once API is fully authenticated, stored zones are updated via LiveData
+        zoneRepository.revalidate(maxAge).whenComplete((count, e) -> {
+            if (e != null) {
+                Timber.e(e, "Failed to load zones");
+                showLoadError(e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+
+            Timber.d("Revalidated %d zones", count);
+            runOnUiThread(() -> {
+                revalidating = false;
+                revalidateFailed = false;
+                updateFreshness();
+
+                if (count == 0 && zoneTree.size() == 0) {
                     Timber.w("No zones returned from API");
-                    runOnUiThread(() -> {
-                        setNotification(R.string.error, R.drawable.ic_error);
-                        android.widget.Toast.makeText(this, "Keine Zonen gefunden", android.widget.Toast.LENGTH_LONG).show();
-                    });
-                    return;
-                }
-                
-                List<Zone> zones = new ArrayList<>(zonesMap.values());
-                Timber.d("Created zones list with %d items", zones.size());
-                
-                runOnUiThread(() -> {
-                    zoneAdapter.setZones(zones);
-                    notifications.setVisibility(View.GONE);
-                    zoneList.setVisibility(View.VISIBLE);
-                    Timber.d("UI updated with zones");
-                });
-            } catch (Exception e) {
-                Timber.e(e, "Failed to load zones - Exception: %s", e.getMessage());
-                runOnUiThread(() -> {
                     setNotification(R.string.error, R.drawable.ic_error);
-                    android.widget.Toast.makeText(this, 
-                        "Fehler beim Laden der Zonen: " + e.getMessage(), 
-                        android.widget.Toast.LENGTH_LONG).show();
-                });
-            }
-        }).start();
+                    android.widget.Toast.makeText(this, "Keine Zonen gefunden", android.widget.Toast.LENGTH_LONG).show();
+                }
+            });
+        });
+    }
+
+    /**
+     * Show zones, unless login is required
+     * @param zones zones to show
+     */
+    private void showZones(List<Zone> zones) {
+        Timber.d("Showing %d zones", zones.size());
+        zoneTree = new ZoneTree(zones);
+        showLevel();
+        updateFreshness();
+
+        if (zones.isEmpty() || isLoginShown())
+            return;
+
+        notifications.setVisibility(View.GONE);
+        zoneList.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Show zones of the current level, the parent zone itself is shown first to open its devices
+     */
+    private void showLevel() {
+        // Shown zone is removed from the Homey
+        if (parentId != null && zoneTree.getZone(parentId) == null)
+            parentId = null;
+
+        if (parentId == null) {
+            zoneAdapter.setZones(zoneTree.getRoots(), null, zoneTree);
+        } else {
+            List<Zone> level = new ArrayList<>();
+            level.add(zoneTree.getZone(parentId));
+            level.addAll(zoneTree.getChildren(parentId));
+            zoneAdapter.setZones(level, parentId, zoneTree);
+        }
     }
 
     @Override
-    protected void onStart() {
-        super.onStart();
-        ColorRunner.resumeColorRunner();
+    public void onBackPressed() {
+        // Go up one level in the hierarchy before leaving
+        if (parentId != null) {
+            parentId = zoneTree.getParentId(parentId);
+            showLevel();
+            zoneList.scrollToPosition(0);
+            return;
+        }
+
+        super.onBackPressed();
+    }
+
+    /**
+     * Show error once zones cannot be loaded
+     * @param e cause of the error
+     */
+    private void showLoadError(Throwable e) {
+        runOnUiThread(() -> {
+            revalidating = false;
+            revalidateFailed = true;
+            updateFreshness();
+
+            // Stored zones are still usable, only mark them as outdated
+            if (zoneTree.size() > 0)
+                return;
+
+            setNotification(R.string.error, R.drawable.ic_error);
+            android.widget.Toast.makeText(this, 
+                "Fehler beim Laden der Zonen: " + e.getMessage(), 
+                android.widget.Toast.LENGTH_LONG).show();
+        });
+    }
+
+    /**
+     * Show notification once the Homey cannot be reached, unless stored zones are shown
+     */
+    private void showSyncError(int message_id, int icon_id) {
+        runOnUiThread(() -> {
+            revalidating = false;
+            revalidateFailed = true;
+            updateFreshness();
+
+            if (zoneTree.size() == 0)
+                setNotification(message_id, icon_id);
+        });
+    }
+
+    /**
+     * Update the freshness indicator of shown zones
+     */
+    private void updateFreshness() {
+        if (revalidating && zoneTree.size() > 0) {
+            freshness.setText(R.string.zones_updating);
+            freshness.setVisibility(View.VISIBLE);
+        } else if (revalidateFailed && zoneTree.size() > 0) {
+            if (syncedAt == null) {
+                freshness.setText(R.string.zones_offline);
+            } else {
+                CharSequence age = DateUtils.getRelativeTimeSpanString(syncedAt,
+                        System.currentTimeMillis(), DateUtils.MINUTE_IN_MILLIS);
+                freshness.setText(getString(R.string.zones_offline_since, age));
+            }
+            freshness.setVisibility(View.VISIBLE);
+        } else {
+            freshness.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Verify whether the login notification is shown
+     * @return if login notification is shown
+     */
+    private boolean isLoginShown() {
+        TextView message = notifications.findViewById(R.id.message);
+        return notifications.getVisibility() == View.VISIBLE &&
+                message.getText().toString().equals(getResources().getString(R.string.login));
     }
 
     @Override
-    protected void onStop() {
-        super.onStop();
-        ColorRunner.pauseColorRunner();
+    public AmbientModeSupport.AmbientCallback getAmbientCallback() {
+        return colorRunner.getAmbientCallback();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         OAuth.stopOAuth();
-        ColorRunner.stopColorRunner();
     }
 
     @Override
@@ -195,7 +333,7 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
                 notificationsProgress.setVisibility(View.INVISIBLE);
                 notifications.setVisibility(View.GONE);
                 zoneList.setVisibility(View.VISIBLE);
-                loadZones();
+                loadZones(HomeStateStore.DEFAULT_MAX_AGE);
             }
 
             @Override
@@ -210,10 +348,12 @@ public class ZoneListActivity extends FragmentActivity implements MenuItem.OnMen
         final int itemId = menuItem.getItemId();
 
         if (itemId == R.id.device_refresh) {
-            loadZones();
+            loadZones(0);
         } else if (itemId == R.id.voice_control) {
             Intent intent = new Intent(this, com.xseth.homey.voice.VoiceActivity.class);
             startActivity(intent);
+        } else if (itemId == R.id.diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
         }
 
         drawer.getController().closeDrawer();
@@ -5,10 +5,14 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.xseth.homey.R;
+import com.xseth.homey.homey.ZoneTree;
 import com.xseth.homey.homey.models.Zone;
+import com.xseth.homey.utils.StableIds;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -16,17 +20,52 @@ import java.util.List;
 /**
  * Adapter for displaying zones in a grid
  */
-public class ZoneListAdapter extends RecyclerView.Adapter<ZoneListAdapter.ZoneViewHolder> {
+public class ZoneListAdapter extends ListAdapter<ZoneListAdapter.ZoneItem, ZoneListAdapter.ZoneViewHolder> {
 
-    private List<Zone> zones = new ArrayList<>();
     private OnZoneClickListener listener;
+    // Stable item IDs of zones
+    private final StableIds stableIds = new StableIds();
 
     public interface OnZoneClickListener {
         void onZoneClick(Zone zone);
     }
 
+    /**
+     * Zone as shown in the list
+     */
+    static class ZoneItem {
+        final Zone zone;
+        // Whether zone is the parent of the other shown zones, opening its devices
+        final boolean isParent;
+        // Whether zone contains other zones, opening them
+        final boolean hasChildren;
+
+        ZoneItem(Zone zone, boolean isParent, boolean hasChildren) {
+            this.zone = zone;
+            this.isParent = isParent;
+            this.hasChildren = hasChildren;
+        }
+    }
+
+    // Compares shown zones, so only changed zones are rebound
+    private static final DiffUtil.ItemCallback<ZoneItem> DIFF = new DiffUtil.ItemCallback<ZoneItem>() {
+        @Override
+        public boolean areItemsTheSame(ZoneItem oldItem, ZoneItem newItem) {
+            return oldItem.zone.getId().equals(newItem.zone.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(ZoneItem oldItem, ZoneItem newItem) {
+            return oldItem.zone.getName().equals(newItem.zone.getName()) &&
+                    oldItem.isParent == newItem.isParent &&
+                    oldItem.hasChildren == newItem.hasChildren;
+        }
+    };
+
     public ZoneListAdapter(OnZoneClickListener listener) {
+        super(DIFF);
         this.listener = listener;
+        setHasStableIds(true);
     }
 
     @Override
@@ -38,17 +77,33 @@ public class ZoneListAdapter extends RecyclerView.Adapter<ZoneListAdapter.ZoneVi
 
     @Override
     public void onBindViewHolder(ZoneViewHolder holder, int position) {
-        holder.bind(zones.get(position));
+        holder.bind(getItem(position));
     }
 
     @Override
-    public int getItemCount() {
-        return zones.size();
+    public long getItemId(int position) {
+        return stableIds.get(getItem(position).zone.getId());
     }
 
     public void setZones(List<Zone> zones) {
-        this.zones = zones;
-        notifyDataSetChanged();
+        setZones(zones, null, null);
+    }
+
+    /**
+     * Show zones of a level in the hierarchy, changes are computed in the background then only
+     * changed items are updated
+     * @param zones zones to show, starting with the parent zone itself if any
+     * @param parentId zone whose children are shown, null for top-level zones
+     * @param tree hierarchy of zones, null if flat
+     */
+    public void setZones(List<Zone> zones, String parentId, ZoneTree tree) {
+        List<ZoneItem> items = new ArrayList<>(zones.size());
+        for (Zone zone : zones) {
+            boolean isParent = zone.getId().equals(parentId);
+            items.add(new ZoneItem(zone, isParent,
+                    !isParent && tree != null && tree.hasChildren(zone.getId())));
+        }
+        submitList(items);
     }
 
     static class ZoneViewHolder extends RecyclerView.ViewHolder {
@@ -58,7 +113,7 @@ public class ZoneListAdapter extends RecyclerView.Adapter<ZoneListAdapter.ZoneVi
         public ZoneViewHolder(View itemView, OnZoneClickListener listener) {
             super(itemView);
             zoneName = itemView.findViewById(R.id.zone_name);
-            
+
             itemView.setOnClickListener(v -> {
                 if (currentZone != null && listener != null) {
                     listener.onZoneClick(currentZone);
@@ -66,9 +121,19 @@ public class ZoneListAdapter extends RecyclerView.Adapter<ZoneListAdapter.ZoneVi
             });
         }
 
-        public void bind(Zone zone) {
-            this.currentZone = zone;
-            zoneName.setText(zone.getName());
+        /**
+         * Show zone
+         * @param item zone to show
+         */
+        public void bind(ZoneItem item) {
+            this.currentZone = item.zone;
+
+            if (item.isParent)
+                zoneName.setText(itemView.getContext().getString(R.string.zone_devices_of, item.zone.getName()));
+            else if (item.hasChildren)
+                zoneName.setText(itemView.getContext().getString(R.string.zone_with_children, item.zone.getName()));
+            else
+                zoneName.setText(item.zone.getName());
         }
     }
 }
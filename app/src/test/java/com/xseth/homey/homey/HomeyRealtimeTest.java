@@ -0,0 +1,228 @@
+package com.xseth.homey.homey;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs HomeyRealtime against a stand-in Homey event server speaking socket.io over a websocket
+ */
+public class HomeyRealtimeTest {
+
+    // Namespace the stand-in Homey assigns after the handshake
+    private static final String NAMESPACE = "/homey:test:api";
+    // Time in seconds to wait for a message
+    private static final long TIMEOUT = 5;
+
+    private MockWebServer server;
+    private HomeyRealtime realtime;
+    // Capability changes received by the client, as "deviceId capabilityId value"
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    /**
+     * Stand-in Homey, recording the handshake tokens and subscriptions of the client
+     */
+    private static class FakeHomey extends WebSocketListener {
+        // socket.io event with acknowledgement ID, as sent by the client
+        private static final Pattern EVENT = Pattern.compile("^42(/[^,]*),(\\d+)(\\[.*])$");
+
+        // Tokens of received handshakes
+        final BlockingQueue<String> tokens = new LinkedBlockingQueue<>();
+        // Received subscribe and unsubscribe events, as "subscribe uri"
+        final BlockingQueue<String> subscriptions = new LinkedBlockingQueue<>();
+        // Whether handshakes are rejected
+        volatile boolean reject = false;
+        // Socket to the client, once opened
+        volatile WebSocket socket;
+
+        @Override
+        public void onOpen(WebSocket webSocket, okhttp3.Response response) {
+            socket = webSocket;
+            webSocket.send("0{\"sid\":\"test\",\"pingInterval\":25000,\"pingTimeout\":5000}");
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            if (text.equals("40/api,")) {
+                webSocket.send("40/api");
+                return;
+            }
+
+            if (text.equals("40" + NAMESPACE + ",")) {
+                webSocket.send("40" + NAMESPACE);
+                return;
+            }
+
+            Matcher matcher = EVENT.matcher(text);
+            if (!matcher.matches())
+                return;
+
+            String ack = matcher.group(2);
+            JsonArray event = JsonParser.parseString(matcher.group(3)).getAsJsonArray();
+            String name = event.get(0).getAsString();
+
+            if (name.equals("handshakeClient")) {
+                tokens.add(event.get(1).getAsJsonObject().get("token").getAsString());
+                webSocket.send("43/api," + ack + (reject ?
+                        "[\"Invalid token\"]" :
+                        "[null,{\"namespace\":\"" + NAMESPACE + "\"}]"));
+            } else {
+                subscriptions.add(name + " " + event.get(1).getAsString());
+            }
+        }
+
+        /**
+         * Push a capability value of a device to the client
+         */
+        void push(String deviceId, String capabilityId, String value) {
+            socket.send("42" + NAMESPACE + ",[\"homey:device:" + deviceId + "\",\"capability\"," +
+                    "{\"capabilityId\":\"" + capabilityId + "\",\"value\":" + value + "}]");
+        }
+    }
+
+    /**
+     * Token provider returning a fixed token, renewing to a second token
+     */
+    private static class FakeTokens implements HomeyRealtime.TokenProvider {
+        final AtomicReference<String> token = new AtomicReference<>("token-1");
+        final AtomicInteger renewals = new AtomicInteger();
+
+        @Override
+        public String getToken() {
+            return token.get();
+        }
+
+        @Override
+        public boolean renewToken() {
+            renewals.incrementAndGet();
+            token.set("token-2");
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (realtime != null)
+            realtime.close();
+        server.shutdown();
+    }
+
+    /**
+     * Open the connection to the stand-in Homey
+     */
+    private void connect(HomeyRealtime.TokenProvider tokens) {
+        realtime = new HomeyRealtime(new OkHttpClient(), server.url("/").toString(), tokens,
+                "test", (deviceId, capabilityId, value) ->
+                changes.add(deviceId + " " + capabilityId + " " + value));
+        realtime.connect();
+    }
+
+    @Test
+    public void handshakeSubscribesAndParsesCapabilityPush() throws Exception {
+        FakeHomey homey = new FakeHomey();
+        server.enqueue(new MockResponse().withWebSocketUpgrade(homey));
+
+        FakeTokens tokens = new FakeTokens();
+        connect(tokens);
+        realtime.setDevices(Collections.singletonList("lamp"));
+
+        assertEquals("token-1", homey.tokens.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("subscribe homey:device:lamp",
+                homey.subscriptions.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(realtime.isConnected());
+
+        homey.push("lamp", "onoff", "true");
+        homey.push("lamp", "dim", "0.5");
+
+        assertEquals("lamp onoff true", changes.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("lamp dim 0.5", changes.poll(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void removedDevicesAreUnsubscribed() throws Exception {
+        FakeHomey homey = new FakeHomey();
+        server.enqueue(new MockResponse().withWebSocketUpgrade(homey));
+
+        connect(new FakeTokens());
+        realtime.setDevices(Arrays.asList("lamp", "plug"));
+
+        homey.subscriptions.poll(TIMEOUT, TimeUnit.SECONDS);
+        homey.subscriptions.poll(TIMEOUT, TimeUnit.SECONDS);
+
+        realtime.setDevices(Collections.singletonList("plug"));
+        assertEquals("unsubscribe homey:device:lamp",
+                homey.subscriptions.poll(TIMEOUT, TimeUnit.SECONDS));
+
+        // Pushes of removed devices still in flight are ignored
+        homey.push("lamp", "onoff", "true");
+        homey.push("plug", "onoff", "false");
+        assertEquals("plug onoff false", changes.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertNull(changes.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectedHandshakeRenewsToken() throws Exception {
+        FakeHomey rejecting = new FakeHomey();
+        rejecting.reject = true;
+        FakeHomey homey = new FakeHomey();
+        server.enqueue(new MockResponse().withWebSocketUpgrade(rejecting));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(homey));
+
+        FakeTokens tokens = new FakeTokens();
+        connect(tokens);
+
+        assertEquals("token-1", rejecting.tokens.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("token-2", homey.tokens.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(1, tokens.renewals.get());
+    }
+
+    @Test
+    public void rejectedRenewedTokenStopsReconnecting() throws Exception {
+        FakeHomey first = new FakeHomey();
+        first.reject = true;
+        FakeHomey second = new FakeHomey();
+        second.reject = true;
+        server.enqueue(new MockResponse().withWebSocketUpgrade(first));
+        server.enqueue(new MockResponse().withWebSocketUpgrade(second));
+
+        FakeTokens tokens = new FakeTokens();
+        connect(tokens);
+
+        assertEquals("token-1", first.tokens.poll(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("token-2", second.tokens.poll(TIMEOUT, TimeUnit.SECONDS));
+
+        // No third connection is opened
+        Thread.sleep(1500);
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, tokens.renewals.get());
+    }
+}
@@ -0,0 +1,149 @@
+package com.xseth.homey.voice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares matches of a VoiceCatalog with scoring every name by FuzzyMatcher
+ */
+public class VoiceCatalogTest {
+
+    // Rooms and device types combined into the names of the catalog
+    private static final String[] ROOMS = {
+        "Wohnzimmer", "Küche", "Schlafzimmer", "Kinderzimmer", "Bad", "Flur", "Keller",
+        "Garage", "Garten", "Büro", "Esszimmer", "Gäste WC"
+    };
+    private static final String[] TYPES = {
+        "Licht", "Deckenlampe", "Stehlampe", "Rollladen", "Heizung", "Steckdose",
+        "Lautsprecher", "Ventilator"
+    };
+    // Names written as one word or with umlauts and ß
+    private static final String[] COMPOUNDS = {
+        "Wohnzimmerlicht", "Küchenradio", "Badspiegel", "Fußbodenheizung", "Außenbeleuchtung",
+        "Schlafzimmerlampe", "Märchenlampe"
+    };
+    // Catalogs up to this size are scanned completely, larger ones use a shortlist
+    private static final int FULL_SCAN_SIZE = 64;
+    // Spoken queries, covering every stage of FuzzyMatcher
+    private static final String[] QUERIES = {
+        "Wohnzimmer Licht", "kueche licht", "Küche Licht", "Kuche Deckenlampe", "Wohnlicht",
+        "Schlafzimmerlicht", "Badezimmer Heizung", "Fussbodenheizung", "Marchenlampe",
+        "Garten", "Kinderzimmerlampe", "Gaeste WC Licht", "Radio", "Heizung", "Spiegel",
+        "Lichtkeller", "Arbeitszimmer", "Esslicht", "Büro Lampe", "Staubsauger", ""
+    };
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private VoiceCatalog catalog;
+
+    @Before
+    public void setUp() {
+        VoiceCatalog.Builder builder = new VoiceCatalog.Builder();
+
+        for (String room : ROOMS) {
+            for (String type : TYPES)
+                add(builder, room + " " + type);
+        }
+        for (String name : COMPOUNDS)
+            add(builder, name);
+
+        catalog = builder.build();
+    }
+
+    /**
+     * Add a name to the catalog and the names scanned linearly
+     */
+    private void add(VoiceCatalog.Builder builder, String name) {
+        String id = "device-" + ids.size();
+        ids.add(id);
+        names.add(name);
+        builder.add(id, name);
+    }
+
+    /**
+     * Assert two results match the same ID with the same type and score
+     */
+    private static void assertSameResult(String query, FuzzyMatcher.MatchResult expected,
+                                         FuzzyMatcher.MatchResult actual) {
+        if (expected == null) {
+            assertNull(query, actual);
+            return;
+        }
+
+        assertNotNull(query, actual);
+        assertEquals(query, expected.getMatchedId(), actual.getMatchedId());
+        assertEquals(query, expected.getMatchType(), actual.getMatchType());
+        assertEquals(query, expected.getScore(), actual.getScore(), 1e-9);
+    }
+
+    @Test
+    public void bestMatchEqualsLinearScan() {
+        assertTrue(catalog.size() > FULL_SCAN_SIZE);
+
+        for (String query : QUERIES) {
+            assertSameResult(query, FuzzyMatcher.findBestMatch(query, names, ids),
+                    catalog.findBestMatch(query));
+        }
+    }
+
+    @Test
+    public void matchesEqualLinearScan() {
+        for (String query : QUERIES) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                if (FuzzyMatcher.matches(query, names.get(i)))
+                    expected.add(ids.get(i));
+            }
+
+            assertEquals(query, expected, catalog.findMatches(query));
+        }
+    }
+
+    @Test
+    public void umlautsMatchTheirSpelledOutForm() {
+        FuzzyMatcher.MatchResult kitchen = catalog.findBestMatch("Kueche Licht");
+        assertNotNull(kitchen);
+        assertEquals("exact", kitchen.getMatchType());
+        assertEquals("Küche Licht", names.get(ids.indexOf(kitchen.getMatchedId())));
+
+        FuzzyMatcher.MatchResult floor = catalog.findBestMatch("Fussbodenheizung");
+        assertNotNull(floor);
+        assertEquals("Fußbodenheizung", names.get(ids.indexOf(floor.getMatchedId())));
+    }
+
+    @Test
+    public void compoundMatchIsFound() {
+        FuzzyMatcher.MatchResult result = catalog.findBestMatch("Lichtkeller");
+        assertNotNull(result);
+        assertEquals("compound", result.getMatchType());
+        assertEquals(0.75, result.getScore(), 1e-9);
+    }
+
+    @Test
+    public void compoundMatchDoesNotLowerBestScore() {
+        // "Büro Licht" matches fuzzy above the compound score of "Flur Licht", in any order
+        List<String> candidates = Arrays.asList("Büro Licht", "Flur Licht");
+        List<String> reversed = new ArrayList<>(candidates);
+        Collections.reverse(reversed);
+
+        FuzzyMatcher.MatchResult forward = FuzzyMatcher.findBestMatch("Esslicht", candidates,
+                candidates);
+        FuzzyMatcher.MatchResult backward = FuzzyMatcher.findBestMatch("Esslicht", reversed,
+                reversed);
+
+        assertNotNull(forward);
+        assertEquals("Büro Licht", forward.getMatchedId());
+        assertEquals("fuzzy", forward.getMatchType());
+        assertSameResult("Esslicht", forward, backward);
+    }
+}